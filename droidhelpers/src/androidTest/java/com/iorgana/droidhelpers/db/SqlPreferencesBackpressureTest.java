@@ -0,0 +1,116 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a batch that does not fit the write queue limit is
+ * dropped (FAIL_FAST), waits (BLOCK) or is flushed at once (COALESCE).
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesBackpressureTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+    private final List<Set<String>> rejected = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+        // Nothing is flushed unless the limit asks for it
+        prefs.setFlushDelay(60_000).setFlushThreshold(10_000);
+        prefs.setOnWriteRejectedListener((preferences, keys) -> rejected.add(keys));
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void failFast_dropsTheBatch() throws Exception {
+        prefs.setWriteQueueLimit(2, SqlPreferences.WritePolicy.FAIL_FAST);
+        prefs.putString("a", "1").putString("b", "1").apply();
+        prefs.putString("c", "1").apply();
+
+        assertEquals(Collections.singletonList(Collections.singleton("c")), rejected);
+        assertEquals(1, prefs.getRejectedWriteCount());
+        assertNull(prefs.getString("c", null));
+
+        // Keys already queued still fit
+        prefs.putString("a", "2").apply();
+        assertEquals(1, prefs.getRejectedWriteCount());
+        assertFalse(prefs.putString("d", "1").commitAsync().get(10, TimeUnit.SECONDS));
+
+        assertTrue(prefs.flush());
+        SqlPreferences reopened = reopen();
+        assertEquals("2", reopened.getString("a", null));
+        assertNull(reopened.getString("c", null));
+        assertNull(reopened.getString("d", null));
+    }
+
+    @Test
+    public void coalesce_flushesAtOnce() throws Exception {
+        prefs.setWriteQueueLimit(2, SqlPreferences.WritePolicy.COALESCE);
+        prefs.putString("a", "1").putString("b", "1").apply();
+        prefs.putString("c", "1").apply();
+        assertEquals("1", prefs.getString("c", null));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (prefs.getFlushCount() == 0) {
+            assertTrue("no flush", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertTrue(rejected.isEmpty());
+    }
+
+    @Test
+    public void block_waitsForTheWriter() {
+        prefs.setWriteQueueLimit(2, SqlPreferences.WritePolicy.BLOCK);
+        prefs.putString("a", "1").putString("b", "1").apply();
+        // Returns once a flush took the queue
+        prefs.putString("c", "1").apply();
+
+        assertTrue(prefs.getPendingWriteCount() <= 2);
+        assertTrue(prefs.getEnqueueWaitMs() >= 0);
+        assertTrue(prefs.flush());
+        assertEquals("1", reopen().getString("c", null));
+        assertTrue(rejected.isEmpty());
+    }
+
+    @Test
+    public void flushMetrics() {
+        assertEquals(0, prefs.getFlushCount());
+        assertTrue(prefs.putString("a", "1").commit());
+
+        assertEquals(1, prefs.getFlushCount());
+        assertTrue(prefs.getTotalFlushDurationMs() >= prefs.getLastFlushDurationMs());
+    }
+}
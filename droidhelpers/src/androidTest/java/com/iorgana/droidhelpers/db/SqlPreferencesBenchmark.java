@@ -0,0 +1,498 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * ************************************************************************
+ * SqlPreferencesBenchmark
+ * ************************************************************************
+ * - Instrumented benchmarks of the SqlPreferences storage paths, each
+ *   against the path it replaced.
+ * - Timings depend on the device: they are logged, not asserted. Read
+ *   them with "adb logcat -s SqlPreferencesBench", on an idle device and
+ *   a non-debuggable build. Only correctness is asserted.
+ * - Each result is the median of RUNS runs, after one warm-up run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesBenchmark {
+    private static final String TAG = "SqlPreferencesBench";
+    private static final String KEY = "BenchmarkTestKey";
+    private static final String DATABASE = "sql_preferences.db";
+    private static final int RUNS = 5;
+
+    private Context context;
+    private String savedSecretKey;
+    private boolean savedEncryption;
+    private boolean savedSnapshot;
+    private final List<String> databases = new ArrayList<>();
+    private final List<SqlPreferences> stores = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        savedSecretKey = SqlPreferences.SECRET_KEY;
+        savedEncryption = SqlPreferences.ENABLE_ENCRYPTION;
+        savedSnapshot = SqlPreferences.ENABLE_SNAPSHOT;
+        SqlPreferences.SECRET_KEY = KEY;
+        SqlPreferences.ENABLE_ENCRYPTION = true;
+        SqlPreferences.LAZY_LOADING = false;
+    }
+
+    @After
+    public void tearDown() {
+        SqlPreferences.SECRET_KEY = savedSecretKey;
+        SqlPreferences.ENABLE_ENCRYPTION = savedEncryption;
+        SqlPreferences.ENABLE_SNAPSHOT = savedSnapshot;
+        for (SqlPreferences store : stores) {
+            store.close();
+        }
+        for (String database : databases) {
+            context.deleteDatabase(database);
+            new File(context.getDatabasePath(database).getPath() + "-snapshot").delete();
+        }
+    }
+
+
+    /*==========================[ HELPERS ]==========================*/
+
+    private interface Run {
+        void run() throws Exception;
+    }
+
+    private static long medianNanos(Run body) throws Exception {
+        body.run();
+        long[] nanos = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[RUNS / 2];
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void report(String benchmark, String format, Object... args) {
+        Log.i(TAG, benchmark + ": " + String.format(Locale.US, format, args));
+    }
+
+    // Bytes allocated by the whole runtime since start, API 23+
+    private static long allocatedBytes() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    private SqlPreferences openStore(String name, SqlPreferences.Options options) {
+        String unique = "bench_" + name + "_" + System.nanoTime();
+        databases.add("sql_preferences_" + unique + ".db");
+        SqlPreferences store = SqlPreferences.open(context, unique, options);
+        stores.add(store);
+        return store;
+    }
+
+    private SqlPreferences newDefaultStore() {
+        SqlPreferences prefs = new SqlPreferences(context);
+        prefs.initSync();
+        return prefs;
+    }
+
+    private long fileBytes(String database) {
+        File file = context.getDatabasePath(database);
+        return file.length() + new File(file.getPath() + "-wal").length();
+    }
+
+    private static String text(Random random, int chars) {
+        StringBuilder builder = new StringBuilder(chars);
+        for (int i = 0; i < chars; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+
+    // JSON as the apps store it: repeated field names, varied values
+    private static String json(Random random, int bytes) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; builder.length() < bytes; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\":").append(i)
+                    .append(",\"title\":\"").append(text(random, 12))
+                    .append("\",\"price\":").append(random.nextInt(10_000))
+                    .append(",\"available\":").append(random.nextBoolean()).append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+
+    /*==========================[ BENCHMARKS ]==========================*/
+
+    /**
+     * Preload of an encrypted store (parallel decode, snapshot) against the
+     * old single-threaded walk that derived the key and decrypted each row.
+     */
+    @Test
+    public void preload_parallelDecodeAndSnapshot_vsSerialWalk() throws Exception {
+        final int keys = 20_000;
+        databases.add(DATABASE);
+        context.deleteDatabase(DATABASE);
+        SqlPreferences.ENABLE_SNAPSHOT = false;
+
+        SqlPreferences writer = newDefaultStore();
+        Random random = new Random(1);
+        for (int i = 0; i < keys; i++) {
+            writer.putString("key:" + i, text(random, 64));
+        }
+        assertTrue(writer.commit());
+
+        long serial = medianNanos(() -> {
+            int rows = 0;
+            try (Cursor cursor = writer.getReadableDatabase().rawQuery("SELECT " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + SqlPreferences.TABLE_NAME, null)) {
+                while (cursor.moveToNext()) {
+                    byte[] plain = CryptoUtil.cipherDecrypt(cursor.getBlob(0), KEY);
+                    assertNotNull(plain);
+                    new String(plain, StandardCharsets.UTF_8);
+                    rows++;
+                }
+            }
+            assertEquals(keys, rows);
+        });
+        long table = medianNanos(() -> newDefaultStore().close());
+
+        SqlPreferences.ENABLE_SNAPSHOT = true;
+        File snapshot = new File(context.getDatabasePath(DATABASE).getPath() + "-snapshot");
+        snapshot.delete();
+        newDefaultStore();
+        long deadline = System.currentTimeMillis() + SqlPreferences.SNAPSHOT_DELAY_MS + 30_000;
+        while (!snapshot.isFile()) {
+            assertTrue("no snapshot written", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        long fromSnapshot = medianNanos(() -> {
+            SqlPreferences prefs = newDefaultStore();
+            assertEquals(keys, prefs.getAll().size());
+            prefs.close();
+        });
+
+        report("preload", "%d keys, %d cores: serial walk %.1f ms, table preload %.1f ms (%.1fx), snapshot %.1f ms (%.1fx)",
+                keys, Runtime.getRuntime().availableProcessors(), ms(serial),
+                ms(table), (double) serial / table, ms(fromSnapshot), (double) serial / fromSnapshot);
+    }
+
+    /**
+     * Encrypted values as a BLOB of [IV + Ciphertext] against their old
+     * Base64 TEXT: file size, write and read time on 50k keys.
+     */
+    @Test
+    public void encryptedValues_blobVsBase64() throws Exception {
+        final int keys = 50_000;
+        Random random = new Random(2);
+        String[] values = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            values[i] = text(random, 48);
+        }
+        SecretKeySpec spec = CryptoUtil.deriveKey(KEY);
+
+        // Old layout: Base64 TEXT, built by hand
+        String legacyName = "bench_base64_" + System.nanoTime() + ".db";
+        databases.add(legacyName);
+        File legacyFile = context.getDatabasePath(legacyName);
+        legacyFile.getParentFile().mkdirs();
+        long base64Write;
+        long base64Read;
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(legacyFile, null)) {
+            db.execSQL("CREATE TABLE t (" + SqlPreferences.COLUMN_KEY + " TEXT PRIMARY KEY, "
+                    + SqlPreferences.COLUMN_DATA_TYPE + " TEXT, " + SqlPreferences.COLUMN_DATA_VALUE + " TEXT)");
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                ContentValues cv = new ContentValues();
+                for (int i = 0; i < keys; i++) {
+                    cv.put(SqlPreferences.COLUMN_KEY, "key:" + i);
+                    cv.put(SqlPreferences.COLUMN_DATA_TYPE, "String");
+                    byte[] cipher = CryptoUtil.cipherEncrypt(values[i].getBytes(StandardCharsets.UTF_8), spec);
+                    cv.put(SqlPreferences.COLUMN_DATA_VALUE, Base64.encodeToString(cipher, Base64.NO_WRAP));
+                    db.insert("t", null, cv);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            base64Write = System.nanoTime() - start;
+            base64Read = medianNanos(() -> {
+                try (Cursor cursor = db.rawQuery("SELECT " + SqlPreferences.COLUMN_DATA_VALUE + " FROM t", null)) {
+                    while (cursor.moveToNext()) {
+                        assertNotNull(CryptoUtil.cipherDecrypt(Base64.decode(cursor.getString(0), Base64.NO_WRAP), spec));
+                    }
+                }
+            });
+        }
+        long base64Bytes = legacyFile.length();
+
+        databases.add(DATABASE);
+        context.deleteDatabase(DATABASE);
+        SqlPreferences.ENABLE_SNAPSHOT = false;
+        SqlPreferences store = newDefaultStore();
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            store.putString("key:" + i, values[i]);
+        }
+        assertTrue(store.commit());
+        long blobWrite = System.nanoTime() - start;
+        long blobRead = medianNanos(() -> {
+            try (Cursor cursor = store.getReadableDatabase().rawQuery("SELECT " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + SqlPreferences.TABLE_NAME, null)) {
+                while (cursor.moveToNext()) {
+                    assertNotNull(CryptoUtil.cipherDecrypt(cursor.getBlob(0), spec));
+                }
+            }
+        });
+        // Counts the WAL too, in case the store journals in WAL mode
+        long blobBytes = fileBytes(DATABASE);
+
+        report("blob-vs-base64", "%d keys: file %d KB vs %d KB (%.0f%%), write %.0f ms vs %.0f ms, read %.0f ms vs %.0f ms",
+                keys, blobBytes / 1024, base64Bytes / 1024, 100.0 * blobBytes / base64Bytes,
+                ms(blobWrite), ms(base64Write), ms(blobRead), ms(base64Read));
+    }
+
+    /**
+     * Commit latency and batch throughput of each Durability profile.
+     */
+    @Test
+    public void durabilityProfiles() throws Exception {
+        databases.add(DATABASE);
+        SqlPreferences.ENABLE_ENCRYPTION = false;
+        SqlPreferences.ENABLE_SNAPSHOT = false;
+        for (SqlPreferences.Durability durability : SqlPreferences.Durability.values()) {
+            context.deleteDatabase(DATABASE);
+            SqlPreferences store = new SqlPreferences(context, durability);
+            store.initSync();
+            final int commits = 200;
+            long start = System.nanoTime();
+            for (int i = 0; i < commits; i++) {
+                store.putInt("counter", i);
+                assertTrue(store.commit());
+            }
+            long perCommit = (System.nanoTime() - start) / commits;
+
+            final int[] round = {0};
+            long batch = medianNanos(() -> {
+                int base = round[0]++ * 10_000;
+                for (int i = 0; i < 10_000; i++) {
+                    store.putInt("batch:" + i, base + i);
+                }
+                assertTrue(store.commit());
+            });
+            store.close();
+
+            report("durability", "%s: single-key commit %.2f ms, 10k-key commit %.1f ms",
+                    durability, ms(perCommit), ms(batch));
+        }
+    }
+
+    /**
+     * Commit latency of a small store while another store flushes large
+     * values, against the same keys sharing one store.
+     */
+    @Test
+    public void namedStores_isolateWriters() throws Exception {
+        SqlPreferences.Options options = new SqlPreferences.Options().setEncryption(false).setSnapshot(false);
+        SqlPreferences feed = openStore("feed", options);
+        SqlPreferences auth = openStore("auth", options);
+        String page = text(new Random(3), 256 * 1024);
+
+        long idle = authCommitNanos(auth);
+        long shared = authCommitNanos(feed, feed, page);
+        long separate = authCommitNanos(auth, feed, page);
+
+        report("named-stores", "auth commit p50: idle %.2f ms, sharing the feed store %.2f ms, own store %.2f ms",
+                ms(idle), ms(shared), ms(separate));
+    }
+
+    private long authCommitNanos(SqlPreferences auth) throws Exception {
+        return medianNanos(() -> {
+            auth.putString("token", "abc");
+            assertTrue(auth.commit());
+        });
+    }
+
+    private long authCommitNanos(SqlPreferences auth, SqlPreferences feed, String page) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread load = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                feed.putString("feed:" + (i++ % 20), page);
+                feed.commit();
+            }
+        });
+        load.start();
+        try {
+            // Let the feed writes queue up first
+            Thread.sleep(200);
+            return authCommitNanos(auth);
+        } finally {
+            running.set(false);
+            load.join(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    /**
+     * int[] of 100k elements packed to a BLOB, against a List<Integer>
+     * through Gson: encode, decode, allocation and stored size.
+     */
+    @Test
+    public void primitiveArrays_vsGsonList() throws Exception {
+        final int size = 100_000;
+        int[] values = new int[size];
+        List<Integer> boxed = new ArrayList<>(size);
+        Random random = new Random(4);
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt();
+            boxed.add(values[i]);
+        }
+        Gson gson = new Gson();
+        Type listType = new TypeToken<List<Integer>>() {}.getType();
+        byte[] packed = PackedArrays.pack(values);
+        String json = gson.toJson(boxed);
+
+        long packEncode = medianNanos(() -> PackedArrays.pack(values));
+        long packDecode = medianNanos(() -> assertArrayEquals(values, PackedArrays.unpackInts(packed)));
+        long gsonEncode = medianNanos(() -> gson.toJson(boxed));
+        long gsonDecode = medianNanos(() -> assertEquals(size, ((List<?>) gson.fromJson(json, listType)).size()));
+
+        long before = allocatedBytes();
+        PackedArrays.unpackInts(packed);
+        long packAlloc = allocatedBytes() - before;
+        before = allocatedBytes();
+        gson.fromJson(json, listType);
+        long gsonAlloc = allocatedBytes() - before;
+
+        // End to end: put and commit through an encrypted store
+        SqlPreferences store = openStore("arrays", new SqlPreferences.Options().setSecretKey(KEY)
+                .setSnapshot(false).setLazyLoading(true).setLazyCacheMaxEntries(1));
+        long arrayPut = medianNanos(() -> {
+            store.putIntArray("series", values);
+            assertTrue(store.commit());
+        });
+        long listPut = medianNanos(() -> {
+            store.putListObject("series", boxed);
+            assertTrue(store.commit());
+        });
+
+        report("arrays", "%d ints: encode %.1f ms vs %.1f ms, decode %.1f ms vs %.1f ms, decode alloc %d KB vs %d KB, "
+                        + "stored %d KB vs %d KB, put+commit %.1f ms vs %.1f ms (packed vs Gson list)",
+                size, ms(packEncode), ms(gsonEncode), ms(packDecode), ms(gsonDecode),
+                packAlloc / 1024, gsonAlloc / 1024, packed.length / 1024,
+                json.getBytes(StandardCharsets.UTF_8).length / 1024, ms(arrayPut), ms(listPut));
+    }
+
+    /**
+     * Heap held by a store of large values with a memory budget, against
+     * the unbounded cache, and the cost of reloading evicted keys.
+     */
+    @Test
+    public void memoryBudget_vsUnboundedCache() throws Exception {
+        final int values = 100;
+        String value = text(new Random(6), 50 * 1024);
+        long budget = 1024 * 1024;
+
+        long[] heap = new long[2];
+        long[] reload = new long[2];
+        SqlPreferences.Options[] options = {
+                new SqlPreferences.Options().setEncryption(false).setSnapshot(false),
+                new SqlPreferences.Options().setEncryption(false).setSnapshot(false).setCacheMaxBytes((int) budget)};
+        for (int run = 0; run < 2; run++) {
+            long base = usedHeap();
+            SqlPreferences store = openStore("budget_" + run, options[run]);
+            for (int i = 0; i < values; i++) {
+                store.putString("page:" + i, value + i);
+            }
+            assertTrue(store.commit());
+            heap[run] = usedHeap() - base;
+            reload[run] = medianNanos(() -> {
+                for (int i = 0; i < values; i++) {
+                    assertEquals(value + i, store.getString("page:" + i, null));
+                }
+            });
+        }
+
+        report("memory-budget", "%d x %d KB values: heap %d KB unbounded vs %d KB with a %d KB budget, read all %.1f ms vs %.1f ms",
+                values, value.length() * 2 / 1024, heap[0] / 1024, heap[1] / 1024, budget / 1024,
+                ms(reload[0]), ms(reload[1]));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Deflate before encrypting, by value size: where the smaller payload
+     * starts to pay for the deflate and the inflate.
+     */
+    @Test
+    public void compression_crossover() throws Exception {
+        SecretKeySpec spec = CryptoUtil.deriveKey(KEY);
+        Random random = new Random(5);
+        for (int bytes : new int[]{256, 1024, 4 * 1024, 8 * 1024, 16 * 1024, 64 * 1024, 256 * 1024}) {
+            byte[] plain = json(random, bytes).getBytes(StandardCharsets.UTF_8);
+            byte[] deflated = PreferencesCompression.deflate(plain);
+            byte[] stored = CryptoUtil.cipherEncrypt(plain, spec);
+            byte[] storedDeflated = CryptoUtil.cipherEncrypt(deflated != null ? deflated : plain, spec);
+
+            long encrypt = medianNanos(() -> CryptoUtil.cipherEncrypt(plain, spec));
+            long deflateEncrypt = medianNanos(() -> {
+                byte[] d = PreferencesCompression.deflate(plain);
+                CryptoUtil.cipherEncrypt(d != null ? d : plain, spec);
+            });
+            long decrypt = medianNanos(() -> CryptoUtil.cipherDecrypt(stored, spec));
+            long decryptInflate = medianNanos(() -> {
+                byte[] d = CryptoUtil.cipherDecrypt(storedDeflated, spec);
+                if (deflated != null) assertArrayEquals(plain, PreferencesCompression.inflate(d));
+            });
+
+            report("compression", "%6d B: stored %6d B vs %6d B, write %7.3f ms vs %7.3f ms, read %7.3f ms vs %7.3f ms (deflated vs plain)",
+                    plain.length, storedDeflated.length, stored.length,
+                    ms(deflateEncrypt), ms(encrypt), ms(decryptInflate), ms(decrypt));
+        }
+    }
+}
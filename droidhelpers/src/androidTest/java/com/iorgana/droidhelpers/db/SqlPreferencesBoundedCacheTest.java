@@ -0,0 +1,116 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a cache with a memory budget stays under it, reads
+ * an evicted key again from the disk, and never keeps a value heavier
+ * than its value limit.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesBoundedCacheTest {
+    private static final String NAME = "bounded_cache_test";
+    private static final String DATABASE = "sql_preferences_" + NAME + ".db";
+    private static final int MAX_BYTES = 16 * 1024;
+    private static final int MAX_VALUE_BYTES = 1024;
+    private static final int KEYS = 500;
+
+    private Context context;
+    private SqlPreferences store;
+    private String value;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        store = open();
+
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 100) {
+            builder.append("0123456789");
+        }
+        value = builder.toString();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences open() {
+        return SqlPreferences.open(context, NAME, new SqlPreferences.Options()
+                .setEncryption(false)
+                .setCacheMaxBytes(MAX_BYTES)
+                .setCacheMaxValueBytes(MAX_VALUE_BYTES));
+    }
+
+    private void reopen() {
+        store.close();
+        store = open();
+    }
+
+    private void assertAllRead() {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(value + i, store.getString("key:" + i, null));
+        }
+    }
+
+    @Test
+    public void cache_staysUnderItsBudget() {
+        for (int i = 0; i < KEYS; i++) {
+            store.putString("key:" + i, value + i);
+        }
+        assertTrue(store.commit());
+        assertTrue(store.cache.weightBytes() <= MAX_BYTES);
+        assertAllRead();
+        assertTrue(store.cache.weightBytes() <= MAX_BYTES);
+
+        // The preload stops at the budget too
+        reopen();
+        assertTrue(store.cache.weightBytes() <= MAX_BYTES);
+        assertAllRead();
+    }
+
+    @Test
+    public void evictedKey_isReadAgain() {
+        for (int i = 0; i < KEYS; i++) {
+            store.putString("key:" + i, value + i);
+        }
+        assertTrue(store.commit());
+        assertAllRead();
+        assertNull(store.cache.get("key:0"));
+
+        assertEquals(value + 0, store.getString("key:0", null));
+        assertEquals(value + 0, store.cache.get("key:0"));
+    }
+
+    @Test
+    public void heavyValue_isNotCached() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < MAX_VALUE_BYTES) {
+            builder.append(value);
+        }
+        String heavy = builder.toString();
+        assertTrue(store.putString("heavy", heavy).putString("light", "1").commit());
+
+        assertEquals(heavy, store.getString("heavy", null));
+        assertNull(store.cache.get("heavy"));
+        assertEquals("1", store.getString("light", null));
+        assertEquals("1", store.cache.get("light"));
+
+        reopen();
+        assertEquals(heavy, store.getString("heavy", null));
+        assertNull(store.cache.get("heavy"));
+    }
+}
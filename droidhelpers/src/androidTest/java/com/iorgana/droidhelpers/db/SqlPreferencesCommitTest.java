@@ -0,0 +1,119 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: commit(), commitAsync() and flush() return once the
+ * writes queued before them are on the disk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesCommitTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void commit_isOnDiskWhenItReturns() {
+        prefs.setFlushDelay(60_000);
+        assertTrue(prefs.putString("name", "Ann").putInt("count", 5).commit());
+
+        SqlPreferences reopened = reopen();
+        assertEquals("Ann", reopened.getString("name", null));
+        assertEquals(Integer.valueOf(5), reopened.getInt("count", null));
+    }
+
+    @Test
+    public void commitAsync_completesOnceWritten() throws Exception {
+        prefs.setFlushDelay(60_000);
+        assertTrue(prefs.putString("name", "Ann").commitAsync().get(10, TimeUnit.SECONDS));
+
+        assertEquals("Ann", reopen().getString("name", null));
+    }
+
+    @Test
+    public void flush_waitsForEarlierApply() {
+        prefs.setFlushDelay(60_000);
+        prefs.putString("name", "Ann").apply();
+        prefs.remove("gone");
+        assertTrue(prefs.flush());
+
+        assertEquals(0, prefs.getPendingWriteCount());
+        assertEquals("Ann", reopen().getString("name", null));
+    }
+
+    @Test
+    public void failedFlush_isRequeuedAndRetried() {
+        prefs.setFlushDelay(60_000);
+        SQLiteDatabase db = prefs.getWritableDatabase();
+        db.execSQL("ALTER TABLE " + SqlPreferences.TABLE_NAME + " RENAME TO moved_away");
+        assertFalse(prefs.putString("name", "Ann").commit());
+        // Not lost: still read from memory, and pending again
+        assertEquals("Ann", prefs.getString("name", null));
+
+        db.execSQL("ALTER TABLE moved_away RENAME TO " + SqlPreferences.TABLE_NAME);
+        assertTrue(prefs.flush());
+        assertEquals("Ann", reopen().getString("name", null));
+    }
+
+    @Test
+    public void flush_nothingPending() {
+        assertTrue(prefs.flush());
+    }
+
+    @Test
+    public void commit_staysOrderedWithApply() {
+        prefs.setFlushDelay(60_000);
+        prefs.putString("name", "Ann").apply();
+        assertTrue(prefs.putString("name", "Bob").commit());
+        prefs.putString("name", "Cid").apply();
+        assertTrue(prefs.flush());
+
+        assertEquals("Cid", reopen().getString("name", null));
+    }
+
+    @Test
+    public void commit_onTheWriterThread_runsInline() throws Exception {
+        // Waiting for the writer from the writer would never return
+        boolean committed = SqlPreferences.executors
+                .submit(() -> prefs.putString("name", "Ann").commit())
+                .get(10, TimeUnit.SECONDS);
+        assertTrue(committed);
+
+        assertEquals("Ann", reopen().getString("name", null));
+    }
+}
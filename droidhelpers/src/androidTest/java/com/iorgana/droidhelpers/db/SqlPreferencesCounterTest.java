@@ -0,0 +1,136 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: counters add up across threads, start from the
+ * stored value, and are written by flush() or by the periodic drain.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesCounterTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void increments_fromManyThreads() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    prefs.increment("hits");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80_000, prefs.getCounter("hits"));
+        assertEquals(Long.valueOf(80_000), prefs.getLong("hits", null));
+    }
+
+    @Test
+    public void addAndGet_includesTheDelta() {
+        assertEquals(0, prefs.getCounter("hits"));
+        assertEquals(5, prefs.addAndGet("hits", 5));
+        assertEquals(3, prefs.addAndGet("hits", -2));
+    }
+
+    @Test
+    public void counter_startsFromTheStoredValue() {
+        assertTrue(prefs.putLong("hits", 10).commit());
+        prefs.increment("hits");
+        assertEquals(11, prefs.getCounter("hits"));
+    }
+
+    @Test
+    public void counter_keepsTheIntType() {
+        assertTrue(prefs.putInt("visits", 40).commit());
+        prefs.increment("visits", 2);
+        assertEquals(Integer.valueOf(42), prefs.getInt("visits", null));
+        assertTrue(prefs.flush());
+
+        assertEquals(Integer.valueOf(42), reopen().getInt("visits", null));
+    }
+
+    @Test
+    public void counter_keepsTheExpiry() throws Exception {
+        assertTrue(prefs.putLong("hits", 1, 500).commit());
+        prefs.increment("hits");
+        assertTrue(prefs.flush());
+        assertEquals(Long.valueOf(2), reopen().getLong("hits", null));
+
+        Thread.sleep(600);
+        assertNull(reopen().getLong("hits", null));
+    }
+
+    @Test
+    public void flush_writesTheTotal() {
+        prefs.setCounterFlushInterval(60_000);
+        prefs.increment("hits", 7);
+        assertTrue(prefs.flush());
+
+        assertEquals(Long.valueOf(7), reopen().getLong("hits", null));
+    }
+
+    @Test
+    public void drain_writesTheTotalInTheBackground() throws Exception {
+        prefs.setCounterFlushInterval(100);
+        prefs.increment("hits", 3);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!Long.valueOf(3).equals(reopen().getLong("hits", null))) {
+            assertTrue("counter not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void put_replacesTheCounter() {
+        prefs.increment("hits", 3);
+        assertTrue(prefs.putLong("hits", 100).commit());
+        assertEquals(100, prefs.getCounter("hits"));
+
+        prefs.increment("hits");
+        assertTrue(prefs.flush());
+        assertEquals(Long.valueOf(101), reopen().getLong("hits", null));
+    }
+}
@@ -0,0 +1,111 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: each Durability profile opens the database in WAL
+ * mode with its synchronous level, and keeps what was committed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesDurabilityTest {
+    private static final String DATABASE = "sql_preferences.db";
+    private static final String NAME = "durability_test";
+    private static final String NAMED_DATABASE = "sql_preferences_" + NAME + ".db";
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        context.deleteDatabase(NAMED_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DATABASE);
+        context.deleteDatabase(NAMED_DATABASE);
+    }
+
+    private SqlPreferences open(SqlPreferences.Durability durability) {
+        return SqlPreferences.open(context, NAME, new SqlPreferences.Options().setDurability(durability));
+    }
+
+    // Run on the primary connection, the one onConfigure() set up for writes
+    private static String pragma(SqlPreferences store, String name) {
+        SQLiteDatabase db = store.getWritableDatabase();
+        db.beginTransaction();
+        try (Cursor cursor = db.rawQuery("PRAGMA " + name, null)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Test
+    public void profile_setsTheConnection() {
+        for (SqlPreferences.Durability durability : SqlPreferences.Durability.values()) {
+            SqlPreferences store = open(durability);
+            try {
+                assertEquals(durability, store.getDurability());
+                assertEquals("wal", pragma(store, "journal_mode").toLowerCase());
+                assertEquals(String.valueOf(durability.synchronous), pragma(store, "synchronous"));
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    @Test
+    public void profile_keepsCommittedWrites() {
+        for (SqlPreferences.Durability durability : SqlPreferences.Durability.values()) {
+            SqlPreferences store = open(durability);
+            assertTrue(store.putString("profile", durability.name()).putInt("count", 1).commit());
+            store.close();
+
+            store = open(durability);
+            try {
+                assertEquals(durability.name(), store.getString("profile", null));
+                assertEquals(Integer.valueOf(1), store.getInt("count", null));
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    @Test
+    public void constructor_takesTheProfile() {
+        SqlPreferences prefs = new SqlPreferences(context, SqlPreferences.Durability.STRICT);
+        prefs.initSync();
+        try {
+            assertEquals(SqlPreferences.Durability.STRICT, prefs.getDurability());
+            assertTrue(prefs.putString("name", "Ann").commit());
+            assertEquals("2", pragma(prefs, "synchronous"));
+        } finally {
+            prefs.close();
+        }
+
+        // No profile: the default one
+        prefs = new SqlPreferences(context, null);
+        prefs.initSync();
+        try {
+            assertEquals(SqlPreferences.DURABILITY, prefs.getDurability());
+            assertEquals("Ann", prefs.getString("name", null));
+        } finally {
+            prefs.close();
+        }
+    }
+}
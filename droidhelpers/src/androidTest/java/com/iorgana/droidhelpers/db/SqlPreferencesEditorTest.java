@@ -0,0 +1,137 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: an Editor keeps its changes to itself until apply(),
+ * then readers see all of them at once, and abort() drops them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesEditorTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void changes_areInvisibleUntilApply() {
+        SqlPreferencesEditor editor = prefs.edit().putString("name", "Ann").putInt("count", 5);
+        assertNull(prefs.getString("name", null));
+        assertEquals(0, prefs.getPendingWriteCount());
+
+        editor.apply();
+        assertEquals("Ann", prefs.getString("name", null));
+        assertEquals(Integer.valueOf(5), prefs.getInt("count", null));
+
+        assertTrue(prefs.flush());
+        SqlPreferences reopened = reopen();
+        assertEquals("Ann", reopened.getString("name", null));
+        assertEquals(Integer.valueOf(5), reopened.getInt("count", null));
+    }
+
+    @Test
+    public void abort_dropsEveryChange() {
+        prefs.putString("kept", "1").commit();
+        SqlPreferencesEditor editor = prefs.edit().putString("name", "Ann").remove("kept");
+        editor.abort();
+        assertNull(prefs.getString("name", null));
+        assertEquals("1", prefs.getString("kept", null));
+
+        // Empty again, and can be used again
+        assertTrue(editor.putString("name", "Bob").commit());
+        assertEquals("Bob", reopen().getString("name", null));
+        assertEquals("1", reopen().getString("kept", null));
+    }
+
+    @Test
+    public void commit_writesPutsAndRemovesTogether() throws Exception {
+        prefs.putString("old", "1").putString("other", "1").commit();
+        assertTrue(prefs.edit().putString("new", "1").remove("old").putString("other", null)
+                .commitAsync().get(10, TimeUnit.SECONDS));
+
+        SqlPreferences reopened = reopen();
+        assertEquals("1", reopened.getString("new", null));
+        // A null value removes the key
+        assertNull(reopened.getString("other", null));
+        assertNull(reopened.getString("old", null));
+    }
+
+    @Test
+    public void editors_shareNothing() {
+        SqlPreferencesEditor first = prefs.edit().putString("a", "first");
+        SqlPreferencesEditor second = prefs.edit().putString("b", "second");
+        prefs.putString("c", "shared");
+
+        assertTrue(first.commit());
+        assertEquals("first", prefs.getString("a", null));
+        assertNull(prefs.getString("b", null));
+        // The tempMap of put___() is not applied by an Editor either
+        assertNull(prefs.getString("c", null));
+
+        second.abort();
+        prefs.apply();
+        assertNull(prefs.getString("b", null));
+        assertEquals("shared", prefs.getString("c", null));
+    }
+
+    @Test
+    public void readers_seeWholeBatches() throws Exception {
+        prefs.setFlushDelay(60_000).setFlushThreshold(1_000_000);
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Both keys get the same value per batch, and it only grows:
+                // once "a" is seen, "b" can be no older
+                Integer a = prefs.getInt("a", -1);
+                Integer b = prefs.getInt("b", -1);
+                if (b < a) {
+                    torn.compareAndSet(null, "a=" + a + " b=" + b);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20_000; i++) {
+            prefs.edit().putInt("b", i).putInt("a", i).apply();
+        }
+        reader.interrupt();
+        reader.join(10_000);
+
+        assertNull(torn.get());
+        assertEquals(Integer.valueOf(19_999), prefs.getInt("a", null));
+        assertEquals(Integer.valueOf(19_999), prefs.getInt("b", null));
+    }
+}
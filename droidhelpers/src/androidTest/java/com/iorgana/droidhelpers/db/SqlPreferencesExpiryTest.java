@@ -0,0 +1,97 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a key written with a TTL reads as absent once it
+ * expires, is not loaded again, and its row is deleted by the sweeper.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesExpiryTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    private long rows(String key) {
+        return DatabaseUtils.queryNumEntries(prefs.getReadableDatabase(), SqlPreferences.TABLE_NAME,
+                SqlPreferences.COLUMN_KEY + " = ?", new String[]{key});
+    }
+
+    @Test
+    public void expiredKey_readsAsAbsent() throws Exception {
+        assertTrue(prefs.putString("session", "abc", 200).putString("name", "Ann").commit());
+        assertEquals("abc", prefs.getString("session", null));
+
+        Thread.sleep(300);
+        assertNull(prefs.getString("session", null));
+        assertEquals("Ann", prefs.getString("name", null));
+    }
+
+    @Test
+    public void putWithoutTtl_clearsTheExpiry() throws Exception {
+        assertTrue(prefs.putInt("count", 1, 200).commit());
+        assertTrue(prefs.putInt("count", 2).commit());
+
+        Thread.sleep(300);
+        assertEquals(Integer.valueOf(2), prefs.getInt("count", null));
+        assertEquals(Integer.valueOf(2), reopen().getInt("count", null));
+    }
+
+    @Test
+    public void expiredRows_areNotLoaded() throws Exception {
+        assertTrue(prefs.putString("session", "abc", 200).putString("name", "Ann").commit());
+
+        Thread.sleep(300);
+        SqlPreferences reopened = reopen();
+        assertNull(reopened.getString("session", null));
+        assertFalse(reopened.getAll().containsKey("session"));
+        assertEquals("Ann", reopened.getString("name", null));
+    }
+
+    @Test
+    public void sweeper_deletesExpiredRows() throws Exception {
+        prefs.setSweepInterval(100);
+        assertTrue(prefs.putString("session", "abc", 500).putString("name", "Ann").commit());
+        assertEquals(1, rows("session"));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (rows("session") > 0) {
+            assertTrue("expired row not swept", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        assertEquals(1, rows("name"));
+    }
+}
@@ -0,0 +1,200 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: exportTo() / importFrom() between two stores, with
+ * every value type, compressed and spilled values, TTLs and row lists.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesExportTest {
+    private static final String KEY_A = "ExportTestKeyAAA";
+    private static final String KEY_B = "ExportTestKeyBBB";
+    // Entries written by fill(), the expired one excluded, plus 3 list elements
+    private static final int RECORDS = 11 + 3;
+
+    public static class Point {
+        int x;
+        int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private Context context;
+    private String large;
+    private final List<SqlPreferences> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // Letters at random: deflates to about 60%, still above the spill size
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(7);
+        for (int i = 0; i < 300_000; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        large = builder.toString();
+    }
+
+    @After
+    public void tearDown() {
+        for (SqlPreferences store : opened) {
+            store.close();
+            context.deleteDatabase("sql_preferences_" + store.getStoreName() + ".db");
+        }
+    }
+
+    private SqlPreferences open(String test, SqlPreferences.Options options) {
+        String name = "export_" + test;
+        context.deleteDatabase("sql_preferences_" + name + ".db");
+        SqlPreferences store = SqlPreferences.open(context, name, options
+                .setCompressMinBytes(1024)
+                .setSpillMinBytes(64 * 1024));
+        opened.add(store);
+        return store;
+    }
+
+    private void fill(SqlPreferences prefs) throws InterruptedException {
+        prefs.putString("name", "Ann")
+                .putInt("count", 5)
+                .putBoolean("flag", true)
+                .putFloat("ratio", 0.5f)
+                .putLong("big", 12345678901L)
+                .putIntArray("ids", new int[]{1, 2, 3})
+                .putLongArray("stamps", new long[]{Long.MIN_VALUE, 0, Long.MAX_VALUE})
+                .putDoubleArray("weights", new double[]{0.25, -1.5})
+                .putObject("point", new Point(3, 4))
+                .putString("large", large)
+                .putString("session", "abc", 60_000)
+                .putString("gone", "x", 1);
+        assertTrue(prefs.commit());
+        for (String element : new String[]{"a", "b", "c"}) {
+            prefs.appendToList("log", element);
+        }
+        // Let "gone" expire: exports leave it out
+        Thread.sleep(10);
+    }
+
+    private void assertFilled(SqlPreferences prefs) {
+        assertEquals("Ann", prefs.getString("name", null));
+        assertEquals(Integer.valueOf(5), prefs.getInt("count", null));
+        assertEquals(Boolean.TRUE, prefs.getBoolean("flag", null));
+        assertEquals(Float.valueOf(0.5f), prefs.getFloat("ratio", null));
+        assertEquals(Long.valueOf(12345678901L), prefs.getLong("big", null));
+        assertArrayEquals(new int[]{1, 2, 3}, prefs.getIntArray("ids", null));
+        assertArrayEquals(new long[]{Long.MIN_VALUE, 0, Long.MAX_VALUE}, prefs.getLongArray("stamps", null));
+        assertArrayEquals(new double[]{0.25, -1.5}, prefs.getDoubleArray("weights", null), 0.0);
+        Point point = prefs.getObject("point", Point.class);
+        assertNotNull(point);
+        assertEquals(3, point.x);
+        assertEquals(4, point.y);
+        assertEquals(large, prefs.getString("large", null));
+        assertEquals("abc", prefs.getString("session", null));
+        assertNull(prefs.getString("gone", null));
+        assertEquals(Arrays.asList("a", "b", "c"), prefs.getListPage("log", 0, 10, String.class));
+    }
+
+    private static byte[] export(SqlPreferences prefs, String key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(RECORDS, prefs.exportTo(out, key));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip_underAnotherKey() throws Exception {
+        SqlPreferences source = open("src", new SqlPreferences.Options().setSecretKey(KEY_A));
+        fill(source);
+        byte[] exported = export(source, KEY_A);
+
+        SqlPreferences target = open("dst", new SqlPreferences.Options().setSecretKey(KEY_B));
+        assertEquals(RECORDS, target.importFrom(new ByteArrayInputStream(exported), KEY_A));
+        assertTrue(target.flush());
+        assertFilled(target);
+    }
+
+    @Test
+    public void roundTrip_inTheClear() throws Exception {
+        SqlPreferences source = open("src_clear", new SqlPreferences.Options().setSecretKey(KEY_A));
+        fill(source);
+        byte[] exported = export(source, null);
+
+        SqlPreferences target = open("dst_clear", new SqlPreferences.Options().setEncryption(false));
+        assertEquals(RECORDS, target.importFrom(new ByteArrayInputStream(exported), null));
+        assertTrue(target.flush());
+        assertFilled(target);
+    }
+
+    @Test
+    public void import_replacesExistingKeysAndKeepsOthers() throws Exception {
+        SqlPreferences source = open("src_merge", new SqlPreferences.Options().setSecretKey(KEY_A));
+        fill(source);
+        byte[] exported = export(source, KEY_A);
+
+        SqlPreferences target = open("dst_merge", new SqlPreferences.Options().setSecretKey(KEY_A));
+        target.putString("name", "Zed").putString("other", "kept");
+        assertTrue(target.commit());
+        target.appendToList("log", "z");
+        assertEquals(RECORDS, target.importFrom(new ByteArrayInputStream(exported)));
+        assertTrue(target.flush());
+
+        assertEquals("Ann", target.getString("name", null));
+        assertEquals("kept", target.getString("other", null));
+        // Row list elements are appended after the ones already there
+        assertEquals(Arrays.asList("z", "a", "b", "c"), target.getListPage("log", 0, 10, String.class));
+    }
+
+    @Test(expected = IOException.class)
+    public void import_wrongKeyFails() throws Exception {
+        SqlPreferences source = open("src_wrong", new SqlPreferences.Options().setSecretKey(KEY_A));
+        fill(source);
+        byte[] exported = export(source, KEY_A);
+
+        open("dst_wrong", new SqlPreferences.Options().setSecretKey(KEY_B))
+                .importFrom(new ByteArrayInputStream(exported), KEY_B);
+    }
+
+    @Test
+    public void export_unreadableRowFails() throws Exception {
+        SqlPreferences source = open("src_unreadable", new SqlPreferences.Options().setSecretKey(KEY_A));
+        assertTrue(source.putString("name", "Ann").commit());
+        source.close();
+        opened.remove(source);
+
+        // Same file, another key: the row cannot be decrypted
+        SqlPreferences reopened = SqlPreferences.open(context, "export_src_unreadable", new SqlPreferences.Options().setSecretKey(KEY_B));
+        opened.add(reopened);
+        try {
+            reopened.exportTo(new ByteArrayOutputStream(), KEY_B);
+            fail("A row that cannot be read must fail the export");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("name"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void import_notAnExportFails() throws Exception {
+        open("dst_garbage", new SqlPreferences.Options().setEncryption(false))
+                .importFrom(new ByteArrayInputStream("not an export".getBytes()), null);
+    }
+}
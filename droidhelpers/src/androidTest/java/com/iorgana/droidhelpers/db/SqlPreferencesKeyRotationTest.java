@@ -0,0 +1,160 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: rotateKey() re-encrypts every row under the new key,
+ * and the store stays readable while it runs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesKeyRotationTest {
+    private static final String DATABASE = "sql_preferences.db";
+    private static final String OLD_KEY = "RotationOldKey16";
+    private static final String NEW_KEY = "RotationNewKey16";
+    private static final int KEYS = 1_000;
+
+    private Context context;
+    private String savedSecretKey;
+    private boolean savedEncryption;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        savedSecretKey = SqlPreferences.SECRET_KEY;
+        savedEncryption = SqlPreferences.ENABLE_ENCRYPTION;
+        SqlPreferences.SECRET_KEY = OLD_KEY;
+        SqlPreferences.ENABLE_ENCRYPTION = true;
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        SqlPreferences.SECRET_KEY = savedSecretKey;
+        SqlPreferences.ENABLE_ENCRYPTION = savedEncryption;
+        context.deleteDatabase(DATABASE);
+    }
+
+    // A new instance on the same file, with the given key
+    private SqlPreferences reopen(String secretKey) {
+        SqlPreferences.SECRET_KEY = secretKey;
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    private void fill() {
+        for (int i = 0; i < KEYS; i++) {
+            prefs.putString("key:" + i, "value " + i);
+        }
+        assertTrue(prefs.commit());
+        for (String element : new String[]{"a", "b", "c"}) {
+            prefs.appendToList("log", element);
+        }
+        assertTrue(prefs.flush());
+    }
+
+    private static void assertFilled(SqlPreferences store) {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value " + i, store.getString("key:" + i, null));
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), store.getListPage("log", 0, 10, String.class));
+    }
+
+    @Test
+    public void rotation_reencryptsEveryRow() throws Exception {
+        fill();
+        assertTrue(prefs.rotateKey(NEW_KEY).get(60, TimeUnit.SECONDS));
+        assertFalse(prefs.isKeyRotationRunning());
+
+        assertFilled(reopen(NEW_KEY));
+        // Nothing is left under the old key
+        assertNull(reopen(OLD_KEY).getString("key:0", null));
+    }
+
+    @Test
+    public void store_isUsableWhileRotating() throws Exception {
+        fill();
+        CompletableFuture<Boolean> rotation = prefs.rotateKey(NEW_KEY);
+        assertTrue(prefs.putString("fresh", "new").commit());
+        assertFilled(prefs);
+
+        assertTrue(rotation.get(60, TimeUnit.SECONDS));
+        SqlPreferences reopened = reopen(NEW_KEY);
+        assertFilled(reopened);
+        assertEquals("new", reopened.getString("fresh", null));
+    }
+
+    @Test
+    public void rotation_resumesAfterClose() throws Exception {
+        String name = "rotation_resume_test";
+        String database = "sql_preferences_" + name + ".db";
+        context.deleteDatabase(database);
+        SqlPreferences store = SqlPreferences.open(context, name, new SqlPreferences.Options().setSecretKey(OLD_KEY));
+        for (int i = 0; i < 5 * KEYS; i++) {
+            store.putString("key:" + i, "value " + i);
+        }
+        assertTrue(store.commit());
+
+        // Closed before the first chunks ran: the rotation is left in the meta table
+        store.rotateKey(NEW_KEY);
+        store.close();
+        assertTrue(store.isKeyRotationRunning());
+
+        SqlPreferences reopened = SqlPreferences.open(context, name, new SqlPreferences.Options().setSecretKey(NEW_KEY));
+        try {
+            assertEquals("value 0", reopened.getString("key:0", null));
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (reopened.isKeyRotationRunning() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertFalse(reopened.isKeyRotationRunning());
+        } finally {
+            reopened.close();
+        }
+
+        // Every row is under the new key, and the old one reads nothing
+        reopened = SqlPreferences.open(context, name, new SqlPreferences.Options().setSecretKey(NEW_KEY));
+        for (int i = 0; i < 5 * KEYS; i++) {
+            assertEquals("value " + i, reopened.getString("key:" + i, null));
+        }
+        assertFalse(reopened.isKeyRotationRunning());
+        reopened.close();
+        SqlPreferences old = SqlPreferences.open(context, name, new SqlPreferences.Options().setSecretKey(OLD_KEY));
+        assertNull(old.getString("key:0", null));
+        old.close();
+        context.deleteDatabase(database);
+    }
+
+    @Test
+    public void sameKey_completesAtOnce() throws Exception {
+        assertTrue(prefs.rotateKey(OLD_KEY).get(10, TimeUnit.SECONDS));
+        assertFalse(prefs.isKeyRotationRunning());
+    }
+
+    @Test
+    public void encryptionDisabled_doesNotRotate() throws Exception {
+        SqlPreferences.ENABLE_ENCRYPTION = false;
+        SqlPreferences plain = reopen(OLD_KEY);
+        assertFalse(plain.rotateKey(NEW_KEY).get(10, TimeUnit.SECONDS));
+        plain.close();
+    }
+}
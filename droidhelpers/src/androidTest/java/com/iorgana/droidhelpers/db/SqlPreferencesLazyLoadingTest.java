@@ -0,0 +1,121 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a lazy store preloads nothing, reads a key on its
+ * first use, remembers the keys that are not there, and reads an evicted
+ * key again from the disk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesLazyLoadingTest {
+    private static final String NAME = "lazy_loading_test";
+    private static final String DATABASE = "sql_preferences_" + NAME + ".db";
+    private static final int MAX_ENTRIES = 10;
+    private static final int KEYS = 100;
+
+    private Context context;
+    private SqlPreferences store;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        store = open(false);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences open(boolean lazy) {
+        return SqlPreferences.open(context, NAME, new SqlPreferences.Options()
+                .setEncryption(false)
+                .setLazyLoading(lazy)
+                .setLazyCacheMaxEntries(MAX_ENTRIES));
+    }
+
+    // Close the store and open it again, lazy
+    private void reopenLazy() {
+        store.close();
+        store = open(true);
+    }
+
+    private void fill() {
+        for (int i = 0; i < KEYS; i++) {
+            store.putString("key:" + i, "value " + i);
+        }
+        assertTrue(store.commit());
+    }
+
+    @Test
+    public void key_isReadOnFirstUse() {
+        fill();
+        reopenLazy();
+        assertTrue(store.cache.isEmpty());
+
+        assertEquals("value 7", store.getString("key:7", null));
+        assertEquals("value 7", store.cache.get("key:7"));
+        assertEquals(1, store.cache.size());
+    }
+
+    @Test
+    public void missingKey_isCachedAsAbsent() {
+        reopenLazy();
+        assertEquals("default", store.getString("missing", "default"));
+        Object cached = store.cache.get("missing");
+        assertNotNull(cached);
+        assertFalse(cached instanceof String);
+
+        // A write replaces the cached absence
+        assertTrue(store.putString("missing", "found").commit());
+        assertEquals("found", store.getString("missing", null));
+        reopenLazy();
+        assertEquals("found", store.getString("missing", null));
+    }
+
+    @Test
+    public void evictedKey_isReadAgain() {
+        fill();
+        reopenLazy();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value " + i, store.getString("key:" + i, null));
+        }
+        assertTrue(store.cache.size() <= MAX_ENTRIES);
+        assertNull(store.cache.get("key:0"));
+
+        assertEquals("value 0", store.getString("key:0", null));
+        assertEquals("value 0", store.cache.get("key:0"));
+    }
+
+    @Test
+    public void evictedPendingWrite_isStillRead() {
+        reopenLazy();
+        store.setFlushDelay(60_000).setFlushThreshold(10 * KEYS);
+        fill();
+        for (int i = 0; i < KEYS; i++) {
+            store.putString("key:" + i, "new " + i).apply();
+        }
+        assertTrue(store.cache.size() <= MAX_ENTRIES);
+        // Evicted before the flush: read from the pending writes
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("new " + i, store.getString("key:" + i, null));
+        }
+
+        reopenLazy();
+        assertEquals("new 0", store.getString("key:0", null));
+        assertEquals("new " + (KEYS - 1), store.getString("key:" + (KEYS - 1), null));
+    }
+}
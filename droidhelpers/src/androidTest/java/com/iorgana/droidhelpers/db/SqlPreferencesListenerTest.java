@@ -0,0 +1,113 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a listener is called once per change, with the
+ * changed keys under the prefixes it was registered for.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesListenerTest {
+    private static final String DATABASE = "sql_preferences.db";
+    // Runs the listener inside apply()/remove()/clear()
+    private static final Executor DIRECT = Runnable::run;
+
+    private Context context;
+    private SqlPreferences prefs;
+    private final List<Set<String>> calls = new ArrayList<>();
+    private final SqlPreferences.OnChangeListener listener = (preferences, changedKeys) -> calls.add(changedKeys);
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        prefs.unregisterListener(listener);
+        // Let the writer finish before the file is deleted
+        prefs.setFlushThreshold(1);
+        prefs.remove("flush");
+        SqlPreferences.executors.submit(() -> {}).get(10, TimeUnit.SECONDS);
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private static Set<String> keys(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    @Test
+    public void apply_notifiesOnceWithTheMatchingKeys() {
+        prefs.registerListener("feed:", DIRECT, listener);
+        prefs.putString("feed:1", "a").putString("feed:2", "b").putString("user:1", "c").apply();
+
+        assertEquals(1, calls.size());
+        assertEquals(keys("feed:1", "feed:2"), calls.get(0));
+    }
+
+    @Test
+    public void unrelatedKeys_doNotNotify() {
+        prefs.registerListener("feed:", DIRECT, listener);
+        prefs.putString("user:1", "c").apply();
+        prefs.remove("user:1");
+
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void remove_notifiesTheKey() {
+        prefs.registerListener("feed:1", DIRECT, listener);
+        prefs.remove("feed:1");
+
+        assertEquals(Collections.singletonList(keys("feed:1")), calls);
+    }
+
+    @Test
+    public void clear_notifiesWithNoKeys() {
+        prefs.registerListener("feed:", DIRECT, listener);
+        prefs.clear();
+
+        assertEquals(Collections.singletonList(Collections.<String>emptySet()), calls);
+    }
+
+    @Test
+    public void severalPrefixes_stillOneCall() {
+        prefs.registerListener("feed:", DIRECT, listener);
+        prefs.registerListener("user:", DIRECT, listener);
+        prefs.putString("feed:1", "a").putString("user:1", "b").apply();
+
+        assertEquals(Collections.singletonList(keys("feed:1", "user:1")), calls);
+    }
+
+    @Test
+    public void unregister_stopsNotifications() {
+        prefs.registerListener("", DIRECT, listener);
+        prefs.unregisterListener(listener);
+        prefs.putString("feed:1", "a").apply();
+
+        assertTrue(calls.isEmpty());
+    }
+}
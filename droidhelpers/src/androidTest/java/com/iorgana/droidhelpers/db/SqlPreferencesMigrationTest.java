@@ -0,0 +1,191 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: a database written by an older version of the
+ * library opens with every value intact, through all the onUpgrade() steps.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesMigrationTest {
+    private static final String KEY = "MigrationTestKey";
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private String savedSecretKey;
+    private boolean savedEncryption;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        savedSecretKey = SqlPreferences.SECRET_KEY;
+        savedEncryption = SqlPreferences.ENABLE_ENCRYPTION;
+        context.deleteDatabase(DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        SqlPreferences.SECRET_KEY = savedSecretKey;
+        SqlPreferences.ENABLE_ENCRYPTION = savedEncryption;
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SQLiteDatabase createDatabase(int version, boolean primaryKey) {
+        File file = context.getDatabasePath(DATABASE);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL("CREATE TABLE " + SqlPreferences.TABLE_NAME + " ("
+                + SqlPreferences.COLUMN_KEY + " TEXT" + (primaryKey ? " PRIMARY KEY" : "") + ", "
+                + SqlPreferences.COLUMN_DATA_TYPE + " TEXT, "
+                + SqlPreferences.COLUMN_DATA_VALUE + " TEXT)");
+        db.setVersion(version);
+        return db;
+    }
+
+    // Same row as the old insertMap(): class name, String.valueOf(), Base64 if encrypted
+    private static void insertRow(SQLiteDatabase db, String key, Object value, boolean encrypted) {
+        ContentValues cv = new ContentValues();
+        cv.put(SqlPreferences.COLUMN_KEY, key);
+        cv.put(SqlPreferences.COLUMN_DATA_TYPE, value.getClass().getSimpleName());
+        String text = String.valueOf(value);
+        cv.put(SqlPreferences.COLUMN_DATA_VALUE, encrypted ? CryptoUtil.cipherEncrypt(text, KEY) : text);
+        db.insert(SqlPreferences.TABLE_NAME, null, cv);
+    }
+
+    private static void insertValues(SQLiteDatabase db, boolean encrypted) {
+        insertRow(db, "name", "Ann", encrypted);
+        insertRow(db, "count", 5, encrypted);
+        insertRow(db, "flag", true, encrypted);
+        insertRow(db, "ratio", 0.5f, encrypted);
+        insertRow(db, "big", 12345678901L, encrypted);
+    }
+
+    private static void assertValues(SqlPreferences prefs) {
+        assertEquals("Ann", prefs.getString("name", null));
+        assertEquals(Integer.valueOf(5), prefs.getInt("count", null));
+        assertEquals(Boolean.TRUE, prefs.getBoolean("flag", null));
+        assertEquals(Float.valueOf(0.5f), prefs.getFloat("ratio", null));
+        assertEquals(Long.valueOf(12345678901L), prefs.getLong("big", null));
+    }
+
+    private SqlPreferences open(boolean encrypted) {
+        SqlPreferences.SECRET_KEY = KEY;
+        SqlPreferences.ENABLE_ENCRYPTION = encrypted;
+        SqlPreferences prefs = new SqlPreferences(context);
+        prefs.initSync();
+        return prefs;
+    }
+
+    @Test
+    public void version1_plain_lastDuplicateWins() {
+        try (SQLiteDatabase db = createDatabase(1, false)) {
+            // Version 1 appended a row on every apply()
+            insertRow(db, "count", 1, false);
+            insertValues(db, false);
+        }
+
+        SqlPreferences prefs = open(false);
+        assertValues(prefs);
+        assertEquals(5, prefs.getAll().size());
+        prefs.close();
+    }
+
+    @Test
+    public void version1_encrypted() {
+        try (SQLiteDatabase db = createDatabase(1, false)) {
+            insertValues(db, true);
+        }
+
+        SqlPreferences prefs = open(true);
+        assertValues(prefs);
+        prefs.close();
+    }
+
+    @Test
+    public void version2_plain() {
+        try (SQLiteDatabase db = createDatabase(2, true)) {
+            insertValues(db, false);
+        }
+
+        SqlPreferences prefs = open(false);
+        assertValues(prefs);
+        prefs.close();
+    }
+
+    @Test
+    public void version2_encrypted() {
+        try (SQLiteDatabase db = createDatabase(2, true)) {
+            insertValues(db, true);
+        }
+
+        SqlPreferences prefs = open(true);
+        assertValues(prefs);
+        prefs.close();
+    }
+
+    @Test
+    public void version2_encrypted_openedWithEncryptionOff() {
+        try (SQLiteDatabase db = createDatabase(2, true)) {
+            insertValues(db, true);
+        }
+
+        // The key still decrypts them: flagged encrypted, read back
+        SqlPreferences prefs = open(false);
+        assertValues(prefs);
+        prefs.close();
+    }
+
+    @Test
+    public void version2_mixedRows_eachKeepsItsKind() {
+        String note = "A plain note, longer than any ciphertext threshold.";
+        try (SQLiteDatabase db = createDatabase(2, true)) {
+            // Encryption was switched on after these were written
+            insertRow(db, "note", note, false);
+            insertRow(db, "pin", 1234, false);
+            insertValues(db, true);
+        }
+
+        SqlPreferences prefs = open(true);
+        assertValues(prefs);
+        assertEquals(note, prefs.getString("note", null));
+        assertEquals(Integer.valueOf(1234), prefs.getInt("pin", null));
+        prefs.close();
+    }
+
+    @Test
+    public void migratedStore_acceptsNewWrites() {
+        try (SQLiteDatabase db = createDatabase(2, true)) {
+            insertValues(db, true);
+        }
+
+        SqlPreferences prefs = open(true);
+        prefs.putString("name", "Bob").putIntArray("ids", new int[]{1, 2, 3});
+        assertTrue(prefs.commit());
+        prefs.appendToList("log", "first");
+        assertTrue(prefs.flush());
+
+        SqlPreferences reopened = open(true);
+        assertEquals("Bob", reopened.getString("name", null));
+        assertArrayEquals(new int[]{1, 2, 3}, reopened.getIntArray("ids", null));
+        assertEquals(1, reopened.listSize("log"));
+        assertEquals(Long.valueOf(12345678901L), reopened.getLong("big", null));
+        reopened.close();
+        prefs.close();
+    }
+}
@@ -0,0 +1,78 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: open() keeps one store per name until close(), which
+ * writes what is pending and lets the next open() start a new store.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesNamedStoreTest {
+    private static final String NAME = "named_store_test";
+    private static final String DATABASE = "sql_preferences_" + NAME + ".db";
+
+    private Context context;
+    private SqlPreferences store;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        store = open();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences open() {
+        return SqlPreferences.open(context, NAME, new SqlPreferences.Options().setEncryption(false));
+    }
+
+    @Test
+    public void open_returnsTheSameStoreUntilClosed() {
+        assertSame(store, open());
+        assertEquals(NAME, store.getStoreName());
+
+        store.close();
+        SqlPreferences reopened = open();
+        assertNotSame(store, reopened);
+        store = reopened;
+    }
+
+    @Test
+    public void close_writesWhatIsPending() {
+        store.setFlushDelay(60_000).setFlushThreshold(1_000);
+        store.putString("name", "Ann").apply();
+        store.appendToList("log", "a");
+        store.close();
+
+        store = open();
+        assertEquals("Ann", store.getString("name", null));
+        assertEquals(1, store.getListPage("log", 0, 10, String.class).size());
+    }
+
+    @Test
+    public void closedStore_rejectsWrites() {
+        SqlPreferences closed = store;
+        closed.close();
+        assertFalse(closed.putString("name", "Ann").commit());
+        assertFalse(closed.flush());
+        closed.close();
+
+        store = open();
+        assertNull(store.getString("name", null));
+    }
+}
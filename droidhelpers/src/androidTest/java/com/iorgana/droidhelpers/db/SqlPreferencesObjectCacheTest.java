@@ -0,0 +1,112 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: shared reads go through the Object Cache, and an
+ * entry is served only until its key changes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesObjectCacheTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    public static class Point {
+        int x;
+        int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Let the writer finish before the file is deleted
+        prefs.setFlushThreshold(1);
+        prefs.remove("flush");
+        SqlPreferences.executors.submit(() -> {}).get(10, TimeUnit.SECONDS);
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void shared_sameInstanceUntilTheKeyChanges() {
+        prefs.setObjectCacheSize(64 * 1024);
+        prefs.putObject("point", new Point(1, 2)).apply();
+
+        Point first = prefs.getObject("point", Point.class, true);
+        assertNotNull(first);
+        assertSame(first, prefs.getObject("point", Point.class, true));
+        assertEquals(1, prefs.getObjectCacheMissCount());
+        assertEquals(1, prefs.getObjectCacheHitCount());
+
+        prefs.putObject("point", new Point(3, 4)).apply();
+        Point changed = prefs.getObject("point", Point.class, true);
+        assertNotSame(first, changed);
+        assertEquals(3, changed.x);
+        assertEquals(1, first.x);
+    }
+
+    @Test
+    public void copy_isNewOnEveryCall() {
+        prefs.setObjectCacheSize(64 * 1024);
+        prefs.putObject("point", new Point(1, 2)).apply();
+
+        Point copy = prefs.getObject("point", Point.class, false);
+        assertNotSame(copy, prefs.getObject("point", Point.class, false));
+        assertNotSame(copy, prefs.getObject("point", Point.class));
+        assertEquals(0, prefs.getObjectCacheHitCount() + prefs.getObjectCacheMissCount());
+    }
+
+    @Test
+    public void disabledCache_returnsCopies() {
+        prefs.putObject("point", new Point(1, 2)).apply();
+        assertNotSame(prefs.getObject("point", Point.class, true), prefs.getObject("point", Point.class, true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedList_isUnmodifiable() {
+        prefs.setObjectCacheSize(64 * 1024);
+        prefs.putListObject("names", Arrays.asList("a", "b")).apply();
+
+        List<String> names = prefs.getListObject("names", String.class, true);
+        assertEquals(Arrays.asList("a", "b"), names);
+        names.add("c");
+    }
+
+    @Test
+    public void remove_dropsTheEntry() {
+        prefs.setObjectCacheSize(64 * 1024);
+        prefs.putObject("point", new Point(1, 2)).apply();
+        assertNotNull(prefs.getObject("point", Point.class, true));
+
+        prefs.removeObject("point");
+        assertNull(prefs.getObject("point", Point.class, true));
+    }
+}
@@ -0,0 +1,125 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: keys(), getAllWithPrefix() and removePrefix() see
+ * the changes not flushed yet, and the range delete reaches the disk,
+ * with the full cache and with a lazy one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesPrefixTest {
+    private static final String NAME = "prefix_test";
+    private static final String DATABASE = "sql_preferences_" + NAME + ".db";
+
+    private Context context;
+    private SqlPreferences store;
+    private boolean lazy;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        context.deleteDatabase(DATABASE);
+    }
+
+    // A new file, with the full cache or a lazy one of 2 entries
+    private void start(boolean lazy) {
+        tearDown();
+        this.lazy = lazy;
+        store = open();
+        store.putString("feed:1:a", "1a")
+                .putString("feed:1:b", "1b")
+                .putString("feed:2:a", "2a")
+                .putString("other", "o");
+        assertTrue(store.commit());
+        reopen();
+    }
+
+    private SqlPreferences open() {
+        return SqlPreferences.open(context, NAME, new SqlPreferences.Options()
+                .setEncryption(false)
+                .setLazyLoading(lazy)
+                .setLazyCacheMaxEntries(2));
+    }
+
+    private void reopen() {
+        store.close();
+        store = open();
+    }
+
+    @Test
+    public void prefix_readsTheMatchingKeys() {
+        for (boolean mode : new boolean[]{false, true}) {
+            start(mode);
+            assertEquals(Arrays.asList("feed:1:a", "feed:1:b", "feed:2:a"), store.keys("feed:"));
+            assertEquals(Arrays.asList("feed:1:a", "feed:1:b"), store.keys("feed:1:"));
+            assertEquals(Collections.emptyList(), store.keys("none:"));
+
+            Map<String, String> values = store.getAllWithPrefix("feed:1:");
+            assertEquals(Arrays.asList("feed:1:a", "feed:1:b"), Arrays.asList(values.keySet().toArray()));
+            assertEquals("1b", values.get("feed:1:b"));
+        }
+    }
+
+    @Test
+    public void prefix_seesChangesNotFlushed() {
+        for (boolean mode : new boolean[]{false, true}) {
+            start(mode);
+            store.setFlushDelay(60_000).setFlushThreshold(1_000);
+            store.putString("feed:1:c", "1c").apply();
+            store.remove("feed:1:a");
+
+            assertEquals(Arrays.asList("feed:1:b", "feed:1:c"), store.keys("feed:1:"));
+            Map<String, String> values = store.getAllWithPrefix("feed:1:");
+            assertEquals(2, values.size());
+            assertEquals("1c", values.get("feed:1:c"));
+            assertFalse(values.containsKey("feed:1:a"));
+
+            reopen();
+            assertEquals(Arrays.asList("feed:1:b", "feed:1:c"), store.keys("feed:1:"));
+        }
+    }
+
+    @Test
+    public void removePrefix_deletesTheRange() {
+        for (boolean mode : new boolean[]{false, true}) {
+            start(mode);
+            store.setFlushDelay(60_000).setFlushThreshold(1_000);
+            store.removePrefix("feed:1:");
+            // Written after the range delete: kept
+            store.putString("feed:1:z", "1z").apply();
+
+            assertEquals(Arrays.asList("feed:1:z", "feed:2:a"), store.keys("feed:"));
+            assertNull(store.getString("feed:1:a", null));
+            assertEquals("1z", store.getString("feed:1:z", null));
+            assertTrue(store.flush());
+
+            reopen();
+            assertEquals(Arrays.asList("feed:1:z", "feed:2:a"), store.keys("feed:"));
+            assertNull(store.getString("feed:1:b", null));
+            assertEquals("o", store.getString("other", null));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: row lists append, page and trim element by element,
+ * before and after the appends reach the disk.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesRowListTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    public static class Point {
+        int x;
+        int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    private void appendNumbers(int count) {
+        for (int i = 0; i < count; i++) {
+            prefs.appendToList("log", String.valueOf(i));
+        }
+    }
+
+    @Test
+    public void pages_inAppendOrder() {
+        appendNumbers(10);
+        assertTrue(prefs.flush());
+
+        SqlPreferences reopened = reopen();
+        assertEquals(10, reopened.listSize("log"));
+        assertEquals(Arrays.asList("0", "1", "2"), reopened.getListPage("log", 0, 3, String.class));
+        assertEquals(Arrays.asList("8", "9"), reopened.getListPage("log", 8, 5, String.class));
+        assertEquals(Collections.emptyList(), reopened.getListPage("log", 10, 5, String.class));
+    }
+
+    @Test
+    public void appendsNotFlushed_areRead() {
+        prefs.setFlushDelay(60_000);
+        appendNumbers(3);
+
+        assertEquals(3, prefs.listSize("log"));
+        assertEquals(Arrays.asList("0", "1", "2"), prefs.getListPage("log", 0, 10, String.class));
+    }
+
+    @Test
+    public void trim_keepsTheNewest() {
+        appendNumbers(10);
+        prefs.trimList("log", 3);
+
+        assertEquals(3, prefs.listSize("log"));
+        assertEquals(Arrays.asList("7", "8", "9"), prefs.getListPage("log", 0, 10, String.class));
+        assertTrue(prefs.flush());
+        assertEquals(Arrays.asList("7", "8", "9"), reopen().getListPage("log", 0, 10, String.class));
+
+        prefs.appendToList("log", "10");
+        assertEquals(Arrays.asList("8", "9", "10"), prefs.getListPage("log", 1, 10, String.class));
+    }
+
+    @Test
+    public void emptiedList_isReadAgainAfterTheFlush() {
+        appendNumbers(10);
+        assertTrue(prefs.flush());
+        prefs.trimList("log", 0);
+        assertEquals(0, prefs.listSize("log"));
+        // The flush deletes the rows and drops the window of the list
+        assertTrue(prefs.flush());
+
+        prefs.appendToList("log", "a");
+        prefs.appendToList("log", "b");
+        assertEquals(Arrays.asList("a", "b"), prefs.getListPage("log", 0, 10, String.class));
+        assertTrue(prefs.flush());
+        assertEquals(Arrays.asList("a", "b"), reopen().getListPage("log", 0, 10, String.class));
+
+        prefs.clear();
+        assertTrue(prefs.flush());
+        prefs.appendToList("log", "c");
+        assertEquals(Collections.singletonList("c"), prefs.getListPage("log", 0, 10, String.class));
+        assertTrue(prefs.flush());
+        assertEquals(Collections.singletonList("c"), reopen().getListPage("log", 0, 10, String.class));
+    }
+
+    @Test
+    public void objects_roundTrip() {
+        prefs.appendToList("points", new Point(1, 2));
+        prefs.appendToList("points", new Point(3, 4));
+        assertTrue(prefs.flush());
+
+        List<Point> points = reopen().getListPage("points", 0, 10, Point.class);
+        assertEquals(2, points.size());
+        assertEquals(3, points.get(1).x);
+        assertEquals(4, points.get(1).y);
+    }
+
+    @Test
+    public void clear_emptiesLists() {
+        appendNumbers(3);
+        assertTrue(prefs.flush());
+        prefs.clear();
+        assertTrue(prefs.flush());
+
+        assertEquals(0, prefs.listSize("log"));
+        assertEquals(0, reopen().listSize("log"));
+    }
+}
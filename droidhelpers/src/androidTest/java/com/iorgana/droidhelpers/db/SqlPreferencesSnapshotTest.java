@@ -0,0 +1,141 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: the snapshot file written after the flushes settle is
+ * what the next instance loads, and only while it matches the table.
+ * ------------------------------------------------------------------------
+ * - A second instance of the same file, as the next process would make
+ *   it, comes from the default-store constructor.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesSnapshotTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private final List<SqlPreferences> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        SqlPreferences.ENABLE_SNAPSHOT = true;
+        SqlPreferences.LAZY_LOADING = false;
+        context.deleteDatabase(DATABASE);
+        snapshotFile().delete();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // A snapshot still scheduled would land in the next test's file
+        Thread.sleep(SqlPreferences.SNAPSHOT_DELAY_MS + 1_000);
+        for (SqlPreferences prefs : opened) {
+            prefs.flush();
+            prefs.close();
+        }
+        context.deleteDatabase(DATABASE);
+        snapshotFile().delete();
+    }
+
+    private File snapshotFile() {
+        return new File(context.getDatabasePath(DATABASE).getPath() + "-snapshot");
+    }
+
+    private SqlPreferences newInstance() {
+        SqlPreferences prefs = new SqlPreferences(context, null);
+        opened.add(prefs);
+        prefs.initSync();
+        return prefs;
+    }
+
+    private void awaitSnapshotAfter(long modified) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SqlPreferences.SNAPSHOT_DELAY_MS + 10_000;
+        File file = snapshotFile();
+        while (!(file.isFile() && file.lastModified() > modified)) {
+            assertTrue("no snapshot written", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    private SqlPreferences writeValuesAndSnapshot() throws InterruptedException {
+        long before = snapshotFile().lastModified();
+        SqlPreferences prefs = newInstance();
+        prefs.putString("name", "Ann")
+                .putInt("count", 5)
+                .putIntArray("ids", new int[]{1, 2, 3})
+                .putString("session", "abc", 60_000);
+        assertTrue(prefs.commit());
+        prefs.appendToList("log", "first");
+        assertTrue(prefs.flush());
+        awaitSnapshotAfter(before);
+        return prefs;
+    }
+
+    private static void assertValues(SqlPreferences prefs) {
+        assertEquals("Ann", prefs.getString("name", null));
+        assertEquals(Integer.valueOf(5), prefs.getInt("count", null));
+        assertArrayEquals(new int[]{1, 2, 3}, prefs.getIntArray("ids", null));
+        assertEquals("abc", prefs.getString("session", null));
+    }
+
+    @Test
+    public void snapshot_roundTripsValues() throws Exception {
+        writeValuesAndSnapshot();
+
+        SqlPreferences reopened = newInstance();
+        assertValues(reopened);
+        // Row lists are not in the snapshot, they are read from their table
+        assertEquals(1, reopened.listSize("log"));
+    }
+
+    @Test
+    public void snapshot_isReadInsteadOfTheTable() throws Exception {
+        SqlPreferences prefs = writeValuesAndSnapshot();
+
+        // Behind the store's back: the generation does not change
+        prefs.getWritableDatabase().delete(SqlPreferences.TABLE_NAME,
+                SqlPreferences.COLUMN_KEY + " = ?", new String[]{"name"});
+
+        assertEquals("Ann", newInstance().getString("name", null));
+    }
+
+    @Test
+    public void staleSnapshot_isIgnored() throws Exception {
+        SqlPreferences prefs = writeValuesAndSnapshot();
+
+        // The next snapshot is SNAPSHOT_DELAY_MS away: until then the file
+        // is the old one, at an older generation
+        prefs.putString("name", "Bob");
+        assertTrue(prefs.commit());
+
+        assertEquals("Bob", newInstance().getString("name", null));
+    }
+
+    @Test
+    public void damagedSnapshot_fallsBackToTheTable() throws Exception {
+        writeValuesAndSnapshot();
+
+        File file = snapshotFile();
+        long length = file.length();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[(int) Math.min(length, 4096)]);
+        }
+
+        assertValues(newInstance());
+    }
+}
@@ -0,0 +1,165 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: values above the spill size go to their own files,
+ * read back the same, and their files go with the rows that name them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesSpillTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+    private int compressMinBytes;
+    private int spillMinBytes;
+    private String large;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        deleteFiles();
+        compressMinBytes = SqlPreferences.COMPRESS_MIN_BYTES;
+        spillMinBytes = SqlPreferences.SPILL_MIN_BYTES;
+        SqlPreferences.COMPRESS_MIN_BYTES = 0;
+        SqlPreferences.SPILL_MIN_BYTES = 16 * 1024;
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+
+        Random random = new Random(24);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 64 * 1024) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        large = builder.toString();
+    }
+
+    @After
+    public void tearDown() {
+        prefs.flush();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+        deleteFiles();
+        SqlPreferences.COMPRESS_MIN_BYTES = compressMinBytes;
+        SqlPreferences.SPILL_MIN_BYTES = spillMinBytes;
+    }
+
+    private File spillDir() {
+        return new File(new File(context.getFilesDir(), "sql_preferences_spill"), DATABASE);
+    }
+
+    private String[] files() {
+        String[] names = spillDir().list();
+        return names != null ? names : new String[0];
+    }
+
+    private void deleteFiles() {
+        for (String name : files()) {
+            new File(spillDir(), name).delete();
+        }
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void largeValue_isSpilledAndReadBack() {
+        assertTrue(prefs.putString("large", large).putString("small", "1").commit());
+        assertEquals(1, files().length);
+        assertEquals(large, prefs.getString("large", null));
+
+        SqlPreferences reopened = reopen();
+        assertEquals(large, reopened.getString("large", null));
+        assertEquals("1", reopened.getString("small", null));
+        assertTrue(reopened.getAll().containsKey("large"));
+    }
+
+    @Test
+    public void overwrite_deletesTheOldFile() {
+        assertTrue(prefs.putString("large", large).commit());
+        String[] before = files();
+        assertEquals(1, before.length);
+
+        assertTrue(prefs.putString("large", large + "!").commit());
+        String[] after = files();
+        assertEquals(1, after.length);
+        assertNotEquals(before[0], after[0]);
+        assertEquals(large + "!", reopen().getString("large", null));
+
+        // Small again: back in its row
+        assertTrue(prefs.putString("large", "small").commit());
+        assertEquals(0, files().length);
+        assertEquals("small", reopen().getString("large", null));
+    }
+
+    @Test
+    public void removeAndClear_deleteTheFiles() {
+        assertTrue(prefs.putString("a", large).putString("b", large).commit());
+        assertEquals(2, files().length);
+
+        prefs.remove("a");
+        assertTrue(prefs.flush());
+        assertEquals(1, files().length);
+
+        prefs.clear();
+        assertTrue(prefs.flush());
+        assertEquals(0, files().length);
+        assertNull(reopen().getString("b", null));
+    }
+
+    @Test
+    public void valueAbove16Mb_isExportedAndImported() throws Exception {
+        // Above the old export limit: only spill files can hold it
+        StringBuilder builder = new StringBuilder(17 * 1024 * 1024);
+        while (builder.length() < 17 * 1024 * 1024) {
+            builder.append(large);
+        }
+        String huge = builder.toString();
+        assertTrue(prefs.putString("huge", huge).commit());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, prefs.exportTo(out));
+        prefs.clear();
+        assertTrue(prefs.flush());
+        assertEquals(1, prefs.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(prefs.flush());
+        assertEquals(huge, reopen().getString("huge", null));
+    }
+
+    @Test
+    public void orphanFile_isDeletedAtInit() throws Exception {
+        assertTrue(prefs.putString("large", large).commit());
+        File orphan = new File(spillDir(), "orphan");
+        try (FileOutputStream out = new FileOutputStream(orphan)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        SqlPreferences reopened = reopen();
+        // The orphan sweep runs on the writer, before this flush
+        assertTrue(reopened.flush());
+        assertFalse(orphan.exists());
+        assertEquals(1, files().length);
+        assertEquals(large, reopened.getString("large", null));
+    }
+}
@@ -0,0 +1,118 @@
+package com.iorgana.droidhelpers.db;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test: apply(), remove() and clear() are merged into one
+ * pending map, and the writer flushes each key once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlPreferencesWriteQueueTest {
+    private static final String DATABASE = "sql_preferences.db";
+
+    private Context context;
+    private SqlPreferences prefs;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        prefs = new SqlPreferences(context);
+        prefs.initSync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Do not leave a delayed flush behind for the next test's file
+        prefs.setFlushThreshold(1);
+        prefs.remove("flush");
+        awaitWriter();
+        prefs.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    // The writer runs one task at a time: a task queued after a due flush
+    // runs once that flush is done
+    private static void awaitWriter() throws Exception {
+        SqlPreferences.executors.submit(() -> {}).get(10, TimeUnit.SECONDS);
+    }
+
+    // Reached the threshold: the waiting flush is moved to run now
+    private void flushNow() throws Exception {
+        prefs.setFlushThreshold(1);
+        prefs.putString("flush", "now").apply();
+        awaitWriter();
+    }
+
+    private SqlPreferences reopen() {
+        SqlPreferences reopened = new SqlPreferences(context);
+        reopened.initSync();
+        return reopened;
+    }
+
+    @Test
+    public void sameKey_isWrittenOnce() throws Exception {
+        prefs.setFlushDelay(60_000).setFlushThreshold(1_000);
+        for (int i = 0; i < 100; i++) {
+            prefs.putInt("counter", i).apply();
+        }
+        assertEquals(1, prefs.getPendingWriteCount());
+
+        flushNow();
+        assertEquals(0, prefs.getPendingWriteCount());
+        // 101 changes, 2 rows
+        assertEquals(101 / 2.0, prefs.getCoalescingRatio(), 0.0);
+        assertEquals(Integer.valueOf(99), reopen().getInt("counter", null));
+    }
+
+    @Test
+    public void removeAfterPut_lastChangeWins() throws Exception {
+        prefs.setFlushDelay(60_000).setFlushThreshold(1_000);
+        prefs.putString("a", "1").putString("b", "1").apply();
+        prefs.remove("a");
+        prefs.putString("b", "2").apply();
+        assertEquals(2, prefs.getPendingWriteCount());
+
+        flushNow();
+        SqlPreferences reopened = reopen();
+        assertNull(reopened.getString("a", null));
+        assertEquals("2", reopened.getString("b", null));
+    }
+
+    @Test
+    public void clear_dropsEarlierChangesOnly() throws Exception {
+        prefs.setFlushDelay(0);
+        prefs.putString("stored", "1").apply();
+        awaitWriter();
+
+        prefs.setFlushDelay(60_000).setFlushThreshold(1_000);
+        prefs.putString("pending", "1").apply();
+        prefs.clear();
+        prefs.putString("after", "1").apply();
+        assertEquals(1, prefs.getPendingWriteCount());
+
+        flushNow();
+        SqlPreferences reopened = reopen();
+        assertNull(reopened.getString("stored", null));
+        assertNull(reopened.getString("pending", null));
+        assertEquals("1", reopened.getString("after", null));
+    }
+
+    @Test
+    public void ratio_isOneBeforeAnyWrite() {
+        assertEquals(1.0, prefs.getCoalescingRatio(), 0.0);
+        assertEquals(0, prefs.getPendingWriteCount());
+    }
+}
@@ -10,6 +10,7 @@ import com.orhanobut.logger.Logger;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 
@@ -48,17 +49,24 @@ public class CryptoUtil {
     // GCM authentication tag length is 16 bytes (128 bits)
     private static final int GCM_TAG_LENGTH = 128;
 
+    // Shared source of IVs. SecureRandom is thread-safe, and seeding a new
+    // one on every call costs more than the encryption of a small value.
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
     /**
      * ************************************************************************
      * deriveKey()
      * ************************************************************************
      * - Derive a robust 256-bit AES key from any given string using SHA-256.
+     * - When encrypting or decrypting many values with the same key, derive
+     *   it once and use the SecretKeySpec overloads, instead of hashing the
+     *   key again on every call.
      * ------------------------------------------------------------------------
      * @param key The input string to derive the key from.
      * @return A SecretKeySpec for AES encryption.
      * @throws NoSuchAlgorithmException if SHA-256 is not available.
      */
-    private static SecretKeySpec deriveKey(String key) throws NoSuchAlgorithmException {
+    public static SecretKeySpec deriveKey(String key) throws NoSuchAlgorithmException {
         // Hashing the string ensures we always get a valid 32-byte (256-bit) key,
         // mitigating the risk of short or poorly-sized passwords.
         // Note: For true password-based encryption, PBKDF2/HKDF with a stored random salt is preferred.
@@ -79,13 +87,32 @@ public class CryptoUtil {
      */
     public static byte[] cipherEncrypt(byte[] plainBytes, final String key) {
         try {
-            SecretKeySpec skeySpec = deriveKey(key);
+            return cipherEncrypt(plainBytes, deriveKey(key));
+        } catch (Exception e) {
+            Logger.e(TAG + " cipherEncrypt(): unable to encrypt bytes: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * cipherEncrypt() (Bytes, Derived Key)
+     * ************************************************************************
+     * - Same as cipherEncrypt(byte[], String), with a key already derived by
+     *   deriveKey().
+     * ------------------------------------------------------------------------
+     * @param plainBytes Bytes data to be encrypted.
+     * @param skeySpec   The derived encryption key.
+     * @return Byte array containing [IV (12 bytes)] + [Ciphertext].
+     */
+    public static byte[] cipherEncrypt(byte[] plainBytes, final SecretKeySpec skeySpec) {
+        try {
             Cipher cipher = Cipher.getInstance(CIPHER_TRANS);
 
             // Generate a random IV for every encryption call (prevents deterministic patterns)
             byte[] iv = new byte[GCM_IV_LENGTH];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(iv);
+            SECURE_RANDOM.nextBytes(iv);
 
             GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
             cipher.init(Cipher.ENCRYPT_MODE, skeySpec, gcmSpec);
@@ -116,12 +143,32 @@ public class CryptoUtil {
      * @return Decrypted data.
      */
     public static byte[] cipherDecrypt(byte[] cipherBytes, final String key) {
+        try {
+            return cipherDecrypt(cipherBytes, deriveKey(key));
+        } catch (Exception e) {
+            Logger.e(TAG + " cipherDecrypt(): unable to decrypt bytes: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * cipherDecrypt() (Bytes, Derived Key)
+     * ************************************************************************
+     * - Same as cipherDecrypt(byte[], String), with a key already derived by
+     *   deriveKey().
+     * ------------------------------------------------------------------------
+     * @param cipherBytes Byte array containing [IV (12 bytes)] + [Ciphertext].
+     * @param skeySpec    Must be derived from the key used for encryption.
+     * @return Decrypted data.
+     */
+    public static byte[] cipherDecrypt(byte[] cipherBytes, final SecretKeySpec skeySpec) {
         try {
             if (cipherBytes == null || cipherBytes.length < GCM_IV_LENGTH) {
                 throw new IllegalArgumentException("Invalid cipher bytes: Too short to contain IV");
             }
 
-            SecretKeySpec skeySpec = deriveKey(key);
             Cipher cipher = Cipher.getInstance(CIPHER_TRANS);
 
             // Extract the 12-byte IV from the front of the payload
@@ -138,6 +185,45 @@ public class CryptoUtil {
         return null;
     }
 
+    /**
+     * ************************************************************************
+     * cipherDecrypt() (Buffer, Derived Key)
+     * ************************************************************************
+     * - Same as cipherDecrypt(byte[], SecretKeySpec), reading the remaining
+     *   bytes of a buffer, e.g. a memory-mapped file, without copying them
+     *   into an array first.
+     * - The position of the buffer is not changed.
+     * ------------------------------------------------------------------------
+     * @param cipherBuffer Buffer containing [IV (12 bytes)] + [Ciphertext].
+     * @param skeySpec     Must be derived from the key used for encryption.
+     * @return Decrypted data.
+     */
+    public static byte[] cipherDecrypt(ByteBuffer cipherBuffer, final SecretKeySpec skeySpec) {
+        try {
+            if (cipherBuffer == null || cipherBuffer.remaining() < GCM_IV_LENGTH) {
+                throw new IllegalArgumentException("Invalid cipher bytes: Too short to contain IV");
+            }
+            ByteBuffer input = cipherBuffer.duplicate();
+
+            // Extract the 12-byte IV from the front of the payload
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            input.get(iv);
+
+            Cipher cipher = Cipher.getInstance(CIPHER_TRANS);
+            cipher.init(Cipher.DECRYPT_MODE, skeySpec, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+
+            // Decrypt the remaining bytes
+            ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(input.remaining()));
+            int length = cipher.doFinal(input, output);
+            byte[] plain = output.array();
+            return (length == plain.length) ? plain : Arrays.copyOf(plain, length);
+
+        } catch (Exception e) {
+            Logger.e(TAG + " cipherDecrypt(): unable to decrypt buffer: " + e.getMessage());
+        }
+        return null;
+    }
+
     /**
      * ************************************************************************
      * cipherEncrypt() (String)
@@ -0,0 +1,70 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ************************************************************************
+ * PackedArrays (Package-Private)
+ * ************************************************************************
+ * - Primitive arrays to and from packed little-endian bytes, the BLOB
+ *   format of SqlPreferences int[]/long[]/double[] values.
+ * - Bulk copies through a ByteBuffer view: no boxing, no per-element call,
+ *   one array allocated each way.
+ * - Little-endian on purpose: it is the order of every Android ABI, and
+ *   it is on the disk, so it must never depend on the device.
+ */
+final class PackedArrays {
+
+    private PackedArrays() {
+    }
+
+    static byte[] pack(int[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] pack(long[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] pack(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(values);
+        return buffer.array();
+    }
+
+    /**
+     * ************************************************************************
+     * unpackInts() / unpackLongs() / unpackDoubles()
+     * ************************************************************************
+     * @param bytes Bytes written by pack().
+     * @return The array, or null if the length is not a whole number of
+     *         elements (truncated or foreign data).
+     */
+    static @Nullable int[] unpackInts(byte[] bytes) {
+        if (bytes.length % Integer.BYTES != 0) return null;
+        int[] values = new int[bytes.length / Integer.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values);
+        return values;
+    }
+
+    static @Nullable long[] unpackLongs(byte[] bytes) {
+        if (bytes.length % Long.BYTES != 0) return null;
+        long[] values = new long[bytes.length / Long.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(values);
+        return values;
+    }
+
+    static @Nullable double[] unpackDoubles(byte[] bytes) {
+        if (bytes.length % Double.BYTES != 0) return null;
+        double[] values = new double[bytes.length / Double.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,413 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * ************************************************************************
+ * PreferencesCache (Package-Private)
+ * ************************************************************************
+ * - In-memory cache behind SqlPreferences.
+ * - Unbounded: a plain ConcurrentHashMap, reads take no lock. Used when
+ *   the whole table is preloaded, which is the default.
+ * - Bounded: an access-ordered LinkedHashMap that drops the least recently
+ *   used entries once maxEntries or maxBytes is exceeded. Used in lazy
+ *   mode, where keys are faulted in one by one and the cache must not grow
+ *   with the store, and whenever a memory budget is set.
+ * - Bounded entries are weighed in bytes, see weigh(). A value heavier
+ *   than maxValueBytes is not cached at all: put() drops the key instead,
+ *   and the caller reads it from the disk on each use.
+ * - Unbounded also keeps a sorted index of its keys, so a key prefix is a
+ *   range of the index instead of a scan of every key. Writes update both
+ *   under the index lock, reads of single keys stay lock-free.
+ * ------------------------------------------------------------------------
+ * @implNote Values must not be null, same as ConcurrentHashMap.
+ */
+final class PreferencesCache {
+    // Estimated cost of an entry besides its chars and elements: the map
+    // entry, the key String and the value object headers
+    private static final int ENTRY_OVERHEAD = 64;
+    // Boxed Integer, Long, Float, Double or Boolean
+    private static final int BOXED_BYTES = 16;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxValueBytes;
+    // Weight of the bounded entries, guarded by lru
+    private long totalBytes;
+    private final ConcurrentHashMap<String, Object> unbounded;
+    private final ConcurrentSkipListSet<String> keyIndex;
+    private final LinkedHashMap<String, Object> lru;
+
+    /**
+     * ************************************************************************
+     * PreferencesCache (Constructor)
+     * ************************************************************************
+     * @param maxEntries    Number of entries to keep, or 0 for no limit.
+     * @param maxBytes      Weight of the entries to keep, or 0 for no limit.
+     * @param maxValueBytes Heaviest value that is cached, or 0 for no limit.
+     *                      Only applies when bounded.
+     */
+    PreferencesCache(int maxEntries, long maxBytes, int maxValueBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxValueBytes = maxValueBytes;
+        if (maxEntries <= 0 && maxBytes <= 0) {
+            this.unbounded = new ConcurrentHashMap<>();
+            this.keyIndex = new ConcurrentSkipListSet<>();
+            this.lru = null;
+        } else {
+            this.unbounded = null;
+            this.keyIndex = null;
+            this.lru = new LinkedHashMap<>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * isBounded()
+     * ************************************************************************
+     * @return true if entries can be evicted.
+     */
+    boolean isBounded() {
+        return lru != null;
+    }
+
+    @Nullable
+    Object get(String key) {
+        if (lru == null) return unbounded.get(key);
+        synchronized (lru) {
+            return lru.get(key);
+        }
+    }
+
+    void put(String key, Object value) {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                unbounded.put(key, value);
+                keyIndex.add(key);
+            }
+            return;
+        }
+        synchronized (lru) {
+            if (tooLarge(value)) {
+                removeWeighed(key);
+                return;
+            }
+            Object old = lru.put(key, value);
+            if (old != null) totalBytes -= weigh(key, old);
+            totalBytes += weigh(key, value);
+            trimTo(budget());
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * putIfAbsent()
+     * ************************************************************************
+     * - Used by loaders, so a value read from the disk never overwrites a
+     *   newer one that was put while the read was running.
+     */
+    void putIfAbsent(String key, Object value) {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                unbounded.putIfAbsent(key, value);
+                keyIndex.add(key);
+            }
+            return;
+        }
+        synchronized (lru) {
+            if (tooLarge(value) || lru.containsKey(key)) return;
+            lru.put(key, value);
+            totalBytes += weigh(key, value);
+            trimTo(budget());
+        }
+    }
+
+    void putAll(Map<String, ?> values) {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                unbounded.putAll(values);
+                keyIndex.addAll(values.keySet());
+            }
+            return;
+        }
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * replace()
+     * ************************************************************************
+     * - Put value only if key still holds expected (compared by identity for
+     *   objects without equals(), such as Deflated and Spilled).
+     */
+    void replace(String key, Object expected, Object value) {
+        if (lru == null) {
+            unbounded.replace(key, expected, value);
+            return;
+        }
+        synchronized (lru) {
+            if (lru.get(key) != expected) return;
+            if (tooLarge(value)) {
+                // A Spilled marker stays: the next read goes to its file,
+                // not back to the database
+                if (!(expected instanceof PreferencesSpill.Spilled)) removeWeighed(key);
+                return;
+            }
+            lru.put(key, value);
+            totalBytes += weigh(key, value) - weigh(key, expected);
+            trimTo(budget());
+        }
+    }
+
+    void remove(String key) {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                unbounded.remove(key);
+                keyIndex.remove(key);
+            }
+            return;
+        }
+        synchronized (lru) {
+            removeWeighed(key);
+        }
+    }
+
+    void clear() {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                unbounded.clear();
+                keyIndex.clear();
+            }
+            return;
+        }
+        synchronized (lru) {
+            lru.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * copy()
+     * ************************************************************************
+     * @return A copy of every cached entry (sentinels included).
+     */
+    Map<String, Object> copy() {
+        if (lru == null) return new HashMap<>(unbounded);
+        synchronized (lru) {
+            return new HashMap<>(lru);
+        }
+    }
+
+    boolean isEmpty() {
+        if (lru == null) return unbounded.isEmpty();
+        synchronized (lru) {
+            return lru.isEmpty();
+        }
+    }
+
+    int size() {
+        if (lru == null) return unbounded.size();
+        synchronized (lru) {
+            return lru.size();
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * keysWithPrefix()
+     * ************************************************************************
+     * - Unbounded: a range of the sorted key index.
+     * - Bounded: a scan of the cached keys, which is at most maxEntries. Only
+     *   what is cached is returned, the caller reads the disk for the rest.
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     * @return The matching keys, sorted when unbounded.
+     */
+    List<String> keysWithPrefix(String prefix) {
+        List<String> keys = new ArrayList<>();
+        if (lru == null) {
+            String end = prefixEnd(prefix);
+            NavigableSet<String> range = (end == null)
+                    ? keyIndex.tailSet(prefix, true)
+                    : keyIndex.subSet(prefix, true, end, false);
+            for (String key : range) {
+                if (key.startsWith(prefix)) keys.add(key);
+            }
+            return keys;
+        }
+        synchronized (lru) {
+            for (String key : lru.keySet()) {
+                if (key.startsWith(prefix)) keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * ************************************************************************
+     * removePrefix()
+     * ************************************************************************
+     * - Remove every cached key that starts with prefix.
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     * @return The removed keys.
+     */
+    List<String> removePrefix(String prefix) {
+        if (lru == null) {
+            synchronized (keyIndex) {
+                List<String> keys = keysWithPrefix(prefix);
+                for (String key : keys) {
+                    unbounded.remove(key);
+                    keyIndex.remove(key);
+                }
+                return keys;
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        synchronized (lru) {
+            Iterator<Map.Entry<String, Object>> iterator = lru.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Object> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    keys.add(entry.getKey());
+                    totalBytes -= weigh(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * ************************************************************************
+     * trimToBytes()
+     * ************************************************************************
+     * - Drop least recently used entries until the cache weighs at most
+     *   maxBytes. Once, the budget itself is unchanged: the cache may grow
+     *   back as keys are read again.
+     * - Does nothing when unbounded, every key must stay in memory there.
+     * ------------------------------------------------------------------------
+     * @param maxBytes The weight to keep, 0 to empty the cache.
+     */
+    void trimToBytes(long maxBytes) {
+        if (lru == null) return;
+        synchronized (lru) {
+            trimTo(Math.max(0, maxBytes));
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * weightBytes()
+     * ************************************************************************
+     * @return Estimated weight of the cached entries, 0 when unbounded (not
+     *         tracked).
+     */
+    long weightBytes() {
+        if (lru == null) return 0;
+        synchronized (lru) {
+            return totalBytes;
+        }
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * ************************************************************************
+     * trimTo() (Private)
+     * ************************************************************************
+     * - Evict from the eldest (least recently used) end while over the
+     *   entry limit or over bytes. Must hold lru.
+     * ------------------------------------------------------------------------
+     * @param bytes The weight to keep.
+     */
+    private void trimTo(long bytes) {
+        Iterator<Map.Entry<String, Object>> iterator = lru.entrySet().iterator();
+        while (iterator.hasNext()
+                && ((maxEntries > 0 && lru.size() > maxEntries) || totalBytes > bytes)) {
+            Map.Entry<String, Object> eldest = iterator.next();
+            totalBytes -= weigh(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private long budget() {
+        return maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    private void removeWeighed(String key) {
+        Object old = lru.remove(key);
+        if (old != null) totalBytes -= weigh(key, old);
+    }
+
+    private boolean tooLarge(Object value) {
+        return maxValueBytes > 0 && valueBytes(value) > maxValueBytes;
+    }
+
+    /**
+     * ************************************************************************
+     * weigh()
+     * ************************************************************************
+     * - Estimated heap size of an entry: 2 bytes per char of the key and of
+     *   a String value, the element size of an array, plus fixed overheads.
+     * - Cached values never change (arrays are copied in and out), so the
+     *   weight of an entry is computed again on removal instead of stored.
+     * ------------------------------------------------------------------------
+     * @return The weight in bytes.
+     */
+    static long weigh(String key, Object value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + valueBytes(value);
+    }
+
+    static long valueBytes(Object value) {
+        if (value instanceof String) return 2L * ((String) value).length();
+        if (value instanceof int[]) return (long) Integer.BYTES * ((int[]) value).length;
+        if (value instanceof long[]) return (long) Long.BYTES * ((long[]) value).length;
+        if (value instanceof double[]) return (long) Double.BYTES * ((double[]) value).length;
+        if (value instanceof PreferencesCompression.Deflated) return ((PreferencesCompression.Deflated) value).bytes.length;
+        // Only the file name is in memory
+        if (value instanceof PreferencesSpill.Spilled) return 2L * ((PreferencesSpill.Spilled) value).name.length();
+        return BOXED_BYTES;
+    }
+
+    /**
+     * ************************************************************************
+     * prefixEnd()
+     * ************************************************************************
+     * - Smallest string above every string that starts with prefix, for a
+     *   [prefix, end) range, in Java and in SQLite (UTF-8 BINARY) order.
+     * - The last char that is not a surrogate, and does not become one, is
+     *   incremented and what follows is dropped. Both orders agree on such
+     *   chars (UTF-8 sorts by code point, UTF-16 only differs on surrogates).
+     *   The range may then hold a few keys that do not match, callers
+     *   filter with startsWith() (or instr() in SQL).
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     * @return The exclusive end, or null if the range has no upper bound.
+     */
+    static @Nullable String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c < 0xD7FF || (c >= 0xE000 && c < 0xFFFF)) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ************************************************************************
+ * PreferencesCompression (Package-Private)
+ * ************************************************************************
+ * - Deflate for SqlPreferences values, flagged FLAG_COMPRESSED in their
+ *   Type Code. A compressed value is compressed before it is encrypted:
+ *   ciphertext does not compress.
+ * - Layout: [original length, 4 bytes big-endian][raw deflate stream]. The
+ *   length lets inflate() allocate once, and reject a stream that would
+ *   inflate to anything else (damage, or a deflate bomb).
+ * - MAX_INFLATED_BYTES bounds both sides: deflate() leaves a larger value
+ *   plain, so everything it wrote can be read back by inflate().
+ */
+final class PreferencesCompression {
+    // Largest value compressed, see Spill Files for larger ones
+    static final int MAX_INFLATED_BYTES = 64 * 1024 * 1024;
+
+    private PreferencesCompression() {
+    }
+
+    /**
+     * ************************************************************************
+     * Deflated
+     * ************************************************************************
+     * - A value still compressed, as the preload leaves it in the cache
+     *   until the key is first read.
+     * - Compared by identity, so a cache entry is only replaced by its
+     *   inflated value if it is still this one.
+     */
+    static final class Deflated {
+        // Type Code, without flags
+        final int type;
+        // Written by deflate(), already decrypted
+        final byte[] bytes;
+
+        Deflated(int type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * deflate()
+     * ************************************************************************
+     * @param plain The bytes to compress.
+     * @return The compressed bytes, or null if they would not be smaller
+     *         or plain is above MAX_INFLATED_BYTES (store plain as it is
+     *         then, without the flag).
+     */
+    static @Nullable byte[] deflate(byte[] plain) {
+        if (plain.length > MAX_INFLATED_BYTES) return null;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + 16);
+            out.write(ByteBuffer.allocate(Integer.BYTES).putInt(plain.length).array(), 0, Integer.BYTES);
+            byte[] buffer = new byte[Math.min(8192, plain.length + 64)];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+                if (out.size() >= plain.length) return null;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * inflate()
+     * ************************************************************************
+     * @param compressed Bytes written by deflate().
+     * @return The original bytes, or null if damaged.
+     */
+    static @Nullable byte[] inflate(byte[] compressed) {
+        if (compressed.length < Integer.BYTES) return null;
+        int length = ByteBuffer.wrap(compressed).getInt();
+        if (length < 0 || length > MAX_INFLATED_BYTES) return null;
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+            byte[] plain = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(plain, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+            return (read == length) ? plain : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * ************************************************************************
+ * PreferencesCounters (Package-Private)
+ * ************************************************************************
+ * - The increment()/addAndGet() counters of a SqlPreferences, held as
+ *   base + LongAdder: threads add to striped cells, no lock and no write
+ *   per call.
+ * - A changed counter is marked dirty. drainDirty() hands the total of
+ *   each dirty counter to the store, which writes it like any put, so a
+ *   counter hit 10k times a minute costs a few row writes per minute.
+ * - A put___(), remove(), removePrefix() or clear() of the key replaces
+ *   the counter: the store drops it here, and the next add() starts from
+ *   the stored value. An add() that raced the drop is done again on the
+ *   new counter.
+ * - A counter keeps the type of the stored number (Integer, Long, Float
+ *   or Double, Long for a new key): get() and drainDirty() return its
+ *   total in that type, so getInt() still reads a putInt() key, and the
+ *   row keeps its type. An Integer total wraps like an int.
+ * - Reads and adds take no lock. The stored value is read without it
+ *   too, since it may come from the disk. The counter is then made, and
+ *   the dirty ones drained, under the lock of the store (its
+ *   pendingLock), so neither races a write of the same key. writes moves
+ *   with every write that drops counters: a counter is never made from a
+ *   value replaced while it was read.
+ */
+final class PreferencesCounters {
+
+    private static final class Counter {
+        final long base;
+        // The stored number, or null: its type is kept by the total
+        final @Nullable Number stored;
+        final LongAdder adder = new LongAdder();
+        volatile boolean dirty;
+
+        Counter(@Nullable Number stored) {
+            this.stored = stored;
+            this.base = (stored != null) ? stored.longValue() : 0;
+        }
+
+        long get() {
+            return base + adder.sum();
+        }
+
+        Number value() {
+            long total = get();
+            if (stored instanceof Integer) return (int) total;
+            if (stored instanceof Float) return (float) total;
+            if (stored instanceof Double) return (double) total;
+            return total;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Object lock;
+    private final Function<String, Object> stored;
+    private final Runnable onCreated;
+    // Guarded by lock
+    private long writes;
+
+    /**
+     * ************************************************************************
+     * PreferencesCounters (Constructor)
+     * ************************************************************************
+     * @param lock      The store lock, held to make a counter.
+     * @param stored    The stored value of a key, read without lock when
+     *                  its counter is made.
+     * @param onCreated Called under lock after a counter is made, to make
+     *                  sure the drain is scheduled.
+     */
+    PreferencesCounters(Object lock, Function<String, Object> stored, Runnable onCreated) {
+        this.lock = lock;
+        this.stored = stored;
+        this.onCreated = onCreated;
+    }
+
+    boolean isEmpty() {
+        return counters.isEmpty();
+    }
+
+    /**
+     * ************************************************************************
+     * get()
+     * ************************************************************************
+     * - Lock-free read, increments not drained yet included.
+     * ------------------------------------------------------------------------
+     * @param key The full storage key.
+     * @return The counter value in the stored type, or null if the key has
+     *         no counter.
+     */
+    @Nullable
+    Number get(String key) {
+        if (counters.isEmpty()) {
+            return null;
+        }
+        Counter counter = counters.get(key);
+        return (counter != null) ? counter.value() : null;
+    }
+
+    /**
+     * ************************************************************************
+     * add()
+     * ************************************************************************
+     * - Add delta to the counter of key, and mark it dirty.
+     * - A put___(), remove() or clear() may drop the counter between
+     *   counter() and the add: the delta then went to a counter nobody
+     *   drains anymore. Seen after the add, and done again on the counter
+     *   that replaced it, made from the new stored value.
+     * ------------------------------------------------------------------------
+     * @param key   The full storage key.
+     * @param delta The amount to add.
+     * @return The counter value after the addition.
+     */
+    long add(String key, long delta) {
+        while (true) {
+            Counter counter = counter(key);
+            counter.adder.add(delta);
+            counter.dirty = true;
+            if (counters.get(key) == counter) {
+                return counter.get();
+            }
+        }
+    }
+
+    // The counter of key, made from the stored value on first use
+    private Counter counter(String key) {
+        while (true) {
+            Counter counter = counters.get(key);
+            if (counter != null) {
+                return counter;
+            }
+            long stamp;
+            synchronized (lock) {
+                stamp = writes;
+            }
+            // May read the disk: never under lock
+            Object item = stored.apply(key);
+            synchronized (lock) {
+                counter = counters.get(key);
+                if (counter != null) {
+                    return counter;
+                }
+                if (writes != stamp) {
+                    // A write may have replaced item while it was read
+                    continue;
+                }
+                counter = new Counter((item instanceof Number) ? (Number) item : null);
+                counters.put(key, counter);
+                onCreated.run();
+                return counter;
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * drainDirty()
+     * ************************************************************************
+     * - The total of each dirty counter, which is no longer dirty. Caller
+     *   must hold the store lock.
+     * - The dirty flag is cleared before the total is read, so an add that
+     *   races the read marks it dirty again for the next round.
+     * ------------------------------------------------------------------------
+     * @return Key to total in the stored type, empty if nothing changed.
+     */
+    Map<String, Object> drainDirty() {
+        Map<String, Object> totals = new HashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            if (!counter.dirty) {
+                continue;
+            }
+            counter.dirty = false;
+            totals.put(entry.getKey(), counter.value());
+        }
+        return totals;
+    }
+
+    // Drop counters replaced by a write: the next add() starts from it.
+    // Caller must hold the store lock
+    void remove(String key) {
+        writes++;
+        counters.remove(key);
+    }
+
+    void removeAll(Collection<String> keys) {
+        writes++;
+        if (!counters.isEmpty()) {
+            counters.keySet().removeAll(keys);
+        }
+    }
+
+    void removePrefix(String prefix) {
+        writes++;
+        counters.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    void clear() {
+        writes++;
+        counters.clear();
+    }
+}
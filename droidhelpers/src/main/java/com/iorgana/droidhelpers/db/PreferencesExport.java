@@ -0,0 +1,343 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesExport (Package-Private)
+ * ************************************************************************
+ * - exportTo() and importFrom() of a SqlPreferences, see there for what
+ *   they do. This class holds the stream format and the paging.
+ * - Stateless: every call is given the store it reads or writes.
+ */
+final class PreferencesExport {
+
+    /**
+     * Export Format
+     * ------------------------------------------------------------------------
+     * - Stream of exportTo()/importFrom(): [EXPORT_MAGIC][EXPORT_FORMAT] then
+     *   records, each [kind] then its fields, until RECORD_END:
+     *   . RECORD_ENTRY: [key][type][expiresAt, 0 for none][value]
+     *   . RECORD_LIST: [list key][list index][type][value]
+     * - Strings and values are [int length][bytes], big-endian. A value is
+     *   the plainBytes() of it, or their [IV + Ciphertext] under the export
+     *   key, flagged FLAG_ENCRYPTED in its Type Code.
+     * - Rows are read EXPORT_PAGE_ROWS at a time and written IMPORT_CHUNK_ROWS
+     *   per transaction, so neither side holds more than one page or chunk.
+     * - A value has no size limit but the int length, same as a spilled
+     *   value in the store: anything exportTo() wrote can be imported. A
+     *   value above IMPORT_READ_BYTES is read that much at a time, so a
+     *   damaged length runs into the end of the stream instead of
+     *   allocating what it claims.
+     */
+    private static final int EXPORT_MAGIC = 0x53515058; // "SQPX"
+    private static final byte EXPORT_FORMAT = 1;
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_LIST = 2;
+    private static final int EXPORT_PAGE_ROWS = 256;
+    private static final int IMPORT_CHUNK_ROWS = 500;
+    private static final int IMPORT_READ_BYTES = 1024 * 1024;
+
+    private PreferencesExport() {
+    }
+
+    /**
+     * ************************************************************************
+     * exportTo()
+     * ************************************************************************
+     * - SqlPreferences.exportTo(out, exportKey) of store.
+     */
+    static long exportTo(SqlPreferences store, OutputStream out, @Nullable String exportKey) throws IOException {
+        if(!store.flush()){
+            throw new IOException("Pending writes could not be flushed");
+        }
+        SecretKeySpec storeKey = store.getKeySpec();
+        PreferencesKeyRotation.RetiredKey retired = store.rotation.retiredKey;
+        SecretKeySpec targetKey = deriveExportKey(exportKey);
+        boolean sameKey = targetKey!=null && storeKey!=null && Arrays.equals(targetKey.getEncoded(), storeKey.getEncoded());
+        int flag = (targetKey!=null) ? SqlPreferences.FLAG_ENCRYPTED : 0;
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(EXPORT_MAGIC);
+        data.writeByte(EXPORT_FORMAT);
+        long count = 0;
+        SQLiteDatabase db = store.getDatabase();
+
+        // Key-value rows, one page after the last key
+        String now = String.valueOf(System.currentTimeMillis());
+        String lastKey = null;
+        int rows;
+        do {
+            rows = 0;
+            try (Cursor cursor = db.rawQuery("SELECT " + SqlPreferences.COLUMN_KEY + ", " + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE + ", " + SqlPreferences.COLUMN_EXPIRES_AT
+                    + " FROM " + store.tableName + " WHERE " + SqlPreferences.NOT_EXPIRED + (lastKey!=null ? " AND " + SqlPreferences.COLUMN_KEY + " > ?" : "")
+                    + " ORDER BY " + SqlPreferences.COLUMN_KEY + " LIMIT " + EXPORT_PAGE_ROWS,
+                    lastKey!=null ? new String[]{now, lastKey} : new String[]{now})) {
+                while(cursor.moveToNext()){
+                    rows++;
+                    lastKey = cursor.getString(0);
+                    int typeCode = cursor.getInt(1);
+                    Object stored = SqlPreferences.readColumn(cursor, 2);
+                    if((typeCode & SqlPreferences.FLAG_SPILLED)!=0){
+                        // Exported inline, the file is read in its place
+                        stored = store.spills.column(typeCode, stored);
+                        typeCode &= ~SqlPreferences.FLAG_SPILLED;
+                    }
+                    byte[] bytes = exportBytes(typeCode, stored, storeKey, retired, targetKey, sameKey);
+                    if(bytes==null){
+                        throw new IOException("Cannot export " + lastKey + ": its value cannot be read or encrypted");
+                    }
+                    data.writeByte(RECORD_ENTRY);
+                    writeExportBytes(data, lastKey.getBytes(StandardCharsets.UTF_8));
+                    data.writeInt((typeCode & SqlPreferences.TYPE_MASK) | flag);
+                    data.writeLong(cursor.isNull(3) ? 0 : cursor.getLong(3));
+                    writeExportBytes(data, bytes);
+                    count++;
+                }
+            }
+        } while(rows==EXPORT_PAGE_ROWS);
+
+        // Row list elements, one page after the last (list key, index)
+        String lastList = null;
+        long lastIndex = 0;
+        do {
+            rows = 0;
+            try (Cursor cursor = db.rawQuery("SELECT " + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + ", " + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + store.listTableName
+                    + (lastList!=null ? " WHERE (" + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + ") > (?, ?)" : "")
+                    + " ORDER BY " + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + " LIMIT " + EXPORT_PAGE_ROWS,
+                    lastList!=null ? new String[]{lastList, String.valueOf(lastIndex)} : null)) {
+                while(cursor.moveToNext()){
+                    rows++;
+                    lastList = cursor.getString(0);
+                    lastIndex = cursor.getLong(1);
+                    int typeCode = cursor.getInt(2);
+                    byte[] bytes = exportBytes(typeCode, SqlPreferences.readColumn(cursor, 3), storeKey, retired, targetKey, sameKey);
+                    if(bytes==null){
+                        throw new IOException("Cannot export element " + lastIndex + " of the list " + lastList + ": it cannot be read or encrypted");
+                    }
+                    data.writeByte(RECORD_LIST);
+                    writeExportBytes(data, lastList.getBytes(StandardCharsets.UTF_8));
+                    data.writeLong(lastIndex);
+                    data.writeInt((typeCode & SqlPreferences.TYPE_MASK) | flag);
+                    writeExportBytes(data, bytes);
+                    count++;
+                }
+            }
+        } while(rows==EXPORT_PAGE_ROWS);
+
+        data.writeByte(RECORD_END);
+        data.flush();
+        return count;
+    }
+
+    /**
+     * ************************************************************************
+     * importFrom()
+     * ************************************************************************
+     * - SqlPreferences.importFrom(in, importKey) of store.
+     */
+    static long importFrom(SqlPreferences store, InputStream in, @Nullable String importKey) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(data.readInt()!=EXPORT_MAGIC || data.readByte()!=EXPORT_FORMAT){
+            throw new IOException("Not a SqlPreferences export");
+        }
+        SecretKeySpec sourceKey = deriveExportKey(importKey);
+        long now = System.currentTimeMillis();
+        long count = 0;
+        int listOps = 0;
+        Map<String, Object> chunk = new HashMap<>();
+        while(true){
+            byte kind = data.readByte();
+            if(kind==RECORD_END){
+                break;
+            }
+            if(kind==RECORD_ENTRY){
+                String key = new String(readExportBytes(data), StandardCharsets.UTF_8);
+                int typeCode = data.readInt();
+                long expiresAt = data.readLong();
+                Object value = importValue(typeCode, readExportBytes(data), sourceKey);
+                if(expiresAt > 0 && expiresAt <= now){
+                    continue;
+                }
+                chunk.put(key, (expiresAt > 0) ? new SqlPreferences.Expiring(value, expiresAt) : value);
+                if(chunk.size() >= IMPORT_CHUNK_ROWS){
+                    commitImport(store, chunk);
+                    chunk = new HashMap<>();
+                }
+            }
+            else if(kind==RECORD_LIST){
+                String listKey = new String(readExportBytes(data), StandardCharsets.UTF_8);
+                // The list index is given again by appendListJson()
+                data.readLong();
+                int typeCode = data.readInt();
+                Object json = importValue(typeCode, readExportBytes(data), sourceKey);
+                if(!(json instanceof String)){
+                    throw new IOException("Invalid list element of " + listKey);
+                }
+                if(!store.appendListJson(listKey, (String) json)){
+                    throw new IOException("Cannot append to the list " + listKey);
+                }
+                if(++listOps >= IMPORT_CHUNK_ROWS){
+                    commitImport(store, chunk);
+                    chunk = new HashMap<>();
+                    listOps = 0;
+                }
+            }
+            else {
+                throw new IOException("Unknown record kind: " + kind);
+            }
+            count++;
+        }
+        commitImport(store, chunk);
+        return count;
+    }
+
+    /**
+     * ************************************************************************
+     * commitImport() (Private)
+     * ************************************************************************
+     * - Write one import chunk (and the list appends made since the last
+     *   one) and wait for its transaction.
+     * ------------------------------------------------------------------------
+     * @param chunk Key to value or SqlPreferences.Expiring, may be empty.
+     * @throws IOException if it was rejected or not written.
+     */
+    private static void commitImport(SqlPreferences store, Map<String, Object> chunk) throws IOException {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if(!store.enqueueWrites(chunk, future)){
+            throw new IOException("Import chunk rejected by the write queue limit");
+        }
+        if(!chunk.isEmpty()){
+            store.notifyListeners(chunk.keySet());
+        }
+        if(!store.await(future)){
+            throw new IOException("Import chunk could not be written");
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * exportBytes() (Private)
+     * ************************************************************************
+     * - One stored value as exportTo() writes it.
+     * ------------------------------------------------------------------------
+     * @param typeCode  The stored Type Code, with flags.
+     * @param stored    The value read by SqlPreferences.readColumn().
+     * @param storeKey  The key of this store, null if it cannot be derived.
+     * @param retired   The key being rotated away from, if any.
+     * @param targetKey The export key, null for the clear.
+     * @param sameKey   true if the store key and the export key are the same.
+     * @return The bytes, or null if the stored value cannot be read (missing
+     *         spill file, another key) or encrypted.
+     */
+    private static @Nullable byte[] exportBytes(int typeCode, @Nullable Object stored, @Nullable SecretKeySpec storeKey,
+                                                @Nullable PreferencesKeyRotation.RetiredKey retired, @Nullable SecretKeySpec targetKey, boolean sameKey){
+        boolean retiredRow = retired!=null && PreferencesKeyRotation.keyVersionOf(typeCode)==retired.version;
+        boolean rawCopy = (typeCode & SqlPreferences.FLAG_ENCRYPTED)!=0 && (typeCode & SqlPreferences.FLAG_COMPRESSED)==0;
+        if(sameKey && !retiredRow && rawCopy && stored instanceof byte[]){
+            // Already [IV + Ciphertext] under the export key
+            return (byte[]) stored;
+        }
+        Object value = SqlPreferences.decodeValue(typeCode, stored, storeKey, retired);
+        if(value==null){
+            return null;
+        }
+        byte[] plain = SqlPreferences.plainBytes(value);
+        return (targetKey!=null) ? CryptoUtil.cipherEncrypt(plain, targetKey) : plain;
+    }
+
+    /**
+     * ************************************************************************
+     * importValue() (Private)
+     * ************************************************************************
+     * - Turn exported bytes back into a value of its original type.
+     * ------------------------------------------------------------------------
+     * @param typeCode  The exported Type Code, with flags.
+     * @param bytes     The exported bytes.
+     * @param sourceKey The export key, null if none was given.
+     * @return The value.
+     * @throws IOException if it cannot be decrypted or parsed.
+     */
+    private static Object importValue(int typeCode, byte[] bytes, @Nullable SecretKeySpec sourceKey) throws IOException {
+        int type = typeCode & SqlPreferences.TYPE_MASK;
+        if((typeCode & SqlPreferences.FLAG_ENCRYPTED)!=0){
+            if(sourceKey==null){
+                throw new IOException("Encrypted export, no key given");
+            }
+            bytes = CryptoUtil.cipherDecrypt(bytes, sourceKey);
+            if(bytes==null){
+                throw new IOException("Export cannot be decrypted with this key");
+            }
+        }
+        Object value = (type==SqlPreferences.TYPE_INT_ARRAY || type==SqlPreferences.TYPE_LONG_ARRAY || type==SqlPreferences.TYPE_DOUBLE_ARRAY)
+                ? SqlPreferences.unpackArray(type, bytes)
+                : SqlPreferences.parseValue(type, new String(bytes, StandardCharsets.UTF_8));
+        if(value==null){
+            throw new IOException("Invalid value of type " + type);
+        }
+        return value;
+    }
+
+    private static @Nullable SecretKeySpec deriveExportKey(@Nullable String key) throws IOException {
+        if(key==null){
+            return null;
+        }
+        try {
+            return CryptoUtil.deriveKey(key);
+        } catch (Exception e) {
+            throw new IOException("Unable to derive the key", e);
+        }
+    }
+
+    private static void writeExportBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readExportBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0){
+            throw new IOException("Invalid length: " + length);
+        }
+        if(length <= IMPORT_READ_BYTES){
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(IMPORT_READ_BYTES);
+        byte[] buffer = new byte[IMPORT_READ_BYTES];
+        for(int left = length; left > 0; ){
+            int read = in.read(buffer, 0, Math.min(left, buffer.length));
+            if(read < 0){
+                throw new EOFException("Value cut short: " + length + " bytes expected");
+            }
+            bytes.write(buffer, 0, read);
+            left -= read;
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,545 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+import com.iorgana.droidhelpers.db.PreferencesSpill.Spilled;
+import com.orhanobut.logger.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesKeyRotation (Package-Private)
+ * ************************************************************************
+ * - The Key Rotation of a SqlPreferences: rotateKey() re-encrypts every
+ *   encrypted row under a new key, on the writer of the store,
+ *   ROTATION_CHUNK_ROWS rows per transaction.
+ * - Each encrypted row carries the version of its key in its Type Code.
+ *   keyVersion is the version of secretKey(), written with every new
+ *   row. retiredKey is the key rotated away from, while rows still use
+ *   it: reads pick the key by the row's version, so the store reads and
+ *   writes normally in the middle of a rotation. It is kept once the
+ *   rotation ends, for reads that fetched their rows before the last
+ *   chunk committed.
+ * - The meta table holds the current version and, during a rotation,
+ *   the retired version and the retired key encrypted under the new one.
+ *   A store reopened with the new key after a crash or a kill finds it
+ *   and resumes, ROTATION_RESUME_DELAY_MS after the load. No key is ever
+ *   on the disk in the clear.
+ * - Between two chunks the writer is left free for ROTATION_PAUSE_MS, or
+ *   for the flush delay while writes are pending, so flushes never wait
+ *   behind more than one chunk.
+ * - rotationAfterKey/List/Index: where the next chunk starts, keyset
+ *   pagination on the primary keys. Writer thread only. A resumed
+ *   rotation starts over, rows already rotated are skipped unread.
+ * - rotationTask and rotationWaiters are guarded by the pendingLock of
+ *   the store.
+ */
+final class PreferencesKeyRotation {
+    private static final int ROTATION_CHUNK_ROWS = 200;
+    private static final long ROTATION_PAUSE_MS = 20;
+    static final long ROTATION_RESUME_DELAY_MS = 5_000;
+    private volatile int keyVersion = 0;
+    volatile @Nullable RetiredKey retiredKey;
+    private volatile boolean rotating;
+    private ScheduledFuture<?> rotationTask;
+    private final List<CompletableFuture<Boolean>> rotationWaiters = new ArrayList<>();
+    private @Nullable String rotationAfterKey;
+    private @Nullable String rotationAfterList;
+    private long rotationAfterIndex;
+    private boolean rotationListPhase;
+
+    static final class RetiredKey {
+        final int version;
+        final SecretKeySpec spec;
+
+        RetiredKey(int version, SecretKeySpec spec) {
+            this.version = version;
+            this.spec = spec;
+        }
+    }
+
+    private final SqlPreferences store;
+
+    /**
+     * ************************************************************************
+     * PreferencesKeyRotation (Constructor)
+     * ************************************************************************
+     * @param store The store whose key is rotated.
+     */
+    PreferencesKeyRotation(SqlPreferences store) {
+        this.store = store;
+    }
+
+    /**
+     * ************************************************************************
+     * rotate()
+     * ************************************************************************
+     * - The writer side of SqlPreferences.rotateKey(), once newKey is
+     *   checked. Runs on the writer.
+     * ------------------------------------------------------------------------
+     * @param newKey The new secret key.
+     * @param done   Completed once every row is under newKey, or with false
+     *               if the rotation could not start.
+     */
+    void rotate(String newKey, CompletableFuture<Boolean> done){
+        if(rotating){
+            Logger.e(SqlPreferences.TAG + " rotateKey(): a rotation is already running");
+            done.complete(false);
+            return;
+        }
+        if(newKey.equals(store.secretKey())){
+            done.complete(true);
+            return;
+        }
+        if(!startRotation(newKey)){
+            done.complete(false);
+            return;
+        }
+        synchronized (store.pendingLock){
+            rotationWaiters.add(done);
+            scheduleRotation(0);
+            // The snapshot on the disk is under the old key
+            store.snapshots.schedule();
+        }
+    }
+
+    boolean isRunning(){
+        return rotating;
+    }
+
+    // close() of a named store. Must hold pendingLock
+    void cancel(){
+        if(rotationTask!=null){
+            rotationTask.cancel(false);
+            rotationTask = null;
+        }
+    }
+
+    static int keyVersionOf(int typeCode){
+        return (typeCode >>> SqlPreferences.KEY_VERSION_SHIFT) & SqlPreferences.KEY_VERSION_MASK;
+    }
+
+    int keyVersionBits(){
+        return keyVersion << SqlPreferences.KEY_VERSION_SHIFT;
+    }
+
+    /**
+     * ************************************************************************
+     * startRotation() (Private)
+     * ************************************************************************
+     * - Record the rotation in the meta table, then switch to the new key.
+     * - On the writer thread: no flush runs beside it, so no row is ever
+     *   written with a key version that does not match its key. retiredKey
+     *   is set before the key changes, see decodeValue().
+     * ------------------------------------------------------------------------
+     * @param newKey The new secret key.
+     * @return true if the rotation has started.
+     */
+    private boolean startRotation(String newKey){
+        try {
+            String oldKey = store.secretKey();
+            SecretKeySpec oldSpec = store.getKeySpec();
+            SecretKeySpec newSpec = CryptoUtil.deriveKey(newKey);
+            byte[] wrapped = (oldSpec!=null) ? CryptoUtil.cipherEncrypt(oldKey.getBytes(StandardCharsets.UTF_8), newSpec) : null;
+            if(wrapped==null){
+                return false;
+            }
+            int from = keyVersion;
+            int to = (from + 1) & SqlPreferences.KEY_VERSION_MASK;
+
+            SQLiteDatabase db = store.getDatabase();
+            store.batchWriter.prepareStatements(db);
+            db.beginTransaction();
+            try {
+                putMeta(db, SqlPreferences.META_KEY_VERSION, to);
+                putMeta(db, SqlPreferences.META_ROTATION_FROM, from);
+                putMeta(db, SqlPreferences.META_ROTATION_KEY, wrapped);
+                store.batchWriter.generationStatement.executeUpdateDelete();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            retiredKey = new RetiredKey(from, oldSpec);
+            store.applySecretKey(newKey);
+            keyVersion = to;
+            rotating = true;
+            rotationAfterKey = null;
+            rotationAfterList = null;
+            rotationListPhase = false;
+            return true;
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " startRotation(): " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * rotateChunk() (Private)
+     * ************************************************************************
+     * - Re-encrypt the next ROTATION_CHUNK_ROWS rows, key-value rows first,
+     *   then row list elements, in one transaction. Runs on the writer.
+     * - The transaction that rotates the last rows also deletes the
+     *   rotation from the meta table. Then the waiters of rotateKey() are
+     *   completed, otherwise the next chunk is scheduled.
+     * - A failed chunk is retried from the same rows after
+     *   ROTATION_RESUME_DELAY_MS. So is a chunk with a row under the
+     *   retired key that cannot be re-encrypted, see rotateRows().
+     * - The retired key in the meta table is the only way to read the rows
+     *   still under it after a restart. It is deleted with the last chunk
+     *   only if no such row is left, otherwise the rows are walked again.
+     * - A chunk that rewrote spill files bumps the generation: the snapshot
+     *   names the old files, deleted once the chunk commits.
+     */
+    private void rotateChunk(){
+        synchronized (store.pendingLock){
+            rotationTask = null;
+        }
+        RetiredKey retired = retiredKey;
+        SecretKeySpec keySpec = store.getKeySpec();
+        if(!rotating || retired==null || keySpec==null){
+            return;
+        }
+
+        String afterKey = rotationAfterKey;
+        String afterList = rotationAfterList;
+        long afterIndex = rotationAfterIndex;
+        boolean listPhase = rotationListPhase;
+        boolean finished = false;
+        Map<String, Spilled> respilled = new HashMap<>();
+        try {
+            SQLiteDatabase db = store.getDatabase();
+            store.batchWriter.prepareStatements(db);
+            store.spills.load();
+            db.beginTransaction();
+            try {
+                if(!rotationListPhase){
+                    rotationListPhase = rotateRows(db, false, retired, keySpec, respilled) < ROTATION_CHUNK_ROWS;
+                } else {
+                    finished = rotateRows(db, true, retired, keySpec, respilled) < ROTATION_CHUNK_ROWS;
+                }
+                if(!respilled.isEmpty()){
+                    store.batchWriter.generationStatement.executeUpdateDelete();
+                }
+                if(finished && hasRetiredRows(db, retired.version)){
+                    Logger.e(SqlPreferences.TAG + " rotateChunk(): rows are left under key version " + retired.version + ", walking the rows again");
+                    finished = false;
+                    rotationAfterKey = null;
+                    rotationAfterList = null;
+                    rotationListPhase = false;
+                }
+                if(finished){
+                    db.execSQL("DELETE FROM " + store.metaTableName + " WHERE " + SqlPreferences.COLUMN_META_NAME + " IN (?, ?)",
+                            new Object[]{SqlPreferences.META_ROTATION_FROM, SqlPreferences.META_ROTATION_KEY});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " rotateChunk(): " + e.getMessage());
+            for(Spilled spilled : respilled.values()){
+                store.spills.delete(spilled.name);
+            }
+            rotationAfterKey = afterKey;
+            rotationAfterList = afterList;
+            rotationAfterIndex = afterIndex;
+            rotationListPhase = listPhase;
+            synchronized (store.pendingLock){
+                scheduleRotation(ROTATION_RESUME_DELAY_MS);
+            }
+            return;
+        }
+        if(!respilled.isEmpty()){
+            Map<String, String> spillWrites = new HashMap<>();
+            for(Map.Entry<String, Spilled> entry : respilled.entrySet()){
+                spillWrites.put(entry.getKey(), entry.getValue().name);
+                // Only a preloaded value can still name the old file
+                Object item = store.cache.get(entry.getKey());
+                if(item instanceof Spilled){
+                    store.cache.replace(entry.getKey(), item, entry.getValue());
+                }
+            }
+            store.spills.commit(false, Collections.emptyList(), spillWrites);
+        }
+
+        List<CompletableFuture<Boolean>> waiters;
+        synchronized (store.pendingLock){
+            if(!respilled.isEmpty()){
+                store.snapshots.schedule();
+            }
+            if(!finished){
+                // Let pending writes go first
+                boolean busy = store.flushTask!=null || !store.pendingWrites.isEmpty();
+                scheduleRotation(busy ? Math.max(ROTATION_PAUSE_MS, store.flushDelayMs) : ROTATION_PAUSE_MS);
+                return;
+            }
+            rotating = false;
+            waiters = new ArrayList<>(rotationWaiters);
+            rotationWaiters.clear();
+        }
+        // Logger.d(SqlPreferences.TAG + " rotateChunk(): every row is under key version " + keyVersion);
+        for(CompletableFuture<Boolean> waiter : waiters){
+            waiter.complete(true);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * rotateRows() (Private)
+     * ************************************************************************
+     * - Read the next page of rows after the rotation cursor, re-encrypt
+     *   those under the retired key, and update them. Rows under another
+     *   key, or not encrypted, are only stepped over.
+     * - The page is read in full before any update, so the cursor never
+     *   walks rows that are being changed.
+     * - A spilled row gets a new file, its row the new name. The old file
+     *   is left to the caller, once committed.
+     * - A row under the retired key that cannot be re-encrypted (spill file
+     *   unreadable, decryption failed, spill write failed) throws: skipping
+     *   it would lose it once the retired key is deleted. The caller rolls
+     *   the chunk back and retries it.
+     * ------------------------------------------------------------------------
+     * @param db        The database, in a transaction.
+     * @param list      true for the row list table, false for the main one.
+     * @param retired   The key rotated away from.
+     * @param keySpec   The new key.
+     * @param respilled Filled with key to its new file, for spilled rows.
+     * @return The number of rows read, below ROTATION_CHUNK_ROWS on the last
+     *         page.
+     * @throws IOException if a row under the retired key cannot be rewritten.
+     */
+    private int rotateRows(SQLiteDatabase db, boolean list, RetiredKey retired, SecretKeySpec keySpec,
+                           Map<String, Spilled> respilled) throws IOException {
+        String query;
+        String[] args;
+        if(list){
+            query = "SELECT " + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + ", " + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + store.listTableName
+                    + (rotationAfterList!=null ? " WHERE (" + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + ") > (?, ?)" : "")
+                    + " ORDER BY " + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + " LIMIT " + ROTATION_CHUNK_ROWS;
+            args = rotationAfterList!=null ? new String[]{rotationAfterList, String.valueOf(rotationAfterIndex)} : null;
+        } else {
+            query = "SELECT " + SqlPreferences.COLUMN_KEY + ", 0, " + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + store.tableName
+                    + (rotationAfterKey!=null ? " WHERE " + SqlPreferences.COLUMN_KEY + " > ?" : "")
+                    + " ORDER BY " + SqlPreferences.COLUMN_KEY + " LIMIT " + ROTATION_CHUNK_ROWS;
+            args = rotationAfterKey!=null ? new String[]{rotationAfterKey} : null;
+        }
+
+        int rows = 0;
+        List<RotatedRow> rotated = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(query, args)) {
+            while(cursor.moveToNext()){
+                rows++;
+                String key = cursor.getString(0);
+                long index = cursor.getLong(1);
+                if(list){
+                    rotationAfterList = key;
+                    rotationAfterIndex = index;
+                } else {
+                    rotationAfterKey = key;
+                }
+                int typeCode = cursor.getInt(2);
+                if((typeCode & SqlPreferences.FLAG_ENCRYPTED)==0 || keyVersionOf(typeCode)!=retired.version){
+                    continue;
+                }
+                boolean spilled = (typeCode & SqlPreferences.FLAG_SPILLED)!=0;
+                Object stored = SqlPreferences.readColumn(cursor, 3);
+                byte[] value = reencrypt(spilled ? store.spills.column(typeCode, stored) : stored, retired.spec, keySpec);
+                if(value==null){
+                    throw new IOException("cannot re-encrypt " + key);
+                }
+                int newType = (typeCode & ~(SqlPreferences.KEY_VERSION_MASK << SqlPreferences.KEY_VERSION_SHIFT)) | keyVersionBits();
+                if(spilled){
+                    String name = PreferencesSpill.write(store.spills.dir(), value);
+                    respilled.put(key, new Spilled(newType, name));
+                    rotated.add(new RotatedRow(key, index, newType, name));
+                    continue;
+                }
+                rotated.add(new RotatedRow(key, index, newType, value));
+            }
+        }
+        if(rotated.isEmpty()){
+            return rows;
+        }
+
+        try (SQLiteStatement update = db.compileStatement(list
+                ? "UPDATE " + store.listTableName + " SET " + SqlPreferences.COLUMN_DATA_TYPE + " = ?, " + SqlPreferences.COLUMN_DATA_VALUE + " = ?"
+                        + " WHERE " + SqlPreferences.COLUMN_LIST_KEY + " = ? AND " + SqlPreferences.COLUMN_LIST_INDEX + " = ?"
+                : "UPDATE " + store.tableName + " SET " + SqlPreferences.COLUMN_DATA_TYPE + " = ?, " + SqlPreferences.COLUMN_DATA_VALUE + " = ?"
+                        + " WHERE " + SqlPreferences.COLUMN_KEY + " = ?")) {
+            for(RotatedRow row : rotated){
+                update.clearBindings();
+                update.bindLong(1, row.type);
+                if(row.value instanceof String){
+                    update.bindString(2, (String) row.value);
+                } else {
+                    update.bindBlob(2, (byte[]) row.value);
+                }
+                update.bindString(3, row.key);
+                if(list){
+                    update.bindLong(4, row.index);
+                }
+                update.executeUpdateDelete();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * ************************************************************************
+     * hasRetiredRows() (Private)
+     * ************************************************************************
+     * @param db      The database, in the transaction of the last chunk.
+     * @param version The retired key version.
+     * @return true if an encrypted row of either table is still under it.
+     */
+    private boolean hasRetiredRows(SQLiteDatabase db, int version){
+        String underRetired = "(" + SqlPreferences.COLUMN_DATA_TYPE + " & " + SqlPreferences.FLAG_ENCRYPTED + ") != 0"
+                + " AND ((" + SqlPreferences.COLUMN_DATA_TYPE + " >> " + SqlPreferences.KEY_VERSION_SHIFT + ") & " + SqlPreferences.KEY_VERSION_MASK + ") = " + version;
+        for(String table : new String[]{store.tableName, store.listTableName}){
+            try (Cursor cursor = db.rawQuery("SELECT 1 FROM " + table + " WHERE " + underRetired + " LIMIT 1", null)) {
+                if(cursor.moveToFirst()){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class RotatedRow {
+        final String key;
+        final long index;
+        final int type;
+        // [IV + Ciphertext], or the name of its new spill file
+        final Object value;
+
+        RotatedRow(String key, long index, int type, Object value) {
+            this.key = key;
+            this.index = index;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * reencrypt() (Private)
+     * ************************************************************************
+     * @param stored The value read by readColumn(): a BLOB, or Base64 text
+     *               written before version 4.
+     * @param from   The key it is encrypted with.
+     * @param to     The key to encrypt it with.
+     * @return [IV + Ciphertext] under to, or null if it cannot be decrypted
+     *         or encrypted again.
+     */
+    private static @Nullable byte[] reencrypt(@Nullable Object stored, SecretKeySpec from, SecretKeySpec to){
+        byte[] cipherBytes;
+        if(stored instanceof byte[]){
+            cipherBytes = (byte[]) stored;
+        } else if(stored instanceof String){
+            try {
+                cipherBytes = Base64.decode((String) stored, Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        byte[] plain = CryptoUtil.cipherDecrypt(cipherBytes, from);
+        return (plain!=null) ? CryptoUtil.cipherEncrypt(plain, to) : null;
+    }
+
+    /**
+     * ************************************************************************
+     * loadKeyState() (Package-Private)
+     * ************************************************************************
+     * - Read the key version from the meta table and, if a rotation was
+     *   left unfinished, its retired key. Called by initSync() before the
+     *   preload, which may need that key.
+     * - The retired key can only be read with the new key. A store opened
+     *   with another one cannot resume: its rows under the new key stay
+     *   unreadable, as any row under a wrong key always was.
+     * ------------------------------------------------------------------------
+     * @return true if a rotation must be resumed.
+     */
+    boolean loadKeyState(){
+        int version = 0;
+        int from = -1;
+        byte[] wrapped = null;
+        try (Cursor cursor = store.getDatabase().rawQuery("SELECT " + SqlPreferences.COLUMN_META_NAME + ", " + SqlPreferences.COLUMN_META_VALUE
+                + " FROM " + store.metaTableName + " WHERE " + SqlPreferences.COLUMN_META_NAME + " IN (?, ?, ?)",
+                new String[]{SqlPreferences.META_KEY_VERSION, SqlPreferences.META_ROTATION_FROM, SqlPreferences.META_ROTATION_KEY})) {
+            while(cursor.moveToNext()){
+                String name = cursor.getString(0);
+                if(SqlPreferences.META_KEY_VERSION.equals(name)){
+                    version = cursor.getInt(1);
+                } else if(SqlPreferences.META_ROTATION_FROM.equals(name)){
+                    from = cursor.getInt(1);
+                } else if(cursor.getType(1)==Cursor.FIELD_TYPE_BLOB){
+                    wrapped = cursor.getBlob(1);
+                }
+            }
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " loadKeyState(): " + e.getMessage());
+            return false;
+        }
+        keyVersion = version;
+        if(from < 0 || wrapped==null){
+            return false;
+        }
+
+        SecretKeySpec keySpec = store.getKeySpec();
+        byte[] oldKey = (keySpec!=null) ? CryptoUtil.cipherDecrypt(wrapped, keySpec) : null;
+        if(oldKey==null){
+            Logger.e(SqlPreferences.TAG + " loadKeyState(): a key rotation is unfinished, and this store was not opened with the key given to rotateKey()");
+            return false;
+        }
+        try {
+            retiredKey = new RetiredKey(from, CryptoUtil.deriveKey(new String(oldKey, StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " loadKeyState(): " + e.getMessage());
+            return false;
+        }
+        rotating = true;
+        return true;
+    }
+
+    /**
+     * ************************************************************************
+     * scheduleRotation() (Package-Private)
+     * ************************************************************************
+     * - Put the next rotateChunk() on the writer, if not there yet. Must
+     *   hold pendingLock.
+     */
+    void scheduleRotation(long delayMs){
+        if(rotationTask==null && !store.closed){
+            rotationTask = store.writer.schedule(this::rotateChunk, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void putMeta(SQLiteDatabase db, String name, Object value){
+        db.execSQL("INSERT OR REPLACE INTO " + store.metaTableName + " (" + SqlPreferences.COLUMN_META_NAME + ", " + SqlPreferences.COLUMN_META_VALUE + ") VALUES (?, ?)",
+                new Object[]{name, value});
+    }
+}
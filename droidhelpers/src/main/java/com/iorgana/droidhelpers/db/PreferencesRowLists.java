@@ -0,0 +1,461 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+import com.orhanobut.logger.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesRowLists (Package-Private)
+ * ************************************************************************
+ * - The appendToList() lists of a SqlPreferences, see Row Lists there:
+ *   their own table, one row per element, keyed by (list_key, list_index).
+ *   An append writes one row, a page reads only its rows, whatever the
+ *   length of the list.
+ * - list_index only grows. windows holds, per list, the index of the
+ *   oldest element kept (first) and of the next append (next), read once
+ *   from the disk with one MIN/MAX on the primary key.
+ * - The window of a list emptied by trim() or clear() is dropped once a
+ *   flush has deleted its rows, so windows only holds the lists in use.
+ *   Its next read finds no row, and the list starts again at index 0.
+ * - A trim moves first up and deletes the rows below it, so reads never
+ *   see a trimmed element, even before the delete is flushed.
+ * - pending: appends and trims, in call order, written by the next flush
+ *   after the key writes. flushing: the batch being written. Both guarded
+ *   by the store's pendingLock, like windows.
+ * - The statements are only touched from the writer thread, inside the
+ *   flush transaction of the store.
+ */
+final class PreferencesRowLists {
+    /**
+     * ListOp
+     * ------------------------------------------------------------------------
+     * - json != null: append json at index. json == null: trim, delete the
+     *   rows below index.
+     */
+    static final class ListOp {
+        final String listKey;
+        final long index;
+        final @Nullable String json;
+
+        ListOp(String listKey, long index, @Nullable String json) {
+            this.listKey = listKey;
+            this.index = index;
+            this.json = json;
+        }
+    }
+
+    private static final class ListWindow {
+        long first;
+        long next;
+
+        ListWindow(long first, long next) {
+            this.first = first;
+            this.next = next;
+        }
+    }
+
+    private final SqlPreferences store;
+    private final String table;
+    private final HashMap<String, ListWindow> windows = new HashMap<>();
+    // Lists emptied since their rows were last flushed, see flushEnded()
+    private final HashSet<String> emptied = new HashSet<>();
+    private List<ListOp> pending = new ArrayList<>();
+    private @Nullable List<ListOp> flushing = null;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement trimStatement;
+
+    /**
+     * ************************************************************************
+     * PreferencesRowLists (Constructor)
+     * ************************************************************************
+     * @param store The store the lists belong to.
+     * @param table The list table of the store.
+     */
+    PreferencesRowLists(SqlPreferences store, String table) {
+        this.store = store;
+        this.table = table;
+    }
+
+    /**
+     * ************************************************************************
+     * append()
+     * ************************************************************************
+     * - Queue one element at the end of a list.
+     * ------------------------------------------------------------------------
+     * @param key  The list key.
+     * @param json The element, serialized.
+     * @return true if the element was queued, false if the list could not
+     *         be read.
+     */
+    boolean append(String key, String json) {
+        while (true) {
+            ListWindow window = window(key);
+            if (window == null) {
+                return false;
+            }
+            synchronized (store.pendingLock) {
+                // Dropped by flushEnded() since: read the list again
+                if (windows.get(key) != window) {
+                    continue;
+                }
+                pending.add(new ListOp(key, window.next, json));
+                window.next++;
+                store.requestedWrites++;
+                store.scheduleFlush(pending.size() >= store.flushThreshold);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * page()
+     * ************************************************************************
+     * - The element JSON of [offset, offset + limit) from the oldest kept
+     *   element. One range read of the primary key, with the appends not
+     *   flushed yet on top.
+     * ------------------------------------------------------------------------
+     * @return Index to element JSON, empty if the page is past the end, or
+     *         null if the list could not be read.
+     */
+    @Nullable
+    TreeMap<Long, String> page(String key, int offset, int limit) {
+        ListWindow window = window(key);
+        if (window == null) {
+            return null;
+        }
+        long from;
+        long to;
+        synchronized (store.pendingLock) {
+            from = window.first + offset;
+            to = Math.min(window.next, from + limit);
+        }
+        if (from >= to) {
+            return new TreeMap<>();
+        }
+        return store.readBetweenFlushes(() -> queryRange(key, from, to), disk -> {
+            overlay(disk, key, from, to, flushing);
+            overlay(disk, key, from, to, pending);
+            return disk;
+        });
+    }
+
+    /**
+     * ************************************************************************
+     * size()
+     * ************************************************************************
+     * @param key The list key.
+     * @return The element count, appends not flushed included, 0 if the
+     *         list could not be read.
+     */
+    int size(String key) {
+        ListWindow window = window(key);
+        if (window == null) {
+            return 0;
+        }
+        synchronized (store.pendingLock) {
+            return (int) (window.next - window.first);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * trim()
+     * ************************************************************************
+     * - Keep the newest max elements of a list: one range DELETE on the
+     *   disk, queued like an append.
+     * ------------------------------------------------------------------------
+     * @return false if the list could not be read.
+     */
+    boolean trim(String key, int max) {
+        while (true) {
+            ListWindow window = window(key);
+            if (window == null) {
+                return false;
+            }
+            synchronized (store.pendingLock) {
+                if (windows.get(key) != window) {
+                    continue;
+                }
+                long first = Math.max(window.first, window.next - Math.max(0, max));
+                if (first == window.first) {
+                    return true;
+                }
+                window.first = first;
+                if (first == window.next) {
+                    emptied.add(key);
+                }
+                pending.add(new ListOp(key, first, null));
+                store.requestedWrites++;
+                store.scheduleFlush(pending.size() >= store.flushThreshold);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * clear()
+     * ************************************************************************
+     * - clear() of the store: drop the pending operations, and empty every
+     *   window past the indexes on the disk. Must hold pendingLock.
+     */
+    void clear() {
+        pending.clear();
+        for (ListWindow window : windows.values()) {
+            window.first = window.next;
+        }
+        emptied.addAll(windows.keySet());
+    }
+
+    /**
+     * ************************************************************************
+     * takePending() / flushEnded()
+     * ************************************************************************
+     * - The flush takes the pending operations, which stay visible to reads
+     *   as flushing until it has ended. Must hold pendingLock.
+     * - Once every row of a flush is written, the windows of the lists it
+     *   emptied are dropped: no row is left on the disk for a re-read to
+     *   find. Not while a clear() or another operation on the list is
+     *   still pending, nor after a failed or partial flush.
+     */
+    List<ListOp> takePending() {
+        List<ListOp> ops = pending;
+        pending = new ArrayList<>();
+        flushing = ops;
+        return ops;
+    }
+
+    void flushEnded(boolean written) {
+        flushing = null;
+        if (!written || emptied.isEmpty() || store.pendingClear) {
+            return;
+        }
+        HashSet<String> queued = new HashSet<>();
+        for (ListOp op : pending) {
+            queued.add(op.listKey);
+        }
+        Iterator<String> keys = emptied.iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (queued.contains(key)) {
+                continue;
+            }
+            ListWindow window = windows.get(key);
+            if (window != null && window.first >= window.next) {
+                windows.remove(key);
+            }
+            keys.remove();
+        }
+    }
+
+    // A flush that failed: its operations go before the ones made since
+    void requeue(List<ListOp> ops) {
+        pending.addAll(0, ops);
+    }
+
+    /**
+     * ************************************************************************
+     * compileStatements()
+     * ************************************************************************
+     * - (Re)compile the insert and trim statements on the connection of the
+     *   store's statements. Writer thread only.
+     */
+    void compileStatements(SQLiteDatabase db) {
+        if (insertStatement != null) insertStatement.close();
+        if (trimStatement != null) trimStatement.close();
+        insertStatement = db.compileStatement("INSERT OR REPLACE INTO " + table
+                + " (" + SqlPreferences.COLUMN_LIST_KEY + ", " + SqlPreferences.COLUMN_LIST_INDEX + ", "
+                + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE + ")"
+                + " VALUES (?, ?, ?, ?)");
+        trimStatement = db.compileStatement("DELETE FROM " + table
+                + " WHERE " + SqlPreferences.COLUMN_LIST_KEY + " = ? AND " + SqlPreferences.COLUMN_LIST_INDEX + " < ?");
+    }
+
+    /**
+     * ************************************************************************
+     * write()
+     * ************************************************************************
+     * - Write appends and trims, inside the flush transaction of the store.
+     * - An append is one row insert, stored after the Encryption Policy of
+     *   the list key, like any value. A trim is one range delete on the
+     *   primary key.
+     * - An operation that fails is dropped the same way as a value row,
+     *   see PreferencesWriter.dropRow().
+     * ------------------------------------------------------------------------
+     * @param ops     The operations, in call order.
+     * @param keySpec The derived key, if encryption is enabled.
+     * @return The number of rows inserted or deleted.
+     */
+    int write(List<ListOp> ops, @Nullable SecretKeySpec keySpec) {
+        int written = 0;
+        for (ListOp op : ops) {
+            try {
+                if (op.json == null) {
+                    trimStatement.bindString(1, op.listKey);
+                    trimStatement.bindLong(2, op.index);
+                    written += trimStatement.executeUpdateDelete();
+                    continue;
+                }
+                insertStatement.clearBindings();
+                insertStatement.bindString(1, op.listKey);
+                insertStatement.bindLong(2, op.index);
+                SqlPreferences.EncryptionPolicy policy = store.policyOf(op.listKey);
+                byte[] plain = null;
+                byte[] compressed = null;
+                if (policy != SqlPreferences.EncryptionPolicy.PLAIN || store.mayCompress(2L * op.json.length())) {
+                    plain = op.json.getBytes(StandardCharsets.UTF_8);
+                    compressed = store.compress(plain, policy);
+                }
+                if (policy != SqlPreferences.EncryptionPolicy.PLAIN) {
+                    byte[] encrypted = (keySpec != null) ? CryptoUtil.cipherEncrypt(compressed != null ? compressed : plain, keySpec) : null;
+                    if (encrypted == null) {
+                        store.batchWriter.dropRow("writeListOps", op.listKey, keySpec == null ? "no encryption key" : "encryption failed");
+                        continue;
+                    }
+                    int flags = SqlPreferences.FLAG_ENCRYPTED | store.rotation.keyVersionBits()
+                            | (compressed != null ? SqlPreferences.FLAG_COMPRESSED : 0);
+                    insertStatement.bindLong(3, SqlPreferences.TYPE_STRING | flags);
+                    insertStatement.bindBlob(4, encrypted);
+                } else if (compressed != null) {
+                    insertStatement.bindLong(3, SqlPreferences.TYPE_STRING | SqlPreferences.FLAG_COMPRESSED);
+                    insertStatement.bindBlob(4, compressed);
+                } else {
+                    insertStatement.bindLong(3, SqlPreferences.TYPE_STRING);
+                    insertStatement.bindString(4, op.json);
+                }
+                insertStatement.executeInsert();
+                written++;
+            } catch (Exception e) {
+                store.batchWriter.dropRow("writeListOps", op.listKey, e.getMessage());
+            }
+        }
+        return written;
+    }
+
+    /**
+     * ************************************************************************
+     * window() (Private)
+     * ************************************************************************
+     * - The window of a list, read from the disk on first use. Must NOT
+     *   hold pendingLock: the MIN/MAX query runs without it, see
+     *   SqlPreferences.readBetweenFlushes(), and the window is put under
+     *   it, unless another caller got there first.
+     * - While a clear() is pending or flushing, the rows on the disk are
+     *   about to go: the window starts empty, past their indexes.
+     * - A failed query caches nothing: a window made up from it would let
+     *   the next append overwrite the elements at its index.
+     * ------------------------------------------------------------------------
+     * @param key The list key.
+     * @return The window, or null if it cannot be read.
+     */
+    private @Nullable ListWindow window(String key) {
+        synchronized (store.pendingLock) {
+            ListWindow window = windows.get(key);
+            if (window != null) {
+                return window;
+            }
+        }
+        return store.readBetweenFlushes(() -> queryWindow(key), read -> {
+            ListWindow window = windows.get(key);
+            if (window != null || read == null) {
+                return window;
+            }
+            if (store.pendingClear || store.flushingClear) {
+                read.first = read.next;
+            }
+            windows.put(key, read);
+            return read;
+        });
+    }
+
+    /**
+     * ************************************************************************
+     * queryWindow() (Private)
+     * ************************************************************************
+     * @param key The list key.
+     * @return The window of the rows on the disk, {0, 0} for none, or null
+     *         if the query failed.
+     */
+    private @Nullable ListWindow queryWindow(String key) {
+        try (Cursor cursor = store.getDatabase().rawQuery("SELECT MIN(" + SqlPreferences.COLUMN_LIST_INDEX + "), MAX(" + SqlPreferences.COLUMN_LIST_INDEX + ")"
+                + " FROM " + table + " WHERE " + SqlPreferences.COLUMN_LIST_KEY + " = ?", new String[]{key})) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return new ListWindow(cursor.getLong(0), cursor.getLong(1) + 1);
+            }
+            return new ListWindow(0, 0);
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " queryWindow(): " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * queryRange() (Private)
+     * ************************************************************************
+     * - Read the elements of a list in [from, to), through the primary key,
+     *   and decrypt them.
+     * ------------------------------------------------------------------------
+     * @return Index to element JSON.
+     */
+    private TreeMap<Long, String> queryRange(String key, long from, long to) {
+        TreeMap<Long, String> rows = new TreeMap<>();
+        SecretKeySpec keySpec = store.getKeySpec();
+        PreferencesKeyRotation.RetiredKey retired = store.rotation.retiredKey;
+        try (Cursor cursor = store.getDatabase().query(table,
+                new String[]{SqlPreferences.COLUMN_LIST_INDEX, SqlPreferences.COLUMN_DATA_TYPE, SqlPreferences.COLUMN_DATA_VALUE},
+                SqlPreferences.COLUMN_LIST_KEY + " = ? AND " + SqlPreferences.COLUMN_LIST_INDEX + " >= ? AND " + SqlPreferences.COLUMN_LIST_INDEX + " < ?",
+                new String[]{key, String.valueOf(from), String.valueOf(to)},
+                null, null, SqlPreferences.COLUMN_LIST_INDEX)) {
+            while (cursor.moveToNext()) {
+                Object json = SqlPreferences.decodeValue(cursor.getInt(1), SqlPreferences.readColumn(cursor, 2), keySpec, retired);
+                if (json instanceof String) {
+                    rows.put(cursor.getLong(0), (String) json);
+                }
+            }
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " queryRange(): " + e.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * ************************************************************************
+     * overlay() (Private)
+     * ************************************************************************
+     * - Add the appends of [from, to) that are not on the disk yet to a page
+     *   read from it, and drop what a trim or clear() made since. Must hold
+     *   pendingLock.
+     */
+    private void overlay(TreeMap<Long, String> rows, String key, long from, long to,
+                         @Nullable List<ListOp> ops) {
+        ListWindow window = windows.get(key);
+        long first = (window != null) ? Math.max(from, window.first) : from;
+        rows.headMap(first).clear();
+        if (ops == null) {
+            return;
+        }
+        for (ListOp op : ops) {
+            if (op.json == null || op.index < first || op.index >= to) continue;
+            if (!op.listKey.equals(key)) continue;
+            rows.put(op.index, op.json);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesSnapshot (Package-Private)
+ * ************************************************************************
+ * - The decoded cache of a SqlPreferences store in one file, so a cold
+ *   start reads one file instead of decrypting and parsing every row.
+ * - Layout: [header][payload]. The header is MAGIC, FORMAT, an encrypted
+ *   flag and the generation, in the clear, so a stale file is rejected
+ *   before any decryption. The payload repeats the generation, then holds
+ *   every entry.
+ * - Encrypted: the payload is one AES-GCM message ([IV + Ciphertext], see
+ *   CryptoUtil), one decryption for the whole store. The generation inside
+ *   it is authenticated, the one in the header is only a hint.
+ * - Written to a temporary file, synced, then renamed over the old one:
+ *   a crash leaves either snapshot whole, never a mix.
+ * ------------------------------------------------------------------------
+ * @implNote Big-endian, as written by DataOutputStream. Arrays are the
+ *           PackedArrays bytes, same as their BLOB in the database. Values
+ *           the cache holds compressed (Deflated) are saved compressed, and
+ *           come back so: the snapshot never inflates them. Spilled
+ *           values are saved as their file name, never read.
+ */
+final class PreferencesSnapshot {
+    private static final int MAGIC = 0x53515053; // "SQPS"
+    private static final byte FORMAT = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 8;
+
+    // Value tags, same numbers as the SqlPreferences Type Codes
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BOOLEAN = 2;
+    private static final byte TAG_INTEGER = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_INT_ARRAY = 7;
+    private static final byte TAG_LONG_ARRAY = 8;
+    private static final byte TAG_DOUBLE_ARRAY = 9;
+    // Not a Type Code: a Deflated value, [type][deflated bytes]
+    private static final byte TAG_DEFLATED = 64;
+    // Not a Type Code: a Spilled value, [Type Code with flags][file name]
+    private static final byte TAG_SPILLED = 65;
+
+    private PreferencesSnapshot() {
+    }
+
+    /**
+     * ************************************************************************
+     * Data
+     * ************************************************************************
+     * - What read() found: the values and the expiry of those that have one.
+     */
+    static final class Data {
+        final Map<String, Object> values;
+        final Map<String, Long> expiries;
+
+        Data(Map<String, Object> values, Map<String, Long> expiries) {
+            this.values = values;
+            this.expiries = expiries;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * write()
+     * ************************************************************************
+     * - Replace the snapshot file with the given entries. Entries already
+     *   expired at now, and values of an unknown type, are left out.
+     * ------------------------------------------------------------------------
+     * @param file       The snapshot file.
+     * @param generation The database generation the entries match.
+     * @param values     Key to value, as held by the cache.
+     * @param expiries   Key to expiry (epoch millis), for keys that have one.
+     * @param keySpec    The derived key, or null to write in the clear.
+     * @param now        The current time, in epoch millis.
+     * @return true if the file was replaced.
+     */
+    static boolean write(File file, long generation, Map<String, Object> values, Map<String, Long> expiries,
+                         @Nullable SecretKeySpec keySpec, long now) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            byte[] payload = encode(generation, values, expiries, now);
+            if (keySpec != null) {
+                payload = CryptoUtil.cipherEncrypt(payload, keySpec);
+                if (payload == null) return false;
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeByte(FORMAT);
+                header.writeByte(keySpec != null ? 1 : 0);
+                header.writeLong(generation);
+                header.write(payload);
+                header.flush();
+                out.getFD().sync();
+            }
+            if (temp.renameTo(file)) return true;
+        } catch (IOException e) {
+            // Logger.e("PreferencesSnapshot write(): " + e.getMessage());
+        }
+        temp.delete();
+        return false;
+    }
+
+    /**
+     * ************************************************************************
+     * read()
+     * ************************************************************************
+     * - Memory-map the snapshot file and decode it, if it was taken at the
+     *   expected generation and with the same encryption.
+     * - An encrypted payload is decrypted straight from the mapping, a
+     *   clear one is decoded from it without any copy of the file.
+     * ------------------------------------------------------------------------
+     * @param file       The snapshot file.
+     * @param generation The current database generation.
+     * @param keySpec    The derived key, or null if the store is not
+     *                   encrypted.
+     * @param now        The current time, entries expired at it are skipped.
+     * @return The entries, or null if the file is missing, stale, from
+     *         another key, or damaged.
+     */
+    static @Nullable Data read(File file, long generation, @Nullable SecretKeySpec keySpec, long now) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.get() != FORMAT) return null;
+            boolean encrypted = buffer.get() == 1;
+            if (encrypted != (keySpec != null) || buffer.getLong() != generation) return null;
+
+            ByteBuffer payload = buffer.slice();
+            if (keySpec != null) {
+                byte[] plain = CryptoUtil.cipherDecrypt(payload, keySpec);
+                if (plain == null) return null;
+                payload = ByteBuffer.wrap(plain);
+            }
+            return decode(payload, generation, now);
+        } catch (Exception e) {
+            // Truncated or damaged file: read the database instead
+            return null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * encode() (Private)
+     * ************************************************************************
+     * - Payload: [generation][count] then per entry [key][tag][expiresAt, 0
+     *   for none][value]. Strings and keys are [length][UTF-8 bytes].
+     */
+    private static byte[] encode(long generation, Map<String, Object> values, Map<String, Long> expiries, long now)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, values.size() * 32));
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(Math.max(64, values.size() * 32));
+        DataOutputStream entry = new DataOutputStream(entries);
+        int count = 0;
+        for (Map.Entry<String, Object> data : values.entrySet()) {
+            Object value = data.getValue();
+            byte tag = tagOf(value);
+            if (tag == 0) continue;
+            Long expiresAt = expiries.get(data.getKey());
+            if (expiresAt != null && expiresAt <= now) continue;
+
+            writeString(entry, data.getKey());
+            entry.writeByte(tag);
+            entry.writeLong(expiresAt != null ? expiresAt : 0);
+            switch (tag) {
+                case TAG_STRING: writeString(entry, (String) value); break;
+                case TAG_BOOLEAN: entry.writeBoolean((Boolean) value); break;
+                case TAG_INTEGER: entry.writeInt((Integer) value); break;
+                case TAG_LONG: entry.writeLong((Long) value); break;
+                case TAG_FLOAT: entry.writeFloat((Float) value); break;
+                case TAG_DOUBLE: entry.writeDouble((Double) value); break;
+                case TAG_INT_ARRAY: writeBytes(entry, PackedArrays.pack((int[]) value)); break;
+                case TAG_LONG_ARRAY: writeBytes(entry, PackedArrays.pack((long[]) value)); break;
+                case TAG_DOUBLE_ARRAY: writeBytes(entry, PackedArrays.pack((double[]) value)); break;
+                case TAG_DEFLATED:
+                    entry.writeByte(((PreferencesCompression.Deflated) value).type);
+                    writeBytes(entry, ((PreferencesCompression.Deflated) value).bytes);
+                    break;
+                case TAG_SPILLED:
+                    entry.writeInt(((PreferencesSpill.Spilled) value).typeCode);
+                    writeString(entry, ((PreferencesSpill.Spilled) value).name);
+                    break;
+            }
+            count++;
+        }
+        entry.flush();
+        out.writeLong(generation);
+        out.writeInt(count);
+        entries.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * ************************************************************************
+     * decode() (Private)
+     * ************************************************************************
+     * @return The entries, or null if the payload is not of this generation.
+     * @throws RuntimeException (BufferUnderflowException, ...) if damaged.
+     */
+    private static @Nullable Data decode(ByteBuffer in, long generation, long now) {
+        if (in.getLong() != generation) return null;
+        int count = in.getInt();
+        if (count < 0) return null;
+        Map<String, Object> values = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+        Map<String, Long> expiries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            byte tag = in.get();
+            long expiresAt = in.getLong();
+            Object value;
+            switch (tag) {
+                case TAG_STRING: value = readString(in); break;
+                case TAG_BOOLEAN: value = in.get() != 0; break;
+                case TAG_INTEGER: value = in.getInt(); break;
+                case TAG_LONG: value = in.getLong(); break;
+                case TAG_FLOAT: value = in.getFloat(); break;
+                case TAG_DOUBLE: value = in.getDouble(); break;
+                case TAG_INT_ARRAY: value = PackedArrays.unpackInts(readBytes(in)); break;
+                case TAG_LONG_ARRAY: value = PackedArrays.unpackLongs(readBytes(in)); break;
+                case TAG_DOUBLE_ARRAY: value = PackedArrays.unpackDoubles(readBytes(in)); break;
+                case TAG_DEFLATED: value = new PreferencesCompression.Deflated(in.get(), readBytes(in)); break;
+                case TAG_SPILLED: value = new PreferencesSpill.Spilled(in.getInt(), readString(in)); break;
+                default: return null;
+            }
+            if (value == null) return null;
+            if (expiresAt != 0) {
+                if (expiresAt <= now) continue;
+                expiries.put(key, expiresAt);
+            }
+            values.put(key, value);
+        }
+        return new Data(values, expiries);
+    }
+
+    private static byte tagOf(Object value) {
+        if (value instanceof String) return TAG_STRING;
+        if (value instanceof Boolean) return TAG_BOOLEAN;
+        if (value instanceof Integer) return TAG_INTEGER;
+        if (value instanceof Long) return TAG_LONG;
+        if (value instanceof Float) return TAG_FLOAT;
+        if (value instanceof Double) return TAG_DOUBLE;
+        if (value instanceof int[]) return TAG_INT_ARRAY;
+        if (value instanceof long[]) return TAG_LONG_ARRAY;
+        if (value instanceof double[]) return TAG_DOUBLE_ARRAY;
+        if (value instanceof PreferencesCompression.Deflated) return TAG_DEFLATED;
+        if (value instanceof PreferencesSpill.Spilled) return TAG_SPILLED;
+        return 0;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = checkLength(in, in.getInt());
+        if (in.hasArray()) {
+            // Heap buffer (decrypted payload): decode in place
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        return new String(readBytes(in, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        return readBytes(in, in.getInt());
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) {
+        byte[] bytes = new byte[checkLength(in, length)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    // A damaged length must fail the read, not allocate gigabytes
+    private static int checkLength(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) throw new BufferUnderflowException();
+        return length;
+    }
+}
@@ -0,0 +1,171 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.Cursor;
+
+import androidx.annotation.Nullable;
+
+import com.orhanobut.logger.Logger;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesSnapshots (Package-Private)
+ * ************************************************************************
+ * - When a SqlPreferences writes its snapshot, and whether the one on the
+ *   disk may fill its cache, see Snapshot there. The file format is
+ *   PreferencesSnapshot.
+ * - Written by the writer SNAPSHOT_DELAY_MS after the last flush, only
+ *   once nothing is pending, so the cache is exactly the table at the
+ *   current generation. A burst of flushes costs one snapshot.
+ * - Only for an unbounded cache, the only one that is a copy of the whole
+ *   table.
+ * - task is guarded by the pendingLock of the store.
+ */
+final class PreferencesSnapshots {
+    private static final long NO_GENERATION = -1;
+
+    private final SqlPreferences store;
+    private final boolean enabled;
+    private ScheduledFuture<?> task;
+
+    /**
+     * ************************************************************************
+     * PreferencesSnapshots (Constructor)
+     * ************************************************************************
+     * @param store   The store whose cache is saved.
+     * @param enabled false to never write nor read a snapshot.
+     */
+    PreferencesSnapshots(SqlPreferences store, boolean enabled) {
+        this.store = store;
+        this.enabled = enabled;
+    }
+
+    /**
+     * ************************************************************************
+     * schedule()
+     * ************************************************************************
+     * - (Re)start the snapshot delay, so the snapshot is written once the
+     *   flushes settle. Must hold pendingLock.
+     */
+    void schedule(){
+        if(!enabled || store.cache.isBounded() || store.flushFailed || store.closed){
+            return;
+        }
+        if(task!=null){
+            task.cancel(false);
+        }
+        task = store.writer.schedule(this::write, SqlPreferences.SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // close() of a named store. Must hold pendingLock
+    void cancel(){
+        if(task!=null){
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * read()
+     * ************************************************************************
+     * - The entries of the snapshot file, if it matches the current
+     *   generation and key. Read with a key by the same rule as write(): a
+     *   clear one, written before a policy was declared, is rejected and
+     *   the table read instead.
+     * ------------------------------------------------------------------------
+     * @param expiriesOut Filled with key to expiry, for entries that have one.
+     * @return The entries, or null to read the table instead.
+     */
+    @Nullable
+    Map<String, Object> read(Map<String, Long> expiriesOut){
+        if(!enabled || store.cache.isBounded()){
+            return null;
+        }
+        SecretKeySpec keySpec = null;
+        if(store.encryptsAny()){
+            keySpec = store.getKeySpec();
+            if(keySpec==null){
+                return null;
+            }
+        }
+        long generation = readGeneration();
+        if(generation==NO_GENERATION){
+            return null;
+        }
+        PreferencesSnapshot.Data data = PreferencesSnapshot.read(file(), generation, keySpec, System.currentTimeMillis());
+        if(data==null){
+            return null;
+        }
+        expiriesOut.putAll(data.expiries);
+        return data.values;
+    }
+
+    /**
+     * ************************************************************************
+     * write() (Private)
+     * ************************************************************************
+     * - Save the cache to the snapshot file, on the writer thread.
+     * - Encrypted whenever some value is, see encryptsAny(): the cache holds
+     *   the decrypted values of the policy keys too.
+     * - With nothing pending, the cache is the table: every change it holds
+     *   has been flushed. No flush can run beside this task, so the
+     *   generation read afterwards is the one the copy matches, even if
+     *   new changes are applied meanwhile (their flush schedules the next
+     *   snapshot).
+     */
+    private void write(){
+        Map<String, Object> values;
+        Map<String, Long> valueExpiries;
+        synchronized (store.pendingLock){
+            task = null;
+            if(!store.isSettled()){
+                // Not settled: the coming flush schedules it again
+                return;
+            }
+            values = store.cache.copy();
+            valueExpiries = new HashMap<>(store.expiries);
+        }
+
+        SecretKeySpec keySpec = null;
+        if(store.encryptsAny()){
+            keySpec = store.getKeySpec();
+            if(keySpec==null){
+                return;
+            }
+        }
+        long generation = readGeneration();
+        if(generation==NO_GENERATION){
+            return;
+        }
+        PreferencesSnapshot.write(file(), generation, values, valueExpiries, keySpec, System.currentTimeMillis());
+        // Logger.d(SqlPreferences.TAG + " writeSnapshot(): "+values.size()+" entries at generation "+generation);
+    }
+
+    /**
+     * ************************************************************************
+     * readGeneration() (Private)
+     * ************************************************************************
+     * @return The generation in the meta table, or NO_GENERATION.
+     */
+    private long readGeneration(){
+        try (Cursor cursor = store.getDatabase().rawQuery("SELECT " + SqlPreferences.COLUMN_META_VALUE + " FROM " + store.metaTableName
+                + " WHERE " + SqlPreferences.COLUMN_META_NAME + " = ?", new String[]{SqlPreferences.META_GENERATION})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : NO_GENERATION;
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " readGeneration(): " + e.getMessage());
+            return NO_GENERATION;
+        }
+    }
+
+    private File file(){
+        return new File(store.context.getDatabasePath(store.getDatabaseName()).getPath() + "-snapshot");
+    }
+}
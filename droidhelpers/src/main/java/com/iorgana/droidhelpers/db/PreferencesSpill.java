@@ -0,0 +1,124 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesSpill (Package-Private)
+ * ************************************************************************
+ * - Files of the SqlPreferences values too large for a row, flagged
+ *   FLAG_SPILLED in their Type Code. The row holds the file name, the file
+ *   holds what the row would have held: [IV + Ciphertext] if encrypted,
+ *   the plain or deflated bytes otherwise.
+ * - One new file per write, never rewritten: a reader that mapped a file
+ *   keeps reading the value it looked up, even if the key is overwritten
+ *   and the file deleted meanwhile.
+ * - The file is synced before the row that names it commits, so a row
+ *   never points to a missing file. A file whose row did not commit, or
+ *   whose delete was lost to a crash, is an orphan, removed by the next
+ *   orphan sweep (PreferencesSpills.load()).
+ */
+final class PreferencesSpill {
+
+    private PreferencesSpill() {
+    }
+
+    /**
+     * ************************************************************************
+     * Spilled
+     * ************************************************************************
+     * - A value that is still in its file, as the preload and the snapshot
+     *   leave it in the cache until the key is first read.
+     * - Compared by identity, same as Deflated.
+     */
+    static final class Spilled {
+        // Type Code with its flags, FLAG_SPILLED included
+        final int typeCode;
+        final String name;
+
+        Spilled(int typeCode, String name) {
+            this.typeCode = typeCode;
+            this.name = name;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * write()
+     * ************************************************************************
+     * - Write bytes to a new file in dir, and sync it.
+     * ------------------------------------------------------------------------
+     * @param dir   The spill directory, made if missing.
+     * @param bytes The stored bytes.
+     * @return The file name, to store in the row.
+     * @throws IOException if the file cannot be written.
+     */
+    static String write(File dir, byte[] bytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String name = UUID.randomUUID().toString().replace("-", "");
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+            out.getFD().sync();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return name;
+    }
+
+    /**
+     * ************************************************************************
+     * read()
+     * ************************************************************************
+     * @param file The spill file.
+     * @return Its bytes, or null if it is missing or cannot be read.
+     */
+    static @Nullable byte[] read(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) return null;
+            byte[] bytes = new byte[(int) length];
+            raf.readFully(bytes);
+            return bytes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * decrypt()
+     * ************************************************************************
+     * - Decrypt a spill file straight from a read-only mapping: the
+     *   ciphertext is paged in by the kernel and streamed through the
+     *   cipher, never copied to the Java heap. Only the plain bytes are.
+     * ------------------------------------------------------------------------
+     * @param file    The spill file, [IV + Ciphertext].
+     * @param keySpec The derived key.
+     * @return The plain bytes, or null if missing, damaged, or another key.
+     */
+    static @Nullable byte[] decrypt(File file, SecretKeySpec keySpec) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return CryptoUtil.cipherDecrypt(buffer, keySpec);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
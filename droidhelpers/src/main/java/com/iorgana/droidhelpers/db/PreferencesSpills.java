@@ -0,0 +1,200 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.Cursor;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.db.PreferencesCompression.Deflated;
+import com.iorgana.droidhelpers.db.PreferencesKeyRotation.RetiredKey;
+import com.iorgana.droidhelpers.db.PreferencesSpill.Spilled;
+import com.orhanobut.logger.Logger;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesSpills (Package-Private)
+ * ************************************************************************
+ * - The Spill Files of a SqlPreferences: their directory, which row names
+ *   which file, and when a file is deleted. Reading and writing one file
+ *   is PreferencesSpill.
+ * - spilledKeys: key to file name of every spilled row, loaded by load().
+ *   Only touched from the writer thread.
+ * - A file is deleted once the transaction that removes or overwrites
+ *   its row commits, see commit(). Files left by a crash (orphans) are
+ *   deleted by load(), scheduled at init.
+ */
+final class PreferencesSpills {
+    private static final String SPILL_DIR = "sql_preferences_spill";
+
+    private final SqlPreferences store;
+    private @Nullable HashMap<String, String> spilledKeys;
+
+    /**
+     * ************************************************************************
+     * PreferencesSpills (Constructor)
+     * ************************************************************************
+     * @param store The store the files belong to.
+     */
+    PreferencesSpills(SqlPreferences store) {
+        this.store = store;
+    }
+
+    // files/sql_preferences_spill/<database name>/
+    File dir(){
+        return new File(new File(store.context.getFilesDir(), SPILL_DIR), store.getDatabaseName());
+    }
+
+    void delete(String name){
+        new File(dir(), name).delete();
+    }
+
+    /**
+     * ************************************************************************
+     * load()
+     * ************************************************************************
+     * - spilledKeys, read from the table on first use. Runs on the writer.
+     * - Files no row names are orphans (a crash between the file and its
+     *   row, or between the commit and the delete): deleted here. No write
+     *   can be in flight, the writer is the only one making files.
+     * - Without any file, nothing is queried.
+     * ------------------------------------------------------------------------
+     * @return Key to file name. Empty, and not kept, if the table cannot be
+     *         read: no file is deleted then.
+     */
+    Map<String, String> load(){
+        if(spilledKeys!=null){
+            return spilledKeys;
+        }
+        HashMap<String, String> names = new HashMap<>();
+        String[] files = dir().list();
+        if(files!=null && files.length > 0){
+            try (Cursor cursor = store.getDatabase().rawQuery("SELECT " + SqlPreferences.COLUMN_KEY + ", " + SqlPreferences.COLUMN_DATA_VALUE
+                    + " FROM " + store.tableName + " WHERE (" + SqlPreferences.COLUMN_DATA_TYPE + " & " + SqlPreferences.FLAG_SPILLED + ") != 0", null)) {
+                while(cursor.moveToNext()){
+                    names.put(cursor.getString(0), cursor.getString(1));
+                }
+            } catch (Exception e) {
+                Logger.e(SqlPreferences.TAG + " load(): " + e.getMessage());
+                return new HashMap<>();
+            }
+            Set<String> live = new HashSet<>(names.values());
+            for(String file : files){
+                if(!live.contains(file)){
+                    delete(file);
+                }
+            }
+        }
+        spilledKeys = names;
+        return names;
+    }
+
+    /**
+     * ************************************************************************
+     * commit()
+     * ************************************************************************
+     * - After a committed PreferencesWriter.writeBatch(): record the new
+     *   files, and delete those whose row was cleared, deleted or
+     *   overwritten.
+     * ------------------------------------------------------------------------
+     * @param clearAll     true if every row was deleted.
+     * @param rangeDeletes Key prefixes deleted, before the batch.
+     * @param spillWrites  Key to its new file name, or to null if the key
+     *                     was written inline or deleted.
+     */
+    void commit(boolean clearAll, List<String> rangeDeletes, Map<String, String> spillWrites){
+        if(spilledKeys==null){
+            return;
+        }
+        if(clearAll){
+            for(String name : spilledKeys.values()){
+                delete(name);
+            }
+            spilledKeys.clear();
+        }
+        if(!rangeDeletes.isEmpty() && !spilledKeys.isEmpty()){
+            Iterator<Map.Entry<String, String>> it = spilledKeys.entrySet().iterator();
+            while(it.hasNext()){
+                Map.Entry<String, String> entry = it.next();
+                if(SqlPreferences.matchesAny(rangeDeletes, entry.getKey())){
+                    delete(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        for(Map.Entry<String, String> write : spillWrites.entrySet()){
+            String old = (write.getValue()!=null)
+                    ? spilledKeys.put(write.getKey(), write.getValue())
+                    : spilledKeys.remove(write.getKey());
+            if(old!=null && !old.equals(write.getValue())){
+                delete(old);
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * read()
+     * ************************************************************************
+     * - Read, decrypt (if flagged), decompress (if flagged) and convert the
+     *   value in a spill file. Thread-safe.
+     * ------------------------------------------------------------------------
+     * @param spilled The spilled value.
+     * @param keySpec The derived key, null if it could not be derived.
+     * @param retired The key being rotated away from, if any.
+     * @return The converted value, or null if the file is gone (its key was
+     *         overwritten meanwhile) or cannot be read.
+     */
+    @Nullable Object read(Spilled spilled, @Nullable SecretKeySpec keySpec, @Nullable RetiredKey retired){
+        int typeCode = spilled.typeCode;
+        File file = new File(dir(), spilled.name);
+        byte[] plain;
+        if((typeCode & SqlPreferences.FLAG_ENCRYPTED)!=0){
+            if(retired!=null && PreferencesKeyRotation.keyVersionOf(typeCode)==retired.version){
+                keySpec = retired.spec;
+            }
+            plain = (keySpec!=null) ? PreferencesSpill.decrypt(file, keySpec) : null;
+        } else {
+            plain = PreferencesSpill.read(file);
+        }
+        if(plain==null){
+            return null;
+        }
+        int type = typeCode & SqlPreferences.TYPE_MASK;
+        if((typeCode & SqlPreferences.FLAG_COMPRESSED)!=0){
+            return SqlPreferences.inflateValue(new Deflated(type, plain));
+        }
+        return SqlPreferences.decodePlain(type, plain);
+    }
+
+    /**
+     * ************************************************************************
+     * column()
+     * ************************************************************************
+     * - What readColumn() would have read, had the value not been spilled:
+     *   the BLOB, or the TEXT of a String stored in the clear.
+     * ------------------------------------------------------------------------
+     * @param typeCode The stored Type Code, with flags.
+     * @param stored   The file name, as read by readColumn().
+     * @return The column value, or null if the file cannot be read.
+     */
+    @Nullable Object column(int typeCode, @Nullable Object stored){
+        if(!(stored instanceof String)){
+            return null;
+        }
+        byte[] bytes = PreferencesSpill.read(new File(dir(), (String) stored));
+        if(bytes!=null && (typeCode & (SqlPreferences.FLAG_ENCRYPTED | SqlPreferences.FLAG_COMPRESSED))==0 && (typeCode & SqlPreferences.TYPE_MASK)==SqlPreferences.TYPE_STRING){
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,393 @@
+package com.iorgana.droidhelpers.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.Nullable;
+
+import com.iorgana.droidhelpers.crypto.CryptoUtil;
+import com.orhanobut.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ************************************************************************
+ * PreferencesWriter (Package-Private)
+ * ************************************************************************
+ * - The flush engine of a SqlPreferences: takes what is pending (see
+ *   Pending Writes there) and writes it to the disk in one transaction.
+ * - The store queues the changes and schedules flushPending() on its
+ *   writer. Everything here runs on that thread only.
+ * - The statements are compiled once and reused by every flush, instead
+ *   of building a new ContentValues and INSERT per entry. They are bound
+ *   to the connection they were compiled on (statementsDb): if it changes
+ *   (the helper was closed and reopened), they are compiled again.
+ * - batchDroppedRows: rows the current flush could not write, see
+ *   dropRow().
+ * - A batch whose transaction failed is put back in the pending writes,
+ *   under the changes made since, and flushed again after a backoff:
+ *   FLUSH_RETRY_MS, doubled by each failure in a row (failures) up to
+ *   FLUSH_RETRY_MAX_MS. See requeue().
+ */
+final class PreferencesWriter {
+    private final SqlPreferences store;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement deleteStatement;
+    SQLiteStatement generationStatement;
+    private SQLiteDatabase statementsDb;
+    private int batchDroppedRows = 0;
+    private static final long FLUSH_RETRY_MS = 100;
+    private static final long FLUSH_RETRY_MAX_MS = 30_000;
+    private int failures = 0;
+
+    /**
+     * ************************************************************************
+     * PreferencesWriter (Constructor)
+     * ************************************************************************
+     * @param store The store whose pending writes are flushed.
+     */
+    PreferencesWriter(SqlPreferences store) {
+        this.store = store;
+    }
+
+    /**
+     * ************************************************************************
+     * prepareStatements() (Package-Private)
+     * ************************************************************************
+     * - Compile the INSERT OR REPLACE and DELETE statements for the given
+     *   connection, if not done yet.
+     * - Must be called from the writer thread only.
+     * ------------------------------------------------------------------------
+     * @param db The connection the statements will run on.
+     */
+    void prepareStatements(SQLiteDatabase db){
+        if(statementsDb==db && insertStatement!=null){
+            return;
+        }
+        if(insertStatement!=null) insertStatement.close();
+        if(deleteStatement!=null) deleteStatement.close();
+        if(generationStatement!=null) generationStatement.close();
+
+        // CONFLICT REPLACE relies on COLUMN_KEY being the primary key,
+        // see onCreate().
+        insertStatement = db.compileStatement("INSERT OR REPLACE INTO " + store.tableName
+                + " (" + SqlPreferences.COLUMN_KEY + ", " + SqlPreferences.COLUMN_DATA_TYPE + ", " + SqlPreferences.COLUMN_DATA_VALUE + ", " + SqlPreferences.COLUMN_EXPIRES_AT + ")"
+                + " VALUES (?, ?, ?, ?)");
+        deleteStatement = db.compileStatement("DELETE FROM " + store.tableName
+                + " WHERE " + SqlPreferences.COLUMN_KEY + " = ?");
+        store.rowLists.compileStatements(db);
+        generationStatement = db.compileStatement("UPDATE " + store.metaTableName
+                + " SET " + SqlPreferences.COLUMN_META_VALUE + " = " + SqlPreferences.COLUMN_META_VALUE + " + 1"
+                + " WHERE " + SqlPreferences.COLUMN_META_NAME + " = '" + SqlPreferences.META_GENERATION + "'");
+        statementsDb = db;
+    }
+
+    /**
+     * ************************************************************************
+     * flushPending() (Package-Private)
+     * ************************************************************************
+     * - Take everything pending and write it to the disk in one transaction.
+     * - Runs on the writer thread only.
+     * - After the swap, new changes go to a fresh map and schedule their own
+     *   flush, so nothing is lost while this one is writing.
+     * - A failed transaction requeues the batch and retries it after the
+     *   backoff. Its commit()/flush() callers get false at once, the retry
+     *   is not theirs to wait for.
+     */
+    void flushPending(){
+        HashMap<String, Object> batch;
+        boolean clearAll;
+        List<String> rangeDeletes;
+        List<PreferencesRowLists.ListOp> listOps;
+        List<CompletableFuture<Boolean>> waiters;
+        synchronized (store.pendingLock){
+            batch = store.pendingWrites;
+            clearAll = store.pendingClear;
+            rangeDeletes = store.pendingRangeDeletes;
+            listOps = store.rowLists.takePending();
+            waiters = store.pendingWaiters;
+            store.pendingWrites = new HashMap<>();
+            store.pendingClear = false;
+            store.pendingRangeDeletes = new ArrayList<>();
+            store.pendingWaiters = new ArrayList<>();
+            store.flushTask = null;
+            store.flushingWrites = batch;
+            store.flushingClear = clearAll;
+            store.flushingRangeDeletes = rangeDeletes;
+            // The queue is empty again: wake the BLOCK waiters
+            store.pendingLock.notifyAll();
+        }
+
+        int written = 0;
+        batchDroppedRows = 0;
+        long flushStart = System.nanoTime();
+        boolean hasWork = !batch.isEmpty() || clearAll || !rangeDeletes.isEmpty() || !listOps.isEmpty();
+        if(hasWork){
+            written = writeBatch(clearAll, rangeDeletes, batch, listOps);
+        }
+        int dropped = batchDroppedRows;
+        synchronized (store.pendingLock){
+            if(hasWork){
+                store.lastFlushNanos = System.nanoTime() - flushStart;
+                store.flushNanos += store.lastFlushNanos;
+            }
+            if(hasWork && written >= 0){
+                store.writtenRows += written;
+                store.droppedRows += dropped;
+                store.flushCount++;
+                // Every batch requeued before has been written with this one
+                store.flushFailed = false;
+                failures = 0;
+                if(clearAll || !rangeDeletes.isEmpty() || !batch.isEmpty()){
+                    store.snapshots.schedule();
+                }
+            }
+            else if(written < 0){
+                store.flushFailed = true;
+                requeue(clearAll, rangeDeletes, batch, listOps);
+            }
+            store.flushingWrites = null;
+            store.flushingClear = false;
+            store.flushingRangeDeletes = null;
+            store.rowLists.flushEnded(written >= 0 && dropped == 0);
+        }
+
+        // The transaction has ended: release commit()/flush() callers. A
+        // dropped row is a failed write for them, even if the rest committed
+        if(dropped > 0 && written >= 0){
+            Logger.e(SqlPreferences.TAG + " flushPending(): " + dropped + " row(s) not written, see the errors above");
+        }
+        for(CompletableFuture<Boolean> waiter : waiters){
+            waiter.complete(written >= 0 && dropped==0);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * requeue() (Private)
+     * ************************************************************************
+     * - Put a batch whose transaction failed back in the pending writes,
+     *   and schedule its retry after the backoff. Must hold pendingLock.
+     * - The changes made since are newer, so the batch goes under them, in
+     *   the order the writer runs a batch (clear, range deletes, writes):
+     *   . A clear() made since replaces the whole batch: it is dropped.
+     *   . Its clear and range deletes run first, then its writes. A write
+     *     of a key changed since, or under a prefix removed since, is
+     *     dropped: the newer change wins.
+     *   . Its row list operations go before the ones made since.
+     * ------------------------------------------------------------------------
+     * @param clearAll     true if the batch cleared every row.
+     * @param rangeDeletes Its key prefixes to delete.
+     * @param batch        Its key writes.
+     * @param listOps      Its row list operations.
+     */
+    private void requeue(boolean clearAll, List<String> rangeDeletes, Map<String, Object> batch, List<PreferencesRowLists.ListOp> listOps){
+        if(!store.pendingClear){
+            store.pendingClear = clearAll;
+            List<String> prefixes = new ArrayList<>(rangeDeletes);
+            prefixes.addAll(store.pendingRangeDeletes);
+            for(Map.Entry<String, Object> write : batch.entrySet()){
+                String key = write.getKey();
+                if(!store.pendingWrites.containsKey(key) && !SqlPreferences.matchesAny(store.pendingRangeDeletes, key)){
+                    store.pendingWrites.put(key, write.getValue());
+                }
+            }
+            store.pendingRangeDeletes = prefixes;
+            store.rowLists.requeue(listOps);
+        }
+
+        failures++;
+        long delayMs = Math.min(FLUSH_RETRY_MAX_MS, FLUSH_RETRY_MS << Math.min(failures - 1, 16));
+        Logger.e(SqlPreferences.TAG + " flushPending(): flush failed " + failures + " time(s) in a row, retry in " + delayMs + " ms");
+        if(store.closed){
+            return;
+        }
+        if(store.flushTask!=null){
+            store.flushTask.cancel(false);
+        }
+        store.flushTask = store.writer.schedule(this::flushPending, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * ************************************************************************
+     * writeBatch() (Private)
+     * ************************************************************************
+     * - Write one batch into the SQLite database.
+     * - The whole batch is written in one transaction, so N keys cost one
+     *   journal commit instead of N.
+     * - Every row goes through the same compiled statement, only the bound
+     *   values change.
+     * - Large values are written to their spill file before the row, and
+     *   the files the batch made obsolete are deleted once it commits, see
+     *   Spill Files.
+     * - A row that cannot be written (unknown type, no key, failed
+     *   encryption, failed insert) does not roll the batch back: it is
+     *   logged and counted in batchDroppedRows, see dropRow(). A failed
+     *   transaction writes nothing, see requeue().
+     * ------------------------------------------------------------------------
+     * @param clearAll     true to delete every row before writing the batch.
+     * @param rangeDeletes Key prefixes to delete, after clearAll and before
+     *                     the batch.
+     * @param batch        Key to value, or key to REMOVED for a delete.
+     * @param listOps      Row list appends and trims, in call order.
+     * @return The number of rows inserted or deleted, or -1 if the
+     *         transaction failed.
+     */
+    private int writeBatch(boolean clearAll, List<String> rangeDeletes, Map<String, Object> batch, List<PreferencesRowLists.ListOp> listOps){
+        int written = 0;
+        Map<String, String> spillWrites = new HashMap<>();
+        try {
+            SQLiteDatabase db = store.getDatabase();
+            prepareStatements(db);
+            SecretKeySpec keySpec = store.getKeySpec();
+            Map<String, String> spilled = store.spills.load();
+            db.beginTransaction();
+            try {
+                if(clearAll){
+                    db.execSQL("DELETE FROM " + store.tableName);
+                    db.execSQL("DELETE FROM " + store.listTableName);
+                    // Logger.d(TAG + " writeBatch(): data has been removed from disk");
+                }
+                for (String prefix : rangeDeletes) {
+                    // One range DELETE through the primary key index
+                    String prefixEnd = PreferencesCache.prefixEnd(prefix);
+                    try (SQLiteStatement rangeDelete = db.compileStatement("DELETE FROM " + store.tableName
+                            + " WHERE " + SqlPreferences.prefixSelection(prefixEnd))) {
+                        String[] args = SqlPreferences.prefixArgs(prefix, prefixEnd);
+                        for (int i = 0; i < args.length; i++) {
+                            rangeDelete.bindString(i + 1, args[i]);
+                        }
+                        written += rangeDelete.executeUpdateDelete();
+                    }
+                }
+                for (Map.Entry<String, Object> data : batch.entrySet()) {
+                    String spillName = null;
+                    try {
+                        // Delete
+                        if(data.getValue()==SqlPreferences.REMOVED){
+                            deleteStatement.bindString(1, data.getKey());
+                            deleteStatement.executeUpdateDelete();
+                            if(spilled.containsKey(data.getKey())){
+                                spillWrites.put(data.getKey(), null);
+                            }
+                            written++;
+                            continue;
+                        }
+
+                        Object value = data.getValue();
+                        long expiresAt = 0;
+                        if(value instanceof SqlPreferences.Expiring){
+                            expiresAt = ((SqlPreferences.Expiring) value).expiresAt;
+                            value = ((SqlPreferences.Expiring) value).value;
+                        }
+                        int type = SqlPreferences.typeCode(value);
+                        if(type==SqlPreferences.TYPE_UNKNOWN){
+                            dropRow("writeBatch", data.getKey(), "unsupported type " + value.getClass().getName());
+                            continue;
+                        }
+
+                        insertStatement.clearBindings();
+                        // Put key
+                        insertStatement.bindString(1, data.getKey());
+                        // Put data type and value (per the key's Encryption Policy)
+                        SqlPreferences.EncryptionPolicy policy = store.policyOf(data.getKey());
+                        byte[] plain = null;
+                        byte[] compressed = null;
+                        long estimated = PreferencesCache.valueBytes(value);
+                        if (policy != SqlPreferences.EncryptionPolicy.PLAIN || store.mayCompress(estimated) || store.spills(estimated)) {
+                            plain = SqlPreferences.plainBytes(value);
+                            compressed = store.compress(plain, policy);
+                        }
+                        int typeCode = type;
+                        byte[] blob = null;
+                        if (policy != SqlPreferences.EncryptionPolicy.PLAIN) {
+                            if (keySpec == null) {
+                                dropRow("writeBatch", data.getKey(), "no encryption key");
+                                continue;
+                            }
+                            blob = CryptoUtil.cipherEncrypt(compressed != null ? compressed : plain, keySpec);
+                            if (blob == null) {
+                                dropRow("writeBatch", data.getKey(), "encryption failed");
+                                continue;
+                            }
+                            typeCode |= SqlPreferences.FLAG_ENCRYPTED | store.rotation.keyVersionBits() | (compressed != null ? SqlPreferences.FLAG_COMPRESSED : 0);
+                        } else if (compressed != null) {
+                            typeCode |= SqlPreferences.FLAG_COMPRESSED;
+                            blob = compressed;
+                        } else if (plain != null && store.spills(plain.length)) {
+                            blob = plain;
+                        }
+                        if (blob != null && store.spills(blob.length)) {
+                            spillName = PreferencesSpill.write(store.spills.dir(), blob);
+                            typeCode |= SqlPreferences.FLAG_SPILLED;
+                        }
+                        insertStatement.bindLong(2, typeCode);
+                        if (spillName != null) {
+                            insertStatement.bindString(3, spillName);
+                        } else if (blob != null) {
+                            insertStatement.bindBlob(3, blob);
+                        } else {
+                            // Native type: no formatting, no parsing on read
+                            SqlPreferences.bindNative(insertStatement, 3, value);
+                        }
+                        if (expiresAt > 0) {
+                            insertStatement.bindLong(4, expiresAt);
+                        } else {
+                            insertStatement.bindNull(4);
+                        }
+                        //// Logger.d(TAG + " writeBatch(): Insert: " + data.getKey());
+                        insertStatement.executeInsert();
+                        if (spillName != null || spilled.containsKey(data.getKey())) {
+                            spillWrites.put(data.getKey(), spillName);
+                        }
+                        written++;
+                    } catch (Exception e) {
+                        dropRow("writeBatch", data.getKey(), e.getMessage());
+                        if (spillName != null) {
+                            store.spills.delete(spillName);
+                        }
+                    }
+                }
+                if(clearAll || !rangeDeletes.isEmpty() || !batch.isEmpty()){
+                    // Same transaction as the rows, see Snapshot
+                    generationStatement.executeUpdateDelete();
+                }
+                written += store.rowLists.write(listOps, keySpec);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Logger.e(SqlPreferences.TAG + " writeBatch(): " + e.getMessage());
+            // The rows naming the new files are rolled back
+            for (String name : spillWrites.values()) {
+                if (name != null) {
+                    store.spills.delete(name);
+                }
+            }
+            return -1;
+        }
+        store.spills.commit(clearAll, rangeDeletes, spillWrites);
+        return written;
+    }
+
+    /**
+     * ************************************************************************
+     * dropRow() (Package-Private)
+     * ************************************************************************
+     * - Log a row the writer could not write, and count it for the flush
+     *   in progress: its commit()/flush() callers get false. Writer thread
+     *   only.
+     */
+    void dropRow(String method, String key, @Nullable String reason){
+        batchDroppedRows++;
+        Logger.e(SqlPreferences.TAG + " " + method + "(): row not written: " + key + ": " + reason);
+    }
+}
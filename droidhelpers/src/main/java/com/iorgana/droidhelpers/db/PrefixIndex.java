@@ -0,0 +1,141 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * ************************************************************************
+ * PrefixIndex (Package-Private)
+ * ************************************************************************
+ * - Immutable map of key prefix -> values, for finding every value whose
+ *   prefix matches a given key.
+ * - Matching a key costs one hash lookup per distinct prefix length that
+ *   is registered, whatever the number of values. Thousands of values on
+ *   a handful of prefix lengths cost a handful of lookups per key.
+ * - Copy-on-write: with() and without() return a new index, so readers
+ *   hold a reference and never lock. Meant for data that changes rarely
+ *   and is read on every write (listeners, policies).
+ * ------------------------------------------------------------------------
+ * @param <V> The value type.
+ */
+final class PrefixIndex<V> {
+    private static final PrefixIndex<?> EMPTY = new PrefixIndex<>(Collections.emptyMap());
+
+    private final Map<String, List<V>> byPrefix;
+    // Distinct prefix lengths, ascending
+    private final int[] lengths;
+
+    private PrefixIndex(Map<String, List<V>> byPrefix) {
+        this.byPrefix = byPrefix;
+        TreeSet<Integer> set = new TreeSet<>();
+        for (String prefix : byPrefix.keySet()) {
+            set.add(prefix.length());
+        }
+        this.lengths = new int[set.size()];
+        int i = 0;
+        for (Integer length : set) {
+            lengths[i++] = length;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PrefixIndex<V> empty() {
+        return (PrefixIndex<V>) EMPTY;
+    }
+
+    boolean isEmpty() {
+        return byPrefix.isEmpty();
+    }
+
+    /**
+     * ************************************************************************
+     * with()
+     * ************************************************************************
+     * @return A copy of this index with value added under prefix.
+     */
+    PrefixIndex<V> with(String prefix, V value) {
+        Map<String, List<V>> copy = new HashMap<>(byPrefix);
+        List<V> values = new ArrayList<>(copy.containsKey(prefix) ? copy.get(prefix) : Collections.emptyList());
+        values.add(value);
+        copy.put(prefix, Collections.unmodifiableList(values));
+        return new PrefixIndex<>(copy);
+    }
+
+    /**
+     * ************************************************************************
+     * without()
+     * ************************************************************************
+     * @return A copy of this index with every value matching the filter
+     *         removed, under any prefix.
+     */
+    PrefixIndex<V> without(Predicate<V> filter) {
+        Map<String, List<V>> copy = new HashMap<>();
+        for (Map.Entry<String, List<V>> entry : byPrefix.entrySet()) {
+            List<V> values = new ArrayList<>();
+            for (V value : entry.getValue()) {
+                if (!filter.test(value)) values.add(value);
+            }
+            if (!values.isEmpty()) copy.put(entry.getKey(), Collections.unmodifiableList(values));
+        }
+        return copy.isEmpty() ? empty() : new PrefixIndex<>(copy);
+    }
+
+    /**
+     * ************************************************************************
+     * forEachMatch()
+     * ************************************************************************
+     * - Call the consumer for each value whose prefix is a prefix of key
+     *   (an exact key counts as its own prefix).
+     */
+    void forEachMatch(String key, Consumer<V> consumer) {
+        for (int length : lengths) {
+            if (length > key.length()) break;
+            List<V> values = byPrefix.get(key.substring(0, length));
+            if (values == null) continue;
+            for (V value : values) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * longestMatch()
+     * ************************************************************************
+     * - The value of the longest prefix of key, for settings where the most
+     *   specific prefix wins. Under one prefix, the last value added wins.
+     * ------------------------------------------------------------------------
+     * @return The value, or null if no prefix matches.
+     */
+    @Nullable
+    V longestMatch(String key) {
+        for (int i = lengths.length - 1; i >= 0; i--) {
+            if (lengths[i] > key.length()) continue;
+            List<V> values = byPrefix.get(key.substring(0, lengths[i]));
+            if (values != null) return values.get(values.size() - 1);
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * values()
+     * ************************************************************************
+     * @return Every value, under any prefix.
+     */
+    List<V> values() {
+        List<V> all = new ArrayList<>();
+        for (List<V> values : byPrefix.values()) {
+            all.addAll(values);
+        }
+        return all;
+    }
+}
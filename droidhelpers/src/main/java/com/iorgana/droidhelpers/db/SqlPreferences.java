@@ -1,11 +1,15 @@
 package com.iorgana.droidhelpers.db;
 
 import android.app.Application;
-import android.content.ContentValues;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Base64;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -13,17 +17,47 @@ import androidx.annotation.Nullable;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.iorgana.droidhelpers.crypto.CryptoUtil;
+import com.iorgana.droidhelpers.db.PreferencesCompression.Deflated;
+import com.iorgana.droidhelpers.db.PreferencesKeyRotation.RetiredKey;
+import com.iorgana.droidhelpers.db.PreferencesSpill.Spilled;
 import com.iorgana.droidhelpers.utils.Utils;
 import com.orhanobut.logger.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * ************************************************************************
@@ -40,6 +74,37 @@ import java.util.concurrent.atomic.AtomicReference;
  * - Call SqlPreferences.init() at app start to preload cache in the
  *   background.
  *
+ * [Lazy Loading]
+ * - Set SqlPreferences.LAZY_LOADING = true before init to skip the full
+ *   preload. Each key is then read from the disk the first time it is
+ *   asked for, and the cache keeps at most LAZY_CACHE_MAX_ENTRIES keys.
+ * - Startup no longer depends on how many keys the store holds.
+ *
+ * [Snapshot]
+ * - Once the writes settle, the decoded cache is also saved to one file
+ *   next to the database. The next initSync() reads that file, with one
+ *   decryption for the whole store, instead of every row. A file that no
+ *   longer matches the database is ignored, see Snapshot.
+ *
+ * [Memory Budget]
+ * - Set SqlPreferences.CACHE_MAX_BYTES to bound the cache by the estimated
+ *   size of its entries. The least recently used ones are evicted and read
+ *   again from the disk when asked for.
+ * - Values above CACHE_MAX_VALUE_BYTES (a large putObject() JSON) are not
+ *   kept in memory at all while the cache is bounded.
+ * - Under memory pressure (onTrimMemory), bounded caches shrink on their
+ *   own, see trimMemory().
+ *
+ * [Named Stores]
+ * - SqlPreferences.open(context, "cache_feed", options) returns a store of
+ *   its own: its own database file, cache, encryption settings and writer
+ *   thread. A large feed cache then never delays the writes of a small
+ *   auth store, and each can use its own key or durability.
+ * - getInstance() is the default store. It keeps following the static
+ *   settings (SECRET_KEY, ENABLE_ENCRYPTION, TABLE_NAME, ...).
+ * - store.close() flushes a named store and stops its writer. The next
+ *   open() of that name makes a new one.
+ *
  * [Usage]
  * - SqlPreferences.getInstance(context).putString("key", "value").apply();
  * - String val = SqlPreferences.getInstance(context).getString("key", "default");
@@ -51,8 +116,9 @@ import java.util.concurrent.atomic.AtomicReference;
  *       try (SqlPreferences db = SqlPreferences.getInstance(ctx)) { ... }
  *   Closing it shuts the database down for every other caller, and may hit
  *   a background write that is still running.
- * - Each internal method opens and closes its own database handle already,
- *   so there is nothing for the caller to release.
+ * - The instance keeps one database connection open for its whole life,
+ *   so the writer does not pay an open/close per apply(). There is nothing
+ *   for the caller to release.
  *
  * [Security]
  * - Data is encrypted using AES by default.
@@ -63,13 +129,47 @@ import java.util.concurrent.atomic.AtomicReference;
  * @implNote The library source (including DEFAULT_SECRET_KEY) is public on
  *           GitHub. Always call setSecretKey() with an app-specific key.
  * @author Rochdi Wafik
- * @lastUpdate 08-08-2026
+ * @lastUpdate 16-10-2026
  */
 
 public class SqlPreferences extends SQLiteOpenHelper {
-    private static final String TAG = "__SqlPreferences";
+    static final String TAG = "__SqlPreferences";
     private static volatile SqlPreferences INSTANCE;
 
+    /**
+     * Named Stores
+     * ------------------------------------------------------------------------
+     * - Stores made by open(), by name. Each is kept until close(), or for
+     *   the life of the process, same as INSTANCE.
+     * - storeName is null for the default store.
+     * - tableName, storeSecretKey and storeEncryption are fixed when the
+     *   store is made. The default store leaves the last two null, and keeps
+     *   reading SECRET_KEY and ENABLE_ENCRYPTION, as it always did.
+     * - encryptionPolicies, compressMinBytes and spillMinBytes: the static
+     *   settings, or those of the Options.
+     * - Only rotateKey() replaces the key afterwards, on the writer thread.
+     *   It sets storeSecretKey for the default store too: SECRET_KEY is
+     *   never rewritten, so Options made later still start from the app's
+     *   own key, not from the key of this store.
+     * - writer is the static DEFAULT_WRITER for the default store, and a single
+     *   thread of its own for a named store.
+     */
+    private static final ConcurrentHashMap<String, SqlPreferences> STORES = new ConcurrentHashMap<>();
+    private final @Nullable String storeName;
+    final String tableName;
+    final String listTableName;
+    final String metaTableName;
+    private volatile @Nullable String storeSecretKey;
+    private final @Nullable Boolean storeEncryption;
+    private final PrefixIndex<EncryptionPolicy> encryptionPolicies;
+    private final int compressMinBytes;
+    private final int spillMinBytes;
+    final ScheduledExecutorService writer;
+    private volatile Thread storeWriterThread;
+    volatile boolean closed = false;
+    // close() waits this long for a running writer task
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
     /**
      * Executors
      * ------------------------------------------------------------------------
@@ -79,8 +179,57 @@ public class SqlPreferences extends SQLiteOpenHelper {
      *   same order the caller issued them. With a multi-thread pool, a fast
      *   save() followed by remove() could be applied in reverse order.
      * - Reads are served from the cache, so one writer thread costs nothing.
+     * - Scheduled, so pending writes can be flushed after the debounce
+     *   window (see Pending Writes) instead of one task per apply().
+     * - This is the writer of the default store. Stores made by open() each
+     *   have their own writer (see Named Stores).
+     * - defaultWriterThread is kept so commit()/flush() can tell they are
+     *   called from the writer itself, where waiting on it would never return.
+     * - executors stays a plain ExecutorService, as it always was: callers
+     *   may queue work behind the writes, the flush scheduling is internal
+     *   (DEFAULT_WRITER, the same executor).
+     */
+    private static volatile Thread defaultWriterThread;
+    private static final ScheduledExecutorService DEFAULT_WRITER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SqlPreferences-writer");
+        defaultWriterThread = thread;
+        return thread;
+    });
+    public static final ExecutorService executors = DEFAULT_WRITER;
+
+    /**
+     * Decode Executors
+     * ------------------------------------------------------------------------
+     * - getAll() reads the raw rows on the calling thread, then fans the
+     *   decrypt and type conversion out over this pool, one slice of rows
+     *   per worker.
+     * - Bounded to the core count. Idle threads time out, so the pool costs
+     *   nothing once the preload is done.
+     * - Tables under PARALLEL_DECODE_MIN_ROWS rows per worker are decoded on
+     *   the calling thread, where a thread hop would cost more than it saves.
+     */
+    private static final int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int PARALLEL_DECODE_MIN_ROWS = 256;
+    private static final ThreadPoolExecutor decodeExecutors = new ThreadPoolExecutor(
+            DECODE_THREADS, DECODE_THREADS, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        decodeExecutors.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Load Executors
+     * ------------------------------------------------------------------------
+     * - init() preloads the table here instead of on the writer thread, so a
+     *   long preload does not hold back pending flushes, and the reverse.
+     *   With WAL (see Durability) the read and the write transaction do not
+     *   lock each other out either.
+     * - One thread at most, which times out once the preload is done.
      */
-    public static final ExecutorService executors = Executors.newSingleThreadExecutor();
+    private static final ThreadPoolExecutor loadExecutors = new ThreadPoolExecutor(
+            1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        loadExecutors.allowCoreThreadTimeOut(true);
+    }
 
     /**
      * Sqlite Database
@@ -88,10 +237,29 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * - Version 2: data_key became the PRIMARY KEY. Before that there was no
      *   unique constraint, so CONFLICT_REPLACE had no conflict to act on and
      *   every apply() appended a new row instead of replacing the old one.
+     * - Version 3: data_type became an integer code (see Type Codes), and
+     *   data_value lost its TEXT affinity, so unencrypted numbers and
+     *   booleans are stored as native INTEGER/REAL instead of text.
+     * - Version 4: encrypted values are stored as a BLOB of the raw
+     *   [IV + Ciphertext], instead of its Base64 text.
+     * - Version 5: expires_at column (epoch millis, NULL for no expiry) and
+     *   a partial index on it, see Expiry.
+     * - Version 6: "<table>_list" child table, one row per list element,
+     *   see Row Lists.
+     * - Version 7: "<table>_meta" table of named counters, holding the
+     *   generation of the data, see Snapshot.
      */
+    // Named stores use "sql_preferences_<name>.db"
     private static final String DATABASE_NAME = "sql_preferences.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
     public static String TABLE_NAME = "table_preferences";
+    // Shortest [IV + Ciphertext] (12-byte IV, 16-byte tag) and its Base64
+    // length: a version 2 value shorter than that is plain, see onUpgrade()
+    private static final int MIN_CIPHERTEXT_BYTES = 12 + 16;
+    // AES-GCM layout of CryptoUtil, for the quiet decrypts() probe
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int MIN_CIPHERTEXT_BASE64 = 40;
 
     /**
      * Columns
@@ -100,7 +268,65 @@ public class SqlPreferences extends SQLiteOpenHelper {
     public static final String COLUMN_KEY = "data_key";
     public static final String COLUMN_DATA_TYPE = "data_type";
     public static final String COLUMN_DATA_VALUE = "data_value";
+    public static final String COLUMN_EXPIRES_AT = "expires_at";
+    // Row Lists table: (list_key, list_index) -> data_type, data_value
+    public static final String COLUMN_LIST_KEY = "list_key";
+    public static final String COLUMN_LIST_INDEX = "list_index";
+    // Meta table: name -> value
+    public static final String COLUMN_META_NAME = "name";
+    public static final String COLUMN_META_VALUE = "value";
+    static final String META_GENERATION = "generation";
+    // Key Rotation rows, see Key Rotation
+    static final String META_KEY_VERSION = "key_version";
+    static final String META_ROTATION_FROM = "rotation_from";
+    static final String META_ROTATION_KEY = "rotation_key";
+    // Rows still alive at the bound time (the only arg)
+    static final String NOT_EXPIRED = "(" + COLUMN_EXPIRES_AT + " IS NULL OR " + COLUMN_EXPIRES_AT + " > ?)";
+
+    /**
+     * Type Codes
+     * ------------------------------------------------------------------------
+     * - Stored in COLUMN_DATA_TYPE. The low byte is the value type, the bits
+     *   above it are flags about how the value is stored.
+     * - FLAG_ENCRYPTED: the value is a BLOB of [IV + Ciphertext], the
+     *   encrypted bytes of plainBytes(). Without it, the value is stored as its native SQLite type:
+     *   String -> TEXT, Integer/Long/Boolean -> INTEGER, Float/Double -> REAL.
+     * - int[]/long[]/double[] are packed little-endian bytes (PackedArrays),
+     *   stored as a BLOB, encrypted or not.
+     * - FLAG_COMPRESSED: the plain bytes were deflated (PreferencesCompression)
+     *   before encryption, or, without FLAG_ENCRYPTED, the value is a BLOB
+     *   of deflated bytes. See Compression and Encryption Policy.
+     * - FLAG_SPILLED: the value is TEXT, the name of the file that holds
+     *   what the BLOB would have (see Spill Files). The other flags keep
+     *   their meaning for the file.
+     * - Bits 16-23 of an encrypted value: the version of the key it was
+     *   encrypted with, see Key Rotation. 0 for rows written before.
+     * - Never renumber these, they are on the disk.
+     */
+    static final int TYPE_UNKNOWN = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_BOOLEAN = 2;
+    static final int TYPE_INTEGER = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_FLOAT = 5;
+    static final int TYPE_DOUBLE = 6;
+    static final int TYPE_INT_ARRAY = 7;
+    static final int TYPE_LONG_ARRAY = 8;
+    static final int TYPE_DOUBLE_ARRAY = 9;
+    static final int TYPE_MASK = 0xFF;
+    static final int FLAG_ENCRYPTED = 0x100;
+    static final int FLAG_COMPRESSED = 0x200;
+    static final int FLAG_SPILLED = 0x400;
+    static final int KEY_VERSION_SHIFT = 16;
+    static final int KEY_VERSION_MASK = 0xFF;
 
+    /**
+     * Flush Engine
+     * ------------------------------------------------------------------------
+     * - PreferencesWriter drains the pending writes (see Pending Writes) and
+     *   writes them in one transaction, on the writer thread.
+     */
+    final PreferencesWriter batchWriter = new PreferencesWriter(this);
 
     /**
      * Objects
@@ -128,6 +354,45 @@ public class SqlPreferences extends SQLiteOpenHelper {
     private static final String PREFIX_OBJ = "pref_obj_";
     private static final String PREFIX_LIST = "pref_list_obj_";
 
+    /**
+     * Gson
+     * ------------------------------------------------------------------------
+     * - One shared instance. Gson is thread-safe, and building one per call
+     *   throws away its type adapter cache every time.
+     */
+    static final Gson GSON = new Gson();
+
+    /**
+     * Object Cache
+     * ------------------------------------------------------------------------
+     * - Optional second level cache of deserialized objects and lists, so
+     *   getObject(key, type, true) does not run Gson on every call.
+     * - Keyed by storage key. Each entry remembers the JSON string instance
+     *   it was parsed from, and the type it was parsed to. It is only used
+     *   while the cache still holds that same string, so a value replaced
+     *   by any path can never be served stale.
+     * - Entries are also dropped as soon as apply(), remove() or clear()
+     *   touch their key, so replaced objects do not hold memory.
+     * - Bounded by the size of the JSON (2 bytes per char), as an estimate
+     *   of the deserialized object. Disabled (null) by default, see
+     *   setObjectCacheSize().
+     */
+    private volatile LruCache<String, ObjectEntry> objectCache;
+    private final AtomicLong objectCacheHits = new AtomicLong();
+    private final AtomicLong objectCacheMisses = new AtomicLong();
+
+    private static final class ObjectEntry {
+        final String json;
+        final Type type;
+        final Object instance;
+
+        ObjectEntry(String json, Type type, Object instance) {
+            this.json = json;
+            this.type = type;
+            this.instance = instance;
+        }
+    }
+
     /**
      * Encryption
      * ------------------------------------------------------------------------
@@ -141,15 +406,486 @@ public class SqlPreferences extends SQLiteOpenHelper {
     public static String SECRET_KEY = DEFAULT_SECRET_KEY;
     public static boolean ENABLE_ENCRYPTION = true;
 
+    /**
+     * Encryption Policy
+     * ------------------------------------------------------------------------
+     * - How the value of a key is stored, declared per key or key prefix,
+     *   so hot keys that hold nothing secret skip the cipher, while secrets
+     *   stay encrypted in the same table:
+     *   - ENCRYPT: AES-GCM, same as ENABLE_ENCRYPTION.
+     *   - PLAIN: native SQLite type, no cipher on write or read.
+     *   - COMPRESS_ENCRYPT: deflated, then encrypted. For large text (JSON)
+     *     values. Stored as ENCRYPT if deflate does not make it smaller.
+     * - Matched against the key given to put___(), putObject(),
+     *   putListObject() and appendToList(). The longest matching prefix
+     *   wins, an exact key counts as its own prefix. Keys with no policy
+     *   follow ENABLE_ENCRYPTION (or Options.setEncryption()).
+     * - Each row records how it was stored in its Type Code flags, so a
+     *   table can mix policies, and a policy can change between releases:
+     *   old rows are read as they were written, and take the new policy on
+     *   their next write.
+     * - Declared before init with setEncryptionPolicy(), or in the Options
+     *   of a named store. Read once when the store is made.
+     */
+    public enum EncryptionPolicy {
+        ENCRYPT,
+        PLAIN,
+        COMPRESS_ENCRYPT
+    }
+    private static volatile PrefixIndex<EncryptionPolicy> ENCRYPTION_POLICIES = PrefixIndex.empty();
+
+    /**
+     * Compression
+     * ------------------------------------------------------------------------
+     * - A value of COMPRESS_MIN_BYTES or more (its UTF-8 or packed bytes) is
+     *   deflated before it is encrypted, or before it is stored for a PLAIN
+     *   key, and flagged FLAG_COMPRESSED. Below it, a deflate call costs
+     *   more than the few bytes it saves. 0 turns it off, COMPRESS_ENCRYPT
+     *   keys are still compressed whatever their size.
+     * - Kept only if smaller, see PreferencesCompression.deflate().
+     * - Decompressed lazily: the preload and the snapshot keep the deflated
+     *   bytes in the cache (Deflated), the first read of the key inflates
+     *   them and caches the value instead. A large JSON that is never read
+     *   costs neither the inflate nor its String.
+     * - Read once when the instance is made, see also
+     *   Options.setCompressMinBytes().
+     */
+    public static int COMPRESS_MIN_BYTES = 8 * 1024;
+
+    /**
+     * Spill Files
+     * ------------------------------------------------------------------------
+     * - A stored value (after compression and encryption) of SPILL_MIN_BYTES
+     *   or more is written to a file of its own, under
+     *   files/sql_preferences_spill/<database name>/, and its row keeps only
+     *   the file name, flagged FLAG_SPILLED. A row of several MB would
+     *   crowd the CursorWindow and slow every full table read.
+     * - Row list elements are never spilled, they are meant to be small.
+     * - The preload and the snapshot keep only the file name in the cache
+     *   (Spilled), the first read of the key reads the file. An encrypted
+     *   file is decrypted straight from a memory mapping.
+     * - A file is deleted once the transaction that removes or overwrites
+     *   its row commits. Files left by a crash (orphans) are deleted at
+     *   init, see PreferencesSpills.
+     * - 0 turns it off. Read once when the instance is made, see also
+     *   Options.setSpillMinBytes().
+     */
+    public static int SPILL_MIN_BYTES = 256 * 1024;
+    final PreferencesSpills spills = new PreferencesSpills(this);
+
+    /**
+     * Lazy Loading
+     * ------------------------------------------------------------------------
+     * - false (default): init()/initSync() read the whole table into the
+     *   cache, and the cache keeps everything.
+     * - true: nothing is preloaded. A cache miss reads that one key through
+     *   the primary key index, and the cache is bounded by an LRU policy of
+     *   LAZY_CACHE_MAX_ENTRIES keys.
+     * - Set both before init, they are read once when the instance is made.
+     */
+    public static boolean LAZY_LOADING = false;
+    public static int LAZY_CACHE_MAX_ENTRIES = 1000;
+
+    /**
+     * Memory Budget
+     * ------------------------------------------------------------------------
+     * - CACHE_MAX_BYTES: budget of the cache, from the estimated size of the
+     *   keys and values (2 bytes per char, element size of arrays). 0
+     *   (default) for no budget. Above 0 the cache is bounded even without
+     *   LAZY_LOADING: the least recently used keys are evicted, and a read of
+     *   an evicted key loads it from the disk again.
+     * - CACHE_MAX_VALUE_BYTES: a value heavier than this is never cached by
+     *   a bounded cache. Each read of it goes to the disk, instead of one
+     *   large value evicting hundreds of small ones.
+     * - An unbounded cache (the default) keeps every value, whatever its
+     *   size: it is the only copy the reads have.
+     * - Combine with LAZY_LOADING to also skip the preload. Read once when
+     *   the instance is made.
+     */
+    public static int CACHE_MAX_BYTES = 0;
+    public static int CACHE_MAX_VALUE_BYTES = 256 * 1024;
+
+    /**
+     * Trim Memory
+     * ------------------------------------------------------------------------
+     * - One ComponentCallbacks2 for the process, registered with the
+     *   Application by the first instance. It forwards onTrimMemory() to
+     *   every live instance, see trimMemory().
+     * - Instances are held weakly: one made with the public constructor and
+     *   dropped can still be collected. Guarded by TRIM_TARGETS.
+     */
+    private static final Set<SqlPreferences> TRIM_TARGETS = Collections.newSetFromMap(new WeakHashMap<>());
+    private static boolean trimCallbacksRegistered = false;
+
+    /**
+     * Durability
+     * ------------------------------------------------------------------------
+     * - How hard the database tries to keep a committed write across a crash
+     *   or power loss, against how much each flush costs.
+     * - Every profile enables write-ahead logging (WAL): readers (getAll(),
+     *   lazy reads) see the last committed state while the writer commits,
+     *   instead of waiting on the rollback journal lock.
+     * - FAST: synchronous=OFF, no fsync at all. An app crash loses nothing,
+     *   a power loss or OS crash can lose the last flushes. Larger checkpoint
+     *   interval and page cache.
+     * - BALANCED (default): synchronous=NORMAL. The WAL is synced on each
+     *   checkpoint, not on each commit: a power loss can roll back the last
+     *   flushes but never corrupts the file.
+     * - STRICT: synchronous=FULL. Each commit is synced before commit() or
+     *   flush() returns.
+     * - DURABILITY is read once when the instance is made, same as
+     *   LAZY_LOADING, or pass one to getInstance()/init().
+     */
+    public enum Durability {
+        FAST(0, 4000, 4096),
+        BALANCED(1, 1000, 2048),
+        STRICT(2, 1000, 2048);
+
+        // PRAGMA synchronous level: 0 OFF, 1 NORMAL, 2 FULL
+        final int synchronous;
+        // PRAGMA wal_autocheckpoint, in pages
+        final int checkpointPages;
+        // PRAGMA cache_size, in KiB
+        final int cacheSizeKb;
+
+        Durability(int synchronous, int checkpointPages, int cacheSizeKb) {
+            this.synchronous = synchronous;
+            this.checkpointPages = checkpointPages;
+            this.cacheSizeKb = cacheSizeKb;
+        }
+    }
+    public static Durability DURABILITY = Durability.BALANCED;
+
+    /**
+     * Options
+     * ------------------------------------------------------------------------
+     * - Settings of a named store, see open().
+     * - A new Options starts from the current static settings (SECRET_KEY,
+     *   ENABLE_ENCRYPTION, LAZY_LOADING, ...). Change what differs:
+     *       new SqlPreferences.Options().setSecretKey(key).setLazyLoading(true)
+     * - Read once when the store is made, later changes are ignored.
+     */
+    public static final class Options {
+        String secretKey = SECRET_KEY;
+        boolean encryption = ENABLE_ENCRYPTION;
+        boolean lazyLoading = LAZY_LOADING;
+        int lazyCacheMaxEntries = LAZY_CACHE_MAX_ENTRIES;
+        int cacheMaxBytes = CACHE_MAX_BYTES;
+        int cacheMaxValueBytes = CACHE_MAX_VALUE_BYTES;
+        boolean snapshot = ENABLE_SNAPSHOT;
+        Durability durability = DURABILITY;
+        PrefixIndex<EncryptionPolicy> encryptionPolicies = ENCRYPTION_POLICIES;
+        int compressMinBytes = COMPRESS_MIN_BYTES;
+        int spillMinBytes = SPILL_MIN_BYTES;
+
+        /**
+         * @param secretKey Key of this store, 16, 24, or 32 bytes long.
+         *                  Also enables encryption.
+         */
+        public Options setSecretKey(String secretKey) {
+            this.secretKey = secretKey;
+            this.encryption = true;
+            return this;
+        }
+
+        public Options setEncryption(boolean encryption) {
+            this.encryption = encryption;
+            return this;
+        }
+
+        public Options setLazyLoading(boolean lazyLoading) {
+            this.lazyLoading = lazyLoading;
+            return this;
+        }
+
+        public Options setLazyCacheMaxEntries(int lazyCacheMaxEntries) {
+            this.lazyCacheMaxEntries = lazyCacheMaxEntries;
+            return this;
+        }
+
+        public Options setCacheMaxBytes(int cacheMaxBytes) {
+            this.cacheMaxBytes = cacheMaxBytes;
+            return this;
+        }
+
+        public Options setCacheMaxValueBytes(int cacheMaxValueBytes) {
+            this.cacheMaxValueBytes = cacheMaxValueBytes;
+            return this;
+        }
+
+        public Options setSnapshot(boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public Options setDurability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * @param keyOrPrefix A key, or a key prefix such as "ui:".
+         * @param policy      How to store the matching keys, see Encryption
+         *                    Policy.
+         */
+        public Options setEncryptionPolicy(String keyOrPrefix, EncryptionPolicy policy) {
+            this.encryptionPolicies = encryptionPolicies.with(keyOrPrefix, policy);
+            return this;
+        }
+
+        public Options setCompressMinBytes(int compressMinBytes) {
+            this.compressMinBytes = compressMinBytes;
+            return this;
+        }
+
+        public Options setSpillMinBytes(int spillMinBytes) {
+            this.spillMinBytes = spillMinBytes;
+            return this;
+        }
+    }
+
+    /**
+     * Derived Key
+     * ------------------------------------------------------------------------
+     * - secretKey() hashed once by CryptoUtil.deriveKey(), instead of once
+     *   per value. Derived again only if the key changes.
+     */
+    private volatile DerivedKey derivedKey;
+
+    private static final class DerivedKey {
+        final String source;
+        final SecretKeySpec spec;
+
+        DerivedKey(String source, SecretKeySpec spec) {
+            this.source = source;
+            this.spec = spec;
+        }
+    }
+
     /**
      * Caching
      * ------------------------------------------------------------------------
-     * - cache: holds saved data in memory (RAM).
+     * - cache: holds saved data in memory (RAM). Bounded in lazy mode or
+     *   with a memory budget, where it also remembers keys known to be
+     *   absent (ABSENT), so a missing key is not looked up on the disk again
+     *   and again. A miss of a bounded cache reads the disk, see lookup().
+     *   A read that failed (FAILED) is never cached: the key is read from
+     *   the disk again on next use.
      * - tempMap: holds data added by put___() until apply() is called.
+     *   Shared by every caller, see edit() for a batch of one's own.
+     * - loaded: the preload of initSync() has been done. Guarded by loadLock,
+     *   so concurrent init() and getInstance() read the table only once.
      */
-    private final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<>();
+    private static final Object ABSENT = new Object();
+    private static final Object FAILED = new Object();
+    private final boolean lazyLoading;
+    private final Durability durability;
+    final PreferencesCache cache;
+    private final Object loadLock = new Object();
+    private volatile boolean loaded = false;
     private final ConcurrentHashMap<String, Object> tempMap = new ConcurrentHashMap<>();
 
+    /**
+     * Pending Writes
+     * ------------------------------------------------------------------------
+     * - apply(), remove() and clear() do not queue a task each. They merge
+     *   into one dirty-key map that the writer drains in a single flush.
+     * - pendingWrites: last write wins per key. REMOVED marks a delete, so a
+     *   put followed by a remove of the same key is written once, as a
+     *   delete.
+     * - pendingClear: clear() was called since the last flush. It always runs
+     *   first in the flush, because clear() also drops every pending entry
+     *   made before it; what is left in pendingWrites came after.
+     * - pendingRangeDeletes: prefixes given to removePrefix(). Each is one
+     *   range DELETE, run after pendingClear and before pendingWrites, for
+     *   the same reason: removePrefix() drops the pending entries it covers.
+     * - A flush runs flushDelayMs after the first change, or right away once
+     *   flushThreshold keys are pending. Both can be tuned per instance.
+     * - pendingWaiters: futures of commitAsync()/flush(). Their flush is run
+     *   at once, without the debounce window, and completes them when its
+     *   transaction ends.
+     * - flushingWrites/flushingClear/flushingRangeDeletes: the batch the
+     *   writer is writing right now. A lazy read checks it too, since it is
+     *   neither pending nor on the disk yet.
+     * - flushCount: flushes that reached the disk, used by readBetweenFlushes()
+     *   to detect a flush that committed while it was reading.
+     * - All fields are guarded by pendingLock. Cache writes made by apply(),
+     *   remove() and clear() happen under it as well, so a lazy read can
+     *   never put back a value that was changed while it was reading.
+     * - publishing: the batch being copied into the cache, one key at a
+     *   time. lookup() reads it first, so a batch shows up whole: a reader
+     *   that has seen one of its values sees all the others. Written under
+     *   pendingLock, read without it.
+     */
+    public static final long DEFAULT_FLUSH_DELAY_MS = 100;
+    public static final int DEFAULT_FLUSH_THRESHOLD = 500;
+    static final Object REMOVED = new Object();
+    final Object pendingLock = new Object();
+    HashMap<String, Object> pendingWrites = new HashMap<>();
+    boolean pendingClear = false;
+    List<String> pendingRangeDeletes = new ArrayList<>();
+    Map<String, Object> flushingWrites = null;
+    boolean flushingClear = false;
+    List<String> flushingRangeDeletes = null;
+    long flushCount = 0;
+    private volatile Map<String, Object> publishing = null;
+    // commitAsync()/flush() futures, completed by the flush that drains them
+    List<CompletableFuture<Boolean>> pendingWaiters = new ArrayList<>();
+    ScheduledFuture<?> flushTask;
+    long flushDelayMs = DEFAULT_FLUSH_DELAY_MS;
+    int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+    /**
+     * Write Queue Limit
+     * ------------------------------------------------------------------------
+     * - pendingWrites is the write queue: one entry per distinct key, however
+     *   many apply() calls changed it. maxPendingWrites bounds it, for when
+     *   the writer falls behind a burst of new keys (bulk sync).
+     * - Only apply()/commitAsync() batches that add new keys are checked. A
+     *   batch larger than the limit is still taken into an empty queue.
+     * - WritePolicy says what a batch that does not fit does:
+     *   . COALESCE (default): taken anyway, and the flush is run at once.
+     *   . BLOCK: the caller waits until a flush takes the queue. On the
+     *     writer thread it cannot wait for itself, so it coalesces.
+     *   . FAIL_FAST: the batch is dropped, not cached and not written.
+     *     commitAsync() completes with false, OnWriteRejectedListener is
+     *     called with its keys.
+     * - The waiters of BLOCK wait on pendingLock, woken by each queue swap.
+     */
+    public static final int DEFAULT_MAX_PENDING_WRITES = 10_000;
+    public enum WritePolicy { BLOCK, COALESCE, FAIL_FAST }
+    private int maxPendingWrites = DEFAULT_MAX_PENDING_WRITES;
+    private WritePolicy writePolicy = WritePolicy.COALESCE;
+    private volatile @Nullable OnWriteRejectedListener onWriteRejectedListener;
+
+    /**
+     * Write Stats
+     * ------------------------------------------------------------------------
+     * - requestedWrites: key changes handed over by apply() and remove().
+     * - writtenRows: rows actually inserted or deleted by the writer.
+     * - Their ratio is how many changes each row write absorbed.
+     * - droppedRows: rows the writer could not write (no key, failed
+     *   encryption, failed insert), see PreferencesWriter.writeBatch().
+     * - Guarded by pendingLock, updated by PreferencesWriter.flushPending().
+     */
+    long requestedWrites = 0;
+    long writtenRows = 0;
+    long droppedRows = 0;
+    // Write queue metrics: time apply() callers waited for room (BLOCK),
+    // batches dropped (FAIL_FAST), time spent in the flush transaction
+    private long enqueueWaitNanos = 0;
+    private long rejectedWrites = 0;
+    long flushNanos = 0;
+    long lastFlushNanos = 0;
+
+    /**
+     * Snapshot
+     * ------------------------------------------------------------------------
+     * - The cache, decoded, in one file next to the database ("<database
+     *   file>-snapshot"), see PreferencesSnapshot. initSync() fills the cache
+     *   from it with one decryption, instead of a cursor walk, a decryption
+     *   and a parse per row.
+     * - Generation: a counter in the meta table, bumped by every flush that
+     *   changes a row, inside the same transaction. A snapshot records the
+     *   generation it was taken at, and is only used while the database is
+     *   still at it. Any other write, or a crash in between, makes it stale
+     *   and the table is read instead. It starts at a random value, so a
+     *   database deleted and created again never matches an old file.
+     * - Written by the writer SNAPSHOT_DELAY_MS after the last flush, once
+     *   the store is settled, see PreferencesSnapshots.
+     * - Sweeps do not bump the generation: expired entries are skipped when
+     *   the snapshot is read, as they are by the SQL.
+     * - Only for an unbounded cache, the only one that is a copy of the whole
+     *   table. Disable with ENABLE_SNAPSHOT = false before init.
+     * - flushFailed is guarded by pendingLock.
+     */
+    public static boolean ENABLE_SNAPSHOT = true;
+    public static final long SNAPSHOT_DELAY_MS = 5_000;
+    final PreferencesSnapshots snapshots;
+    // The last flush failed: the cache holds writes the disk does not have
+    // yet, requeued by PreferencesWriter
+    boolean flushFailed = false;
+
+    /**
+     * Key Rotation
+     * ------------------------------------------------------------------------
+     * - rotateKey() re-encrypts every encrypted row under a new key, in
+     *   chunks on the writer, see PreferencesKeyRotation.
+     * - Each encrypted row carries the version of its key in its Type Code.
+     *   rotation.retiredKey is the key rotated away from: reads pick the
+     *   key by the row's version, so the store reads and writes normally in
+     *   the middle of a rotation.
+     */
+    final PreferencesKeyRotation rotation = new PreferencesKeyRotation(this);
+
+    /**
+     * Expiry
+     * ------------------------------------------------------------------------
+     * - put___(key, value, ttlMillis) stores an expiry time with the value.
+     * - expiries: expiry of every key in memory that has one. A lookup of an
+     *   expired key returns null right away, no I/O. Keys without expiry are
+     *   not in it, so it stays empty when TTL is not used.
+     * - On the disk, expired rows are filtered by SQL (NOT_EXPIRED), so the
+     *   preload never decrypts them.
+     * - The sweeper runs on the writer every sweepIntervalMs and deletes
+     *   expired rows in batches of SWEEP_BATCH_SIZE. It stops itself once
+     *   no row can expire, and starts again with the next TTL write.
+     * - sweepTask and sweepIntervalMs are guarded by pendingLock.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL_MS = 60_000;
+    private static final int SWEEP_BATCH_SIZE = 500;
+    final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> sweepTask;
+    private long sweepIntervalMs = DEFAULT_SWEEP_INTERVAL_MS;
+
+    /**
+     * Counters
+     * ------------------------------------------------------------------------
+     * - increment()/addAndGet() keys, see PreferencesCounters: striped
+     *   cells, no lock and no write per call.
+     * - Every counterFlushMs the writer hands the total of each dirty
+     *   counter to the pending writes, see drainCounters().
+     * - A put___(), remove(), removePrefix() or clear() of the key drops
+     *   the counter, and the next increment() starts from the stored value.
+     * - A counter keeps the type of the stored number, and a TTL key its
+     *   expiry: counting a putInt() key leaves it an int, read by getInt().
+     * - counterTask and counterFlushMs are guarded by pendingLock.
+     */
+    public static final long DEFAULT_COUNTER_FLUSH_MS = 5_000;
+    private final PreferencesCounters counters = new PreferencesCounters(pendingLock, this::lookup, this::ensureCounterTask);
+    private volatile ScheduledFuture<?> counterTask;
+    private long counterFlushMs = DEFAULT_COUNTER_FLUSH_MS;
+
+    /**
+     * Row Lists
+     * ------------------------------------------------------------------------
+     * - appendToList() lists live in their own table, one row per element,
+     *   keyed by (list_key, list_index). An append writes one row, a page
+     *   reads only its rows, whatever the length of the list.
+     * - PreferencesRowLists holds their windows, the appends and trims not
+     *   written yet, and writes them in the flush transaction.
+     * - Separate from the key-value rows: keys(), getAll() and listeners do
+     *   not see them, nor do remove() and removePrefix(). clear() deletes
+     *   them too.
+     */
+    final PreferencesRowLists rowLists;
+
+    /**
+     * Expiring
+     * ------------------------------------------------------------------------
+     * - A value put with a TTL, as held by tempMap and the pending writes.
+     *   The cache holds the bare value, its expiry goes to expiries.
+     */
+    static final class Expiring {
+        final Object value;
+        final long expiresAt;
+
+        Expiring(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     /**
      * OnLoadListener
      * ------------------------------------------------------------------------
@@ -159,6 +895,54 @@ public class SqlPreferences extends SQLiteOpenHelper {
         void onLoaded();
     }
 
+    /**
+     * OnChangeListener
+     * ------------------------------------------------------------------------
+     * - Callback to notify that stored keys changed.
+     * - Called once per apply(), remove() or clear(), with every changed key
+     *   that matches the registration, never once per key.
+     * - Keys are storage keys: putObject()/putListObject() keys carry the
+     *   "pref_obj_"/"pref_list_obj_" prefix.
+     * - An empty set means clear() was called: every key may have changed.
+     * - Runs on the executor given to registerListener().
+     */
+    public interface OnChangeListener{
+        void onChanged(SqlPreferences preferences, Set<String> changedKeys);
+    }
+
+    /**
+     * OnWriteRejectedListener
+     * ------------------------------------------------------------------------
+     * - Callback of WritePolicy.FAIL_FAST: a batch did not fit the write
+     *   queue and was dropped, nothing of it was cached or written.
+     * - Runs on the thread that called apply()/commitAsync().
+     */
+    public interface OnWriteRejectedListener{
+        void onWriteRejected(SqlPreferences preferences, Set<String> rejectedKeys);
+    }
+
+    /**
+     * Change Listeners
+     * ------------------------------------------------------------------------
+     * - Registrations indexed by key prefix (see PrefixIndex), so finding the
+     *   listeners of a key does not walk every registration.
+     * - Copy-on-write: apply() reads the current index without locking,
+     *   registerListener()/unregisterListener() swap in a new one under
+     *   listenerLock.
+     */
+    private final Object listenerLock = new Object();
+    private volatile PrefixIndex<ListenerRegistration> listeners = PrefixIndex.empty();
+
+    private static final class ListenerRegistration {
+        final OnChangeListener listener;
+        final Executor executor;
+
+        ListenerRegistration(OnChangeListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
     Application context;
     Boolean allowSaveNull = true; // we can assign null to an item
 
@@ -171,8 +955,186 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @param context any context
      */
     public SqlPreferences(@NonNull Context context) {
+        this(context, DURABILITY);
+    }
+
+    /**
+     * ------------------------------------------------------------------------
+     * Constructor (with Durability)
+     * ------------------------------------------------------------------------
+     * - Use getInstance() to get an instance
+     * @param context    any context
+     * @param durability the durability profile, null for DURABILITY.
+     */
+    public SqlPreferences(@NonNull Context context, @Nullable Durability durability) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         this.context = (Application) context.getApplicationContext();
+        this.storeName = null;
+        this.tableName = TABLE_NAME;
+        this.listTableName = TABLE_NAME + "_list";
+        this.rowLists = new PreferencesRowLists(this, listTableName);
+        this.metaTableName = TABLE_NAME + "_meta";
+        this.storeSecretKey = null;
+        this.storeEncryption = null;
+        this.encryptionPolicies = ENCRYPTION_POLICIES;
+        this.compressMinBytes = COMPRESS_MIN_BYTES;
+        this.spillMinBytes = SPILL_MIN_BYTES;
+        this.writer = DEFAULT_WRITER;
+        this.lazyLoading = LAZY_LOADING;
+        this.durability = durability != null ? durability : DURABILITY;
+        this.cache = new PreferencesCache(lazyLoading ? Math.max(1, LAZY_CACHE_MAX_ENTRIES) : 0,
+                CACHE_MAX_BYTES, CACHE_MAX_VALUE_BYTES);
+        this.snapshots = new PreferencesSnapshots(this, ENABLE_SNAPSHOT);
+        setWriteAheadLoggingEnabled(true);
+        registerForTrimMemory(this.context, this);
+    }
+
+    /**
+     * ------------------------------------------------------------------------
+     * Constructor (Named Store, Private)
+     * ------------------------------------------------------------------------
+     * - Use open() to get a named store.
+     * @param context any context
+     * @param name    the store name, see open().
+     * @param options the store settings.
+     */
+    private SqlPreferences(@NonNull Context context, @NonNull String name, @NonNull Options options) {
+        super(context, "sql_preferences_" + name + ".db", null, DATABASE_VERSION);
+        this.context = (Application) context.getApplicationContext();
+        this.storeName = name;
+        this.tableName = TABLE_NAME;
+        this.listTableName = TABLE_NAME + "_list";
+        this.rowLists = new PreferencesRowLists(this, listTableName);
+        this.metaTableName = TABLE_NAME + "_meta";
+        this.storeEncryption = options.encryption;
+        this.storeSecretKey = validSecretKey(options.secretKey);
+        this.encryptionPolicies = options.encryptionPolicies;
+        this.compressMinBytes = options.compressMinBytes;
+        this.spillMinBytes = options.spillMinBytes;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SqlPreferences-writer-" + name);
+            storeWriterThread = thread;
+            return thread;
+        });
+        this.lazyLoading = options.lazyLoading;
+        this.durability = options.durability != null ? options.durability : DURABILITY;
+        this.cache = new PreferencesCache(lazyLoading ? Math.max(1, options.lazyCacheMaxEntries) : 0,
+                options.cacheMaxBytes, options.cacheMaxValueBytes);
+        this.snapshots = new PreferencesSnapshots(this, options.snapshot);
+        setWriteAheadLoggingEnabled(true);
+        registerForTrimMemory(this.context, this);
+    }
+
+    /**
+     * ---------------------------------------------------------------------------------
+     *  Open (Named Store)
+     * ---------------------------------------------------------------------------------
+     * - Returns the store called name, creating it on first call.
+     * - Each store has its own database file, cache, encryption settings and
+     *   writer thread. Writes to one store never wait behind another.
+     * - Same as getInstance(), loads the store into the cache synchronously
+     *   unless it is lazy.
+     *
+     * @param context Any valid context
+     * @param name    Letters, digits and '_' only. Also names the file.
+     * @param options The store settings, or null for the static settings.
+     * @return The store
+     * @throws IllegalArgumentException if the name is empty or has other characters.
+     * @implNote Like getInstance(), the first call dictates the options. Later
+     *           calls with the same name return the same store and ignore theirs.
+     */
+    public static SqlPreferences open(Context context, String name, @Nullable Options options) {
+        if (name == null || !name.matches("[A-Za-z0-9_]+")) {
+            throw new IllegalArgumentException("Invalid store name: " + name);
+        }
+        SqlPreferences store = STORES.get(name);
+        if (store == null) {
+            synchronized (STORES) {
+                store = STORES.get(name);
+                if (store == null) {
+                    store = new SqlPreferences(context.getApplicationContext(), name,
+                            options != null ? options : new Options());
+                    STORES.put(name, store);
+                }
+            }
+        }
+        store.initSync();
+        return store;
+    }
+
+    /**
+     * ---------------------------------------------------------------------------------
+     *  Open (Named Store with Static Settings)
+     * ---------------------------------------------------------------------------------
+     * @see #open(Context, String, Options)
+     */
+    public static SqlPreferences open(Context context, String name) {
+        return open(context, name, null);
+    }
+
+    /**
+     * ************************************************************************
+     * close()
+     * ************************************************************************
+     * - Named store: write what is pending, stop the writer and its tasks
+     *   (flush, snapshot, expiry sweep, counters, key rotation), close the
+     *   database and forget the store. The next open() of the same name
+     *   makes a new one.
+     * - A key rotation in progress stops between two chunks, and resumes
+     *   when the store is opened again, see Key Rotation.
+     * - The store must not be used afterwards: its writes are rejected.
+     * - Default store: closes the database only, as before. Its writer is
+     *   shared and stays up, the database is opened again on next use.
+     */
+    @Override
+    public void close(){
+        if(storeName==null){
+            super.close();
+            return;
+        }
+        synchronized (STORES){
+            if(closed){
+                return;
+            }
+            flush();
+            synchronized (pendingLock){
+                closed = true;
+                for(ScheduledFuture<?> task : new ScheduledFuture<?>[]{flushTask, sweepTask, counterTask}){
+                    if(task!=null){
+                        task.cancel(false);
+                    }
+                }
+                flushTask = null;
+                sweepTask = null;
+                counterTask = null;
+                snapshots.cancel();
+                rotation.cancel();
+            }
+            writer.shutdown();
+            try {
+                // A task already running (a rotation chunk) ends first
+                if(!writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+                    Logger.e(TAG + " close(): the writer of \"" + storeName + "\" did not stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            STORES.remove(storeName, this);
+            synchronized (TRIM_TARGETS){
+                TRIM_TARGETS.remove(this);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getStoreName()
+     * ************************************************************************
+     * @return The name given to open(), or null for the default store.
+     */
+    public @Nullable String getStoreName() {
+        return storeName;
     }
 
     /**
@@ -212,18 +1174,24 @@ public class SqlPreferences extends SQLiteOpenHelper {
      *           with different keys will be silently ignored, as the instance is already created.
      */
     public static SqlPreferences getInstance(Context context, String secretKey) {
-        if (INSTANCE == null) {
-            synchronized (SqlPreferences.class) {
-                if (INSTANCE == null) {
-                    INSTANCE = new SqlPreferences(context.getApplicationContext());
-                    if (secretKey != null) {
-                        INSTANCE.setSecretKey(secretKey);
-                    } else {
-                        warnIfUsingDefaultSecretKey();
-                    }
-                }
-            }
-        }
+        return getInstance(context, secretKey, null);
+    }
+
+    /**
+     * ---------------------------------------------------------------------------------
+     *  Get Instance (Singleton with Custom Secret Key and Durability)
+     * ---------------------------------------------------------------------------------
+     * - Same as getInstance(context, secretKey), and sets the durability
+     *   profile of the instance, see Durability.
+     *
+     * @param context    Any valid context
+     * @param secretKey  Custom secret key for encryption, or null for the default key.
+     * @param durability The durability profile, or null for DURABILITY.
+     * @return The singleton SqlPreferences instance
+     * @implNote Same singleton behavior: ignored if the instance already exists.
+     */
+    public static SqlPreferences getInstance(Context context, @Nullable String secretKey, @Nullable Durability durability) {
+        createInstance(context, secretKey, durability);
 
         // Check if data is loaded into in-memory (Cache).
         // If already loaded (e.g., via init()), this returns immediately without blocking.
@@ -234,14 +1202,40 @@ public class SqlPreferences extends SQLiteOpenHelper {
 
     /**
      * ************************************************************************
-     * warnIfUsingDefaultSecretKey() (Private)
+     * createInstance() (Private)
      * ************************************************************************
-     * - Log a warning if the default secret key is being used.
-     * - The library source (including DEFAULT_SECRET_KEY) is public on GitHub.
+     * - Create the singleton if it does not exist (double-checked locking).
+     * ------------------------------------------------------------------------
+     * @param context    Any valid context.
+     * @param secretKey  Custom secret key, or null for the default key.
+     * @param durability The durability profile, or null for DURABILITY.
      */
-    private static void warnIfUsingDefaultSecretKey(){
-        if(ENABLE_ENCRYPTION && DEFAULT_SECRET_KEY.equals(SECRET_KEY)){
-            String err = "SqlPreferences: using the library's default SECRET_KEY, which is " +
+    private static void createInstance(Context context, @Nullable String secretKey, @Nullable Durability durability){
+        if (INSTANCE == null) {
+            synchronized (SqlPreferences.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new SqlPreferences(context.getApplicationContext(),
+                            durability != null ? durability : DURABILITY);
+                    if (secretKey != null) {
+                        INSTANCE.setSecretKey(secretKey);
+                    } else {
+                        warnIfUsingDefaultSecretKey();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * warnIfUsingDefaultSecretKey() (Private)
+     * ************************************************************************
+     * - Log a warning if the default secret key is being used.
+     * - The library source (including DEFAULT_SECRET_KEY) is public on GitHub.
+     */
+    private static void warnIfUsingDefaultSecretKey(){
+        if(ENABLE_ENCRYPTION && DEFAULT_SECRET_KEY.equals(SECRET_KEY)){
+            String err = "SqlPreferences: using the library's default SECRET_KEY, which is " +
                     "public (this library's source is on GitHub). Call setSecretKey() with " +
                     "your own app-specific key before first use, or your \"encrypted\" data " +
                     "is only as safe as a key anyone can read from the repo.";
@@ -258,7 +1252,165 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The current secret key string.
      */
     public String getCurrentSecretKey() {
-        return SECRET_KEY;
+        return secretKey();
+    }
+
+    /**
+     * ************************************************************************
+     * setEncryptionPolicy()
+     * ************************************************************************
+     * - Declare how a key, or every key under a prefix, is stored in the
+     *   default store, see Encryption Policy. Options made afterwards start
+     *   with it too.
+     * - Call before init()/getInstance(): the store reads the policies once.
+     * ------------------------------------------------------------------------
+     * @param keyOrPrefix A key, or a key prefix such as "ui:".
+     * @param policy      How to store the matching keys.
+     */
+    public static void setEncryptionPolicy(String keyOrPrefix, EncryptionPolicy policy) {
+        synchronized (SqlPreferences.class) {
+            ENCRYPTION_POLICIES = ENCRYPTION_POLICIES.with(keyOrPrefix, policy);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * secretKey() (Package-Private)
+     * ************************************************************************
+     * @return The key of this store, or SECRET_KEY for the default store
+     *         until it is rotated.
+     */
+    String secretKey(){
+        return storeSecretKey != null ? storeSecretKey : SECRET_KEY;
+    }
+
+    // The default store too: SECRET_KEY stays the app's, see Named Stores
+    void applySecretKey(String secretKey){
+        storeSecretKey = secretKey;
+    }
+
+    /**
+     * ************************************************************************
+     * policyOf() (Package-Private)
+     * ************************************************************************
+     * - The Encryption Policy of a storage key. The object and list prefixes
+     *   are taken off first, policies are declared on the caller's key.
+     * ------------------------------------------------------------------------
+     * @param storageKey The key as stored.
+     * @return The declared policy, else ENCRYPT or PLAIN after
+     *         encryptionEnabled().
+     */
+    EncryptionPolicy policyOf(String storageKey){
+        EncryptionPolicy policy = null;
+        if(!encryptionPolicies.isEmpty()){
+            String key = storageKey;
+            if(key.startsWith(PREFIX_LIST)){
+                key = key.substring(PREFIX_LIST.length());
+            } else if(key.startsWith(PREFIX_OBJ)){
+                key = key.substring(PREFIX_OBJ.length());
+            }
+            policy = encryptionPolicies.longestMatch(key);
+        }
+        if(policy!=null){
+            return policy;
+        }
+        return encryptionEnabled() ? EncryptionPolicy.ENCRYPT : EncryptionPolicy.PLAIN;
+    }
+
+    /**
+     * ************************************************************************
+     * compress() (Package-Private)
+     * ************************************************************************
+     * - Deflate the plain bytes of a value if its policy or its size asks
+     *   for it, see Compression.
+     * ------------------------------------------------------------------------
+     * @param plain  plainBytes() of the value.
+     * @param policy The Encryption Policy of its key.
+     * @return The deflated bytes, or null to store plain as it is.
+     */
+    @Nullable byte[] compress(byte[] plain, EncryptionPolicy policy){
+        if(policy==EncryptionPolicy.COMPRESS_ENCRYPT || (compressMinBytes > 0 && plain.length >= compressMinBytes)){
+            return PreferencesCompression.deflate(plain);
+        }
+        return null;
+    }
+
+    // Checked before plainBytes() is built, from the char count of a String
+    boolean mayCompress(long estimatedBytes){
+        return compressMinBytes > 0 && estimatedBytes >= compressMinBytes;
+    }
+
+    boolean spills(long storedBytes){
+        return spillMinBytes > 0 && storedBytes >= spillMinBytes;
+    }
+
+    /**
+     * ************************************************************************
+     * encryptionEnabled() (Private)
+     * ************************************************************************
+     * @return Whether this store encrypts, or ENABLE_ENCRYPTION for the
+     *         default store.
+     */
+    private boolean encryptionEnabled(){
+        return storeEncryption != null ? storeEncryption : ENABLE_ENCRYPTION;
+    }
+
+    /**
+     * ************************************************************************
+     * encryptsAny() (Package-Private)
+     * ************************************************************************
+     * - Whether some values of this store may be encrypted: encryption is
+     *   on, or an ENCRYPT/COMPRESS_ENCRYPT policy is declared on some keys.
+     * - What the snapshot, the default export and rotateKey() go by, not
+     *   encryptionEnabled(): a store with encryption off still encrypts its
+     *   policy keys, and none of them may leave in the clear.
+     */
+    boolean encryptsAny(){
+        if(encryptionEnabled()){
+            return true;
+        }
+        for(EncryptionPolicy policy : encryptionPolicies.values()){
+            if(policy!=EncryptionPolicy.PLAIN){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ************************************************************************
+     * validSecretKey() (Private)
+     * ************************************************************************
+     * - Check the key of a named store, same rules as setSecretKey().
+     * ------------------------------------------------------------------------
+     * @param secretKey The key from the Options.
+     * @return The key, or DEFAULT_SECRET_KEY if it is invalid (production).
+     * @throws IllegalArgumentException if invalid in debug mode.
+     */
+    private String validSecretKey(@Nullable String secretKey){
+        if (secretKey != null && (secretKey.length() == 16 || secretKey.length() == 24 || secretKey.length() == 32)) {
+            if (storeEncryption != null && storeEncryption && DEFAULT_SECRET_KEY.equals(secretKey)) {
+                Logger.e(TAG + " validSecretKey(): store \"" + storeName + "\" uses the library's default SECRET_KEY, which is public.");
+            }
+            return secretKey;
+        }
+        String err = "Secret Key must be 16, 24, or 32 bytes long. Falling back to default.";
+        Logger.e(TAG + " validSecretKey(): " + err);
+        if (Utils.isDebuggingMode(context)) {
+            throw new IllegalArgumentException(err);
+        }
+        return DEFAULT_SECRET_KEY;
+    }
+
+    /**
+     * ************************************************************************
+     * isWriterThread() (Private)
+     * ************************************************************************
+     * @return true if called on the writer thread of this store.
+     */
+    private boolean isWriterThread(){
+        Thread current = Thread.currentThread();
+        return current == (writer == DEFAULT_WRITER ? defaultWriterThread : storeWriterThread);
     }
 
 
@@ -270,22 +1422,140 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * - Called when the database is created for the first time.
      * - Creates the preferences table.
      * - COLUMN_KEY is the PRIMARY KEY, which is what makes CONFLICT_REPLACE
-     *   in insertMap() actually replace an existing row instead of adding a
-     *   duplicate one.
+     *   in PreferencesWriter.writeBatch() actually replace an existing row
+     *   instead of adding a duplicate one.
+     * - COLUMN_DATA_VALUE has no declared type on purpose: each value keeps
+     *   the storage class it was bound with (INTEGER, REAL or TEXT).
      * ------------------------------------------------------------------------
      * @param db The SQLite database.
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String query = "CREATE TABLE IF NOT EXISTS "+TABLE_NAME+" ("
-                + COLUMN_KEY +" TEXT PRIMARY KEY, " // identifier
-                + COLUMN_DATA_TYPE +" TEXT, " // String, Integer, etc
-                + COLUMN_DATA_VALUE + " TEXT)";
-
-        db.execSQL(query);
+        db.execSQL(createTableQuery(tableName));
+        db.execSQL(createExpiryIndexQuery(tableName));
+        db.execSQL(createListTableQuery(listTableName));
+        createMetaTable(db, metaTableName);
         // Logger.i(TAG + " onCreate(): $Sql Table Has been created");
     }
 
+    /**
+     * ************************************************************************
+     * onConfigure()
+     * ************************************************************************
+     * - Called when the connection is opened, before onCreate()/onUpgrade().
+     * - Applies the pragmas of the Durability profile. WAL itself is enabled
+     *   in the constructor, through setWriteAheadLoggingEnabled().
+     * - Pragmas that return a row are run through rawQuery(): execSQL()
+     *   refuses statements that return data on some Android versions.
+     * ------------------------------------------------------------------------
+     * @param db The SQLite database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        runPragma(db, "PRAGMA synchronous = " + durability.synchronous);
+        runPragma(db, "PRAGMA wal_autocheckpoint = " + durability.checkpointPages);
+        // Negative cache_size is in KiB instead of pages
+        runPragma(db, "PRAGMA cache_size = -" + durability.cacheSizeKb);
+    }
+
+    /**
+     * ************************************************************************
+     * runPragma() (Private)
+     * ************************************************************************
+     * @param db     The SQLite database.
+     * @param pragma The PRAGMA statement.
+     */
+    private static void runPragma(SQLiteDatabase db, String pragma){
+        try (Cursor cursor = db.rawQuery(pragma, null)) {
+            cursor.moveToFirst();
+        } catch (Exception e) {
+            Logger.e(TAG + " runPragma(): " + pragma + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getDurability()
+     * ************************************************************************
+     * @return The durability profile of this instance.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * ************************************************************************
+     * createTableQuery() (Private)
+     * ************************************************************************
+     * - The CREATE TABLE statement of the current layout.
+     * ------------------------------------------------------------------------
+     * @param table The table name.
+     * @return The SQL statement.
+     */
+    private static String createTableQuery(String table){
+        return "CREATE TABLE IF NOT EXISTS " + table + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY, " // identifier
+                + COLUMN_DATA_TYPE + " INTEGER, " // Type Codes
+                + COLUMN_DATA_VALUE + ", " // no affinity: INTEGER, REAL or TEXT
+                + COLUMN_EXPIRES_AT + " INTEGER)"; // epoch millis, NULL = never
+    }
+
+    /**
+     * ************************************************************************
+     * createListTableQuery() (Private)
+     * ************************************************************************
+     * - Row Lists table. The primary key (list_key, list_index) orders the
+     *   elements of a list together, so a page, a size or a trim is a range
+     *   of it. WITHOUT ROWID keeps the rows in that index itself.
+     * ------------------------------------------------------------------------
+     * @param table The list table name.
+     * @return The SQL statement.
+     */
+    private static String createListTableQuery(String table){
+        return "CREATE TABLE IF NOT EXISTS " + table + " ("
+                + COLUMN_LIST_KEY + " TEXT NOT NULL, "
+                + COLUMN_LIST_INDEX + " INTEGER NOT NULL, "
+                + COLUMN_DATA_TYPE + " INTEGER, " // Type Codes
+                + COLUMN_DATA_VALUE + ", " // element JSON, or its encrypted BLOB
+                + "PRIMARY KEY (" + COLUMN_LIST_KEY + ", " + COLUMN_LIST_INDEX + ")) WITHOUT ROWID";
+    }
+
+    /**
+     * ************************************************************************
+     * createMetaTable() (Private)
+     * ************************************************************************
+     * - Meta table, name -> integer value, and its generation row.
+     * - The generation starts at a random value, see Snapshot.
+     * ------------------------------------------------------------------------
+     * @param db    The SQLite database.
+     * @param table The meta table name.
+     */
+    private static void createMetaTable(SQLiteDatabase db, String table){
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " ("
+                + COLUMN_META_NAME + " TEXT PRIMARY KEY, "
+                + COLUMN_META_VALUE + " INTEGER NOT NULL) WITHOUT ROWID");
+        long start = ThreadLocalRandom.current().nextLong(1L << 62);
+        db.execSQL("INSERT OR IGNORE INTO " + table + " (" + COLUMN_META_NAME + ", " + COLUMN_META_VALUE + ")"
+                + " VALUES ('" + META_GENERATION + "', " + start + ")");
+    }
+
+    /**
+     * ************************************************************************
+     * createExpiryIndexQuery() (Private)
+     * ************************************************************************
+     * - Partial index: only rows that can expire are in it, so the sweeper
+     *   finds them without a scan, and the index costs nothing for the
+     *   rows that never expire.
+     * ------------------------------------------------------------------------
+     * @param table The table name.
+     * @return The SQL statement.
+     */
+    private static String createExpiryIndexQuery(String table){
+        return "CREATE INDEX IF NOT EXISTS " + table + "_expires ON " + table
+                + " (" + COLUMN_EXPIRES_AT + ") WHERE " + COLUMN_EXPIRES_AT + " IS NOT NULL";
+    }
+
 
     /**
      * ************************************************************************
@@ -301,6 +1571,11 @@ public class SqlPreferences extends SQLiteOpenHelper {
      *   version 1, where the missing unique constraint made every apply()
      *   append instead of replace. The last row wins, which matches what
      *   getAll() already returned.
+     * - Version 3 maps the type names to Type Codes and casts the plain
+     *   values to native INTEGER/REAL in the same INSERT ... SELECT.
+     *   Whether a row was encrypted is decided per row, not from the
+     *   current encryptionEnabled(): a table may hold both, if the app
+     *   switched encryption between runs. See flagCiphertextRows().
      * ------------------------------------------------------------------------
      * @param db         The SQLite database.
      * @param oldVersion The old database version.
@@ -309,7 +1584,7 @@ public class SqlPreferences extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion < 2) {
-            String tempTable = TABLE_NAME + "_v2";
+            String tempTable = tableName + "_v2";
 
             db.execSQL("DROP TABLE IF EXISTS " + tempTable);
             db.execSQL("CREATE TABLE " + tempTable + " ("
@@ -320,12 +1595,205 @@ public class SqlPreferences extends SQLiteOpenHelper {
             db.execSQL("INSERT OR REPLACE INTO " + tempTable
                     + " (" + COLUMN_KEY + ", " + COLUMN_DATA_TYPE + ", " + COLUMN_DATA_VALUE + ") "
                     + "SELECT " + COLUMN_KEY + ", " + COLUMN_DATA_TYPE + ", " + COLUMN_DATA_VALUE
-                    + " FROM " + TABLE_NAME);
+                    + " FROM " + tableName);
 
-            db.execSQL("DROP TABLE " + TABLE_NAME);
-            db.execSQL("ALTER TABLE " + tempTable + " RENAME TO " + TABLE_NAME);
+            db.execSQL("DROP TABLE " + tableName);
+            db.execSQL("ALTER TABLE " + tempTable + " RENAME TO " + tableName);
             // Logger.i(TAG + " onUpgrade(): migrated to primary key layout");
         }
+
+        if (oldVersion < 3) {
+            String tempTable = tableName + "_v3";
+            String typeCode = "(CASE " + COLUMN_DATA_TYPE
+                    + " WHEN 'String' THEN " + TYPE_STRING
+                    + " WHEN 'Boolean' THEN " + TYPE_BOOLEAN
+                    + " WHEN 'Integer' THEN " + TYPE_INTEGER
+                    + " WHEN 'Long' THEN " + TYPE_LONG
+                    + " WHEN 'Float' THEN " + TYPE_FLOAT
+                    + " WHEN 'Double' THEN " + TYPE_DOUBLE
+                    + " ELSE " + TYPE_UNKNOWN + " END)";
+            // Too short to be ciphertext: plain, cast now. The others are
+            // kept as text until flagCiphertextRows() has looked at them
+            String valueColumn = "(CASE"
+                    + " WHEN LENGTH(" + COLUMN_DATA_VALUE + ") >= " + MIN_CIPHERTEXT_BASE64 + " THEN " + COLUMN_DATA_VALUE
+                    + " WHEN " + COLUMN_DATA_TYPE + " = 'Boolean' THEN (LOWER(" + COLUMN_DATA_VALUE + ") = 'true')"
+                    + " WHEN " + COLUMN_DATA_TYPE + " IN ('Integer', 'Long') THEN CAST(" + COLUMN_DATA_VALUE + " AS INTEGER)"
+                    + " WHEN " + COLUMN_DATA_TYPE + " IN ('Float', 'Double') THEN CAST(" + COLUMN_DATA_VALUE + " AS REAL)"
+                    + " ELSE " + COLUMN_DATA_VALUE + " END)";
+
+            db.execSQL("DROP TABLE IF EXISTS " + tempTable);
+            db.execSQL(createTableQuery(tempTable));
+            db.execSQL("INSERT OR REPLACE INTO " + tempTable
+                    + " (" + COLUMN_KEY + ", " + COLUMN_DATA_TYPE + ", " + COLUMN_DATA_VALUE + ") "
+                    + "SELECT " + COLUMN_KEY + ", " + typeCode + ", " + valueColumn
+                    + " FROM " + tableName);
+            flagCiphertextRows(db, tempTable);
+
+            db.execSQL("DROP TABLE " + tableName);
+            db.execSQL("ALTER TABLE " + tempTable + " RENAME TO " + tableName);
+            // Logger.i(TAG + " onUpgrade(): migrated to typed columns");
+        }
+
+        if (oldVersion < 4) {
+            migrateEncryptedToBlob(db, tableName);
+            // Logger.i(TAG + " onUpgrade(): migrated encrypted values to blobs");
+        }
+
+        if (oldVersion < 5) {
+            // The version 3 step already builds the table with the column
+            if (!hasColumn(db, tableName, COLUMN_EXPIRES_AT)) {
+                db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + COLUMN_EXPIRES_AT + " INTEGER");
+            }
+            db.execSQL(createExpiryIndexQuery(tableName));
+            // Logger.i(TAG + " onUpgrade(): added expiry column");
+        }
+
+        if (oldVersion < 6) {
+            db.execSQL(createListTableQuery(listTableName));
+            // Logger.i(TAG + " onUpgrade(): added list table");
+        }
+
+        if (oldVersion < 7) {
+            createMetaTable(db, metaTableName);
+            // Logger.i(TAG + " onUpgrade(): added meta table");
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * hasColumn() (Private)
+     * ************************************************************************
+     * @param db     The SQLite database.
+     * @param table  The table name.
+     * @param column The column name.
+     * @return true if the table has the column.
+     */
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column){
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ************************************************************************
+     * flagCiphertextRows() (Private)
+     * ************************************************************************
+     * - Version 3 migration: set FLAG_ENCRYPTED on the rows that hold
+     *   Base64 [IV + Ciphertext], and leave the plain ones as they are.
+     * - Only unwrapped Base64 values of MIN_CIPHERTEXT_BASE64 chars or more
+     *   are looked at, the others cannot be ciphertext.
+     * - A value this store's key decrypts is ciphertext: AES-GCM checks its
+     *   tag, plain text never passes. One that decodes to ciphertext size
+     *   but does not decrypt (another key, or no key) is ciphertext if it
+     *   is not a String, since no plain number or boolean is that long.
+     *   For a String, only then does encryptionEnabled() decide, as it did
+     *   for every row before.
+     * - Walks the rows by rowid in pages, same as migrateEncryptedToBlob().
+     * ------------------------------------------------------------------------
+     * @param db    The SQLite database, inside the upgrade transaction.
+     * @param table The table being migrated, with Type Codes already set.
+     */
+    private void flagCiphertextRows(SQLiteDatabase db, String table){
+        final int pageSize = 500;
+        SecretKeySpec keySpec = getKeySpec();
+        boolean encryptionEnabled = encryptionEnabled();
+        long lastRowId = -1;
+        try (SQLiteStatement update = db.compileStatement("UPDATE " + table
+                + " SET " + COLUMN_DATA_TYPE + " = " + COLUMN_DATA_TYPE + " | " + FLAG_ENCRYPTED + " WHERE rowid = ?")) {
+            while (true) {
+                int count = 0;
+                try (Cursor cursor = db.rawQuery("SELECT rowid, " + COLUMN_DATA_TYPE + ", " + COLUMN_DATA_VALUE + " FROM " + table
+                        + " WHERE rowid > ? AND typeof(" + COLUMN_DATA_VALUE + ") = 'text'"
+                        + " AND LENGTH(" + COLUMN_DATA_VALUE + ") >= " + MIN_CIPHERTEXT_BASE64
+                        + " ORDER BY rowid LIMIT " + pageSize, new String[]{String.valueOf(lastRowId)})) {
+                    while (cursor.moveToNext()) {
+                        count++;
+                        lastRowId = cursor.getLong(0);
+                        // cipherEncrypt() wrote unwrapped Base64: anything else
+                        // (spaces, line breaks, other chars) is plain text
+                        String value = cursor.getString(2);
+                        if (value.length() % 4 != 0 || !value.matches("[A-Za-z0-9+/]+={0,2}")) {
+                            continue;
+                        }
+                        byte[] raw;
+                        try {
+                            raw = Base64.decode(value, Base64.DEFAULT);
+                        } catch (Exception e) {
+                            continue;
+                        }
+                        if (raw == null || raw.length < MIN_CIPHERTEXT_BYTES) {
+                            continue;
+                        }
+                        boolean encrypted;
+                        if (keySpec != null && decrypts(raw, keySpec)) {
+                            encrypted = true;
+                        } else {
+                            encrypted = cursor.getInt(1) != TYPE_STRING || encryptionEnabled;
+                        }
+                        if (encrypted) {
+                            update.bindLong(1, lastRowId);
+                            update.executeUpdateDelete();
+                        }
+                    }
+                }
+                if (count < pageSize) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * migrateEncryptedToBlob() (Private)
+     * ************************************************************************
+     * - Version 4 migration: decode every encrypted Base64 value and store
+     *   the raw bytes as a BLOB. Nothing is decrypted, the ciphertext is the
+     *   same, only its encoding changes.
+     * - Walks the rows by rowid in pages, so memory does not grow with the
+     *   table. A value that is not valid Base64 could never be decrypted
+     *   anyway, and is left as it is.
+     * ------------------------------------------------------------------------
+     * @param db        The SQLite database, inside the upgrade transaction.
+     * @param tableName The table to migrate.
+     */
+    private static void migrateEncryptedToBlob(SQLiteDatabase db, String tableName){
+        final int pageSize = 500;
+        long lastRowId = -1;
+        try (SQLiteStatement update = db.compileStatement("UPDATE " + tableName
+                + " SET " + COLUMN_DATA_VALUE + " = ? WHERE rowid = ?")) {
+            while (true) {
+                int count = 0;
+                try (Cursor cursor = db.rawQuery("SELECT rowid, " + COLUMN_DATA_VALUE + " FROM " + tableName
+                        + " WHERE rowid > ? AND (" + COLUMN_DATA_TYPE + " & " + FLAG_ENCRYPTED + ") != 0"
+                        + " AND typeof(" + COLUMN_DATA_VALUE + ") = 'text'"
+                        + " ORDER BY rowid LIMIT " + pageSize, new String[]{String.valueOf(lastRowId)})) {
+                    while (cursor.moveToNext()) {
+                        count++;
+                        lastRowId = cursor.getLong(0);
+                        byte[] raw;
+                        try {
+                            raw = Base64.decode(cursor.getString(1), Base64.DEFAULT);
+                        } catch (Exception e) {
+                            continue;
+                        }
+                        update.clearBindings();
+                        update.bindBlob(1, raw);
+                        update.bindLong(2, lastRowId);
+                        update.executeUpdateDelete();
+                    }
+                }
+                if (count < pageSize) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -356,28 +1824,30 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @param onLoadListener  Optional callback when loading is complete.
      */
     public static void init(Context anyContext, @Nullable String secretKey, @Nullable OnLoadListener onLoadListener) {
+        init(anyContext, secretKey, null, onLoadListener);
+    }
+
+    /**
+     * ************************************************************************
+     * init() (Async) with Custom Secret Key and Durability
+     * ************************************************************************
+     * - Same as init(anyContext, secretKey, onLoadListener), and sets the
+     *   durability profile of the instance, see Durability.
+     * ------------------------------------------------------------------------
+     * @param anyContext      Any valid context.
+     * @param secretKey       Custom secret key, or null for the default key.
+     * @param durability      The durability profile, or null for DURABILITY.
+     * @param onLoadListener  Optional callback when loading is complete.
+     */
+    public static void init(Context anyContext, @Nullable String secretKey, @Nullable Durability durability,
+                            @Nullable OnLoadListener onLoadListener) {
         // Create Instance (Double-checked locking)
-        if (INSTANCE == null) {
-            synchronized (SqlPreferences.class) {
-                if (INSTANCE == null) {
-                    INSTANCE = new SqlPreferences(anyContext.getApplicationContext());
-                    if (secretKey != null) {
-                        INSTANCE.setSecretKey(secretKey);
-                    } else {
-                        warnIfUsingDefaultSecretKey();
-                    }
-                }
-            }
-        }
+        createInstance(anyContext, secretKey, durability);
 
-        // Execute background loading
-        executors.execute(() -> {
+        // Execute background loading, off the writer thread
+        loadExecutors.execute(() -> {
             // Load all data from Sql to Cache
-            if (INSTANCE.cache.isEmpty()) {
-                // Logger.d(TAG + " init(): Data not loaded to cache yet, Loading in background");
-                INSTANCE.cache.putAll(INSTANCE.getAll());
-                // Logger.d(TAG + " init(): Data has been loaded to cache");
-            }
+            INSTANCE.initSync();
 
             // Notify listener on the same background thread (or post to main thread if preferred)
             if (onLoadListener != null) {
@@ -394,91 +1864,525 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * - Called automatically by getInstance() if data is not yet loaded.
      * - For better performance, use init() at app startup so this does not
      *   block the main thread.
+     * - Reads nothing in lazy mode: keys are read on demand instead.
+     * - Reads the snapshot file if it is still current, the table otherwise,
+     *   and then schedules a new snapshot.
+     * - Starts the expiry sweeper, which stops itself if nothing can expire.
+     * - Resumes a key rotation left unfinished, see Key Rotation.
+     * - Deletes spill files left by a crash, on the writer.
      */
     public void initSync(){
+        if(loaded){
+            return;
+        }
         // Load all data from Sql to Cache
-        if(cache.isEmpty()){
-            // Logger.d(TAG + " initSync(): Data not loaded to cache yet, Loading...");
-            cache.putAll(this.getAll());
-            // Logger.d(TAG + " initSync(): Data has been loaded");
+        synchronized (loadLock){
+            if(!loaded){
+                // Logger.d(TAG + " initSync(): Data not loaded to cache yet, Loading...");
+                boolean resumeRotation = rotation.loadKeyState();
+                boolean fromSnapshot = false;
+                if(!lazyLoading){
+                    fromSnapshot = preload();
+                }
+                loaded = true;
+                // Rows may have expired since the last run
+                synchronized (pendingLock){
+                    ensureSweeper();
+                    if(!fromSnapshot){
+                        snapshots.schedule();
+                    }
+                    if(resumeRotation){
+                        rotation.scheduleRotation(PreferencesKeyRotation.ROTATION_RESUME_DELAY_MS);
+                    }
+                }
+                // Orphan spill files, see Spill Files
+                writer.execute(spills::load);
+                // Logger.d(TAG + " initSync(): Data has been loaded");
+            }
         }
     }
 
-
     /**
      * ************************************************************************
-     * setAllowSaveNull()
+     * preload() (Private)
      * ************************************************************************
-     * - Set whether nullable values can be saved.
-     * - By default, nullable objects can be saved.
+     * - Read the whole table into the cache, while the writer may be
+     *   flushing at the same time.
+     * - A key changed since the read started is newer in memory than on the
+     *   disk: it is pending, being flushed, or already in the cache. Those
+     *   keys are skipped, the rest is added with putIfAbsent().
+     * - See readBetweenFlushes() for flushes that commit during the read.
+     * - The snapshot, when current, replaces the table read.
      * ------------------------------------------------------------------------
-     * @param allowNull true to allow saving null values, false to disallow.
-     * @return This SqlPreferences instance for chaining.
-     * @apiNote If disallowing null, set to its default by passing null.
+     * @return true if the cache was filled from the snapshot.
      */
-    public SqlPreferences setAllowSaveNull(Boolean allowNull){
-        this.allowSaveNull = allowNull;
-        return this;
+    private boolean preload(){
+        Map<String, Long> loadedExpiries = new HashMap<>();
+        boolean[] fromSnapshot = {false};
+        readBetweenFlushes(() -> {
+            loadedExpiries.clear();
+            Map<String, Object> all = snapshots.read(loadedExpiries);
+            fromSnapshot[0] = (all != null);
+            return (all != null) ? all : readAll(loadedExpiries, true);
+        }, all -> {
+            mergeLoaded(all, loadedExpiries);
+            return all;
+        });
+        return fromSnapshot[0];
     }
 
     /**
      * ************************************************************************
-     * apply()
+     * readBetweenFlushes() (Package-Private)
      * ************************************************************************
-     * - Commit pending data: move temp data to cache and write to disk
-     *   asynchronously.
-     * - Must be called after put___() calls to persist the data.
+     * - Read the disk while the writer may be flushing, then merge the result
+     *   with the in-memory changes under pendingLock.
+     * - If a flush committed during the read, the read may predate it (a
+     *   delete would come back), so the disk is read again. After a few
+     *   tries the read falls back to the writer thread, where no flush can
+     *   run beside it.
+     * ------------------------------------------------------------------------
+     * @param read  The disk read, run without any lock.
+     * @param merge Called with the read under pendingLock.
+     * @return What merge returned, or null if the fallback failed.
      */
-    public void apply(){
-        // Check if null value allowed (allow save null)
-        if(allowSaveNull!=null && !allowSaveNull){
-            for(Map.Entry<String, Object> item: tempMap.entrySet()){
-                if(item.getValue()==null){
-                    // remove null values
-                    tempMap.remove(item.getKey());
+    @Nullable <T> T readBetweenFlushes(Supplier<T> read, UnaryOperator<T> merge){
+        for(int attempt = 0; attempt < 3; attempt++){
+            long flushesBefore;
+            synchronized (pendingLock){
+                flushesBefore = flushCount;
+            }
+            T data = read.get();
+            synchronized (pendingLock){
+                if(flushCount != flushesBefore){
+                    continue;
                 }
+                return merge.apply(data);
             }
         }
 
-        Map<String, Object> dataToWrite = new HashMap<>(tempMap);
-        // Logger.d(TAG + " apply(): number of item to saves: "+dataToWrite.size());
-
-        // Add data in temp map to the Cache
-        if(!tempMap.isEmpty()){
-            cache.putAll(tempMap);
-            tempMap.clear();
+        // Busy writer: read between two flushes
+        if(isWriterThread()){
+            T data = read.get();
+            synchronized (pendingLock){
+                return merge.apply(data);
+            }
         }
-
-        // Add To Sql DB:
-        // insertMap() will Write the data to the disk (sql) in background
-        this.insertMap(dataToWrite);
-        // Clear data to write
-        // insertMap() will create a copy once receive the map,
-        // so we can clear the map immediately, since insertMap() has its copy
-        dataToWrite.clear();
-
+        try {
+            return writer.submit(() -> {
+                T data = read.get();
+                synchronized (pendingLock){
+                    return merge.apply(data);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Logger.e(TAG + " readBetweenFlushes(): " + e.getMessage());
+        }
+        return null;
     }
+
     /**
      * ************************************************************************
-     * clear()
+     * mergeLoaded() (Private)
+     * ************************************************************************
+     * - Add rows read from the disk to the cache, except keys with a newer
+     *   change in memory. Must hold pendingLock.
+     * ------------------------------------------------------------------------
+     * @param all            The decoded rows.
+     * @param loadedExpiries Expiry of the rows that have one.
+     */
+    private void mergeLoaded(Map<String, Object> all, Map<String, Long> loadedExpiries){
+        if(pendingClear || flushingClear){
+            // Everything read is about to be deleted
+            return;
+        }
+        for(Map.Entry<String, Object> entry : all.entrySet()){
+            String key = entry.getKey();
+            if(pendingWrites.containsKey(key)) continue;
+            if(flushingWrites!=null && flushingWrites.containsKey(key)) continue;
+            if(matchesAny(pendingRangeDeletes, key) || matchesAny(flushingRangeDeletes, key)) continue;
+            if(cache.get(key)!=null) continue;
+            cache.put(key, entry.getValue());
+            Long expiresAt = loadedExpiries.get(key);
+            if(expiresAt!=null){
+                expiries.put(key, expiresAt);
+            }
+        }
+    }
+
+
+    /**
+     * ************************************************************************
+     * setAllowSaveNull()
+     * ************************************************************************
+     * - Set whether nullable values can be saved.
+     * - By default, nullable objects can be saved.
+     * ------------------------------------------------------------------------
+     * @param allowNull true to allow saving null values, false to disallow.
+     * @return This SqlPreferences instance for chaining.
+     * @apiNote If disallowing null, set to its default by passing null.
+     */
+    public SqlPreferences setAllowSaveNull(Boolean allowNull){
+        this.allowSaveNull = allowNull;
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * apply()
+     * ************************************************************************
+     * - Commit pending data: move temp data to cache and write to disk
+     *   asynchronously.
+     * - Must be called after put___() calls to persist the data.
+     */
+    public void apply(){
+        Map<String, Object> dataToWrite = takeTempMap();
+        // Logger.d(TAG + " apply(): number of item to saves: "+dataToWrite.size());
+
+        // Add data to the Cache, and to Sql DB:
+        // enqueueWrites() merges the data into the pending writes, the writer
+        // flushes it to the disk (sql) in background
+        if(!this.enqueueWrites(dataToWrite, null)){
+            // Rejected by the write queue limit (FAIL_FAST)
+            return;
+        }
+
+        // Notify listeners, once for the whole batch
+        notifyListeners(dataToWrite.keySet());
+    }
+
+    /**
+     * ************************************************************************
+     * commitAsync()
+     * ************************************************************************
+     * - Same as apply(), and also tell when the data is on the disk.
+     * - Goes through the same pending writes and writer as apply(), so it
+     *   stays ordered with them. Its flush skips the debounce window.
+     * - The future completes once the transaction holding this batch has
+     *   ended: true if it was committed, false if the write failed or a
+     *   row of the flush could not be written (see
+     *   PreferencesWriter.writeBatch()).
+     * - A failed write is not lost: it stays queued and is retried in the
+     *   background, see PreferencesWriter.requeue().
+     * ------------------------------------------------------------------------
+     * @return A future completed after the write.
+     */
+    public CompletableFuture<Boolean> commitAsync(){
+        Map<String, Object> dataToWrite = takeTempMap();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if(!this.enqueueWrites(dataToWrite, future)){
+            future.complete(false);
+            return future;
+        }
+        notifyListeners(dataToWrite.keySet());
+        return future;
+    }
+
+    /**
+     * ************************************************************************
+     * commit()
+     * ************************************************************************
+     * - Same as apply(), but blocks until the data is on the disk.
+     * - Use it for writes that must survive right after, e.g. before
+     *   RestartHelper.restartToMain(). Avoid it on the main thread.
+     * ------------------------------------------------------------------------
+     * @return true if the data was written, false otherwise.
+     */
+    public boolean commit(){
+        return await(commitAsync());
+    }
+
+    /**
+     * ************************************************************************
+     * flush()
+     * ************************************************************************
+     * - Barrier: block until every write queued so far (by apply(),
+     *   remove(), clear(), ...) is on the disk, counters included.
+     * - Does not apply put___() calls that were not applied yet.
+     * ------------------------------------------------------------------------
+     * @return true if the writes were committed, false otherwise.
+     */
+    public boolean flush(){
+        drainCounters();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        this.enqueueWrites(null, future);
+        return await(future);
+    }
+    /**
+     * ************************************************************************
+     * clear()
      * ************************************************************************
      * - Clear all data from cache and disk.
      * - This will delete the table and all saved data.
      */
     public void clear(){
-        // Clear cache
-        cache.clear();
-
-        // Clear disk (sql)
-        executors.execute(()->{
-            try (SQLiteDatabase db = getWritableDatabase()) {
-                String query = "DELETE FROM " + TABLE_NAME;
-                db.execSQL(query);
-                // Logger.d(TAG + " clear(): data has been removed from disk");
-            }catch (Exception e){
-                e.printStackTrace();
+        synchronized (pendingLock){
+            // Clear cache
+            cache.clear();
+            expiries.clear();
+            counters.clear();
+            LruCache<String, ObjectEntry> objects = objectCache;
+            if(objects!=null){
+                objects.evictAll();
             }
-        });
+
+            // Clear disk (sql):
+            // Pending writes made before clear() no longer matter, drop them.
+            pendingWrites.clear();
+            pendingRangeDeletes.clear();
+            rowLists.clear();
+            pendingClear = true;
+            pendingLock.notifyAll();
+            scheduleFlush(false);
+        }
+
+        // Notify every listener: every key may have changed
+        notifyListeners(null);
+    }
+
+    /**
+     * ************************************************************************
+     * registerListener()
+     * ************************************************************************
+     * - Get notified when keys change, instead of polling them.
+     * - keyOrPrefix matches every storage key that starts with it, so an
+     *   exact key matches itself, and "feed:" matches "feed:1", "feed:2"...
+     * - The same listener may be registered under several prefixes. It is
+     *   still called once per change, with the keys matching any of them.
+     * ------------------------------------------------------------------------
+     * @param keyOrPrefix The key, or key prefix, to watch. "" watches all.
+     * @param executor    Where the listener runs (e.g. the main thread
+     *                    executor, or a background one).
+     * @param listener    The listener.
+     */
+    public void registerListener(@NonNull String keyOrPrefix, @NonNull Executor executor, @NonNull OnChangeListener listener){
+        synchronized (listenerLock){
+            listeners = listeners.with(keyOrPrefix, new ListenerRegistration(listener, executor));
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * unregisterListener()
+     * ************************************************************************
+     * - Stop notifying the listener, under every prefix it was registered.
+     * ------------------------------------------------------------------------
+     * @param listener The listener given to registerListener().
+     */
+    public void unregisterListener(@NonNull OnChangeListener listener){
+        synchronized (listenerLock){
+            listeners = listeners.without(registration -> registration.listener == listener);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * setFlushDelay()
+     * ************************************************************************
+     * - Set how long the writer waits after the first pending change before
+     *   it flushes. Changes made in that window are merged into one flush,
+     *   and each key is written once.
+     * - Default is DEFAULT_FLUSH_DELAY_MS.
+     * ------------------------------------------------------------------------
+     * @param delayMs The debounce window in milliseconds, 0 to flush at once.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences setFlushDelay(long delayMs){
+        synchronized (pendingLock){
+            this.flushDelayMs = Math.max(0, delayMs);
+        }
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * setFlushThreshold()
+     * ************************************************************************
+     * - Set how many pending keys trigger a flush without waiting for the
+     *   debounce window.
+     * - Default is DEFAULT_FLUSH_THRESHOLD.
+     * ------------------------------------------------------------------------
+     * @param threshold Number of pending keys, at least 1.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences setFlushThreshold(int threshold){
+        synchronized (pendingLock){
+            this.flushThreshold = Math.max(1, threshold);
+        }
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * getPendingWriteCount()
+     * ************************************************************************
+     * - Number of keys waiting for the next flush (queue depth).
+     * ------------------------------------------------------------------------
+     * @return The number of pending keys.
+     */
+    public int getPendingWriteCount(){
+        synchronized (pendingLock){
+            return pendingWrites.size();
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * setSweepInterval()
+     * ************************************************************************
+     * - How often expired rows are deleted from the disk (default 60s).
+     * - Expired keys read as absent right away, whatever the interval.
+     * ------------------------------------------------------------------------
+     * @param intervalMs The interval in milliseconds, at least 1.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences setSweepInterval(long intervalMs){
+        synchronized (pendingLock){
+            sweepIntervalMs = Math.max(1, intervalMs);
+            if(sweepTask!=null){
+                sweepTask.cancel(false);
+                sweepTask = null;
+                ensureSweeper();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * getCoalescingRatio()
+     * ************************************************************************
+     * - Key changes requested through apply()/remove(), divided by the rows
+     *   the writer actually wrote.
+     * - 1.0 means nothing was merged. 100 means one row write absorbed 100
+     *   changes of the same key.
+     * ------------------------------------------------------------------------
+     * @return The coalescing ratio, or 1.0 if nothing was written yet.
+     */
+    public double getCoalescingRatio(){
+        synchronized (pendingLock){
+            if(writtenRows==0) return 1.0;
+            return (double) requestedWrites / writtenRows;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * setWriteQueueLimit()
+     * ************************************************************************
+     * - Bound the number of keys waiting for the writer, and choose what
+     *   apply() does when a batch does not fit, see WritePolicy.
+     * - Default is DEFAULT_MAX_PENDING_WRITES keys, COALESCE.
+     * ------------------------------------------------------------------------
+     * @param maxPendingKeys Number of pending keys, at least 1.
+     * @param policy         BLOCK, COALESCE or FAIL_FAST.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences setWriteQueueLimit(int maxPendingKeys, @NonNull WritePolicy policy){
+        synchronized (pendingLock){
+            this.maxPendingWrites = Math.max(1, maxPendingKeys);
+            this.writePolicy = policy;
+            // A larger limit, or another policy, may let waiters in
+            pendingLock.notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * setOnWriteRejectedListener()
+     * ************************************************************************
+     * - Get told about batches dropped by WritePolicy.FAIL_FAST.
+     * ------------------------------------------------------------------------
+     * @param listener The listener, or null to remove it.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences setOnWriteRejectedListener(@Nullable OnWriteRejectedListener listener){
+        this.onWriteRejectedListener = listener;
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * getEnqueueWaitMs()
+     * ************************************************************************
+     * - Total time apply()/commit() callers spent waiting for room in the
+     *   write queue (WritePolicy.BLOCK).
+     * ------------------------------------------------------------------------
+     * @return The wait time in milliseconds.
+     */
+    public long getEnqueueWaitMs(){
+        synchronized (pendingLock){
+            return TimeUnit.NANOSECONDS.toMillis(enqueueWaitNanos);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getRejectedWriteCount()
+     * ************************************************************************
+     * - Number of batches dropped by WritePolicy.FAIL_FAST.
+     * ------------------------------------------------------------------------
+     * @return The rejected batch count.
+     */
+    public long getRejectedWriteCount(){
+        synchronized (pendingLock){
+            return rejectedWrites;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getDroppedRowCount()
+     * ************************************************************************
+     * - Number of rows the writer could not write: the key could not be
+     *   derived, encryption failed, or SQLite refused the row. The flush
+     *   holding them commits the other rows, and its commit()/flush()
+     *   callers get false.
+     * ------------------------------------------------------------------------
+     * @return The dropped row count.
+     */
+    public long getDroppedRowCount(){
+        synchronized (pendingLock){
+            return droppedRows;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getFlushCount()
+     * ************************************************************************
+     * - Number of flushes committed to the disk.
+     * ------------------------------------------------------------------------
+     * @return The flush count.
+     */
+    public long getFlushCount(){
+        synchronized (pendingLock){
+            return flushCount;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getLastFlushDurationMs() / getTotalFlushDurationMs()
+     * ************************************************************************
+     * - Time the writer spent in the last flush transaction, and in all of
+     *   them (failed ones included). Total / getFlushCount() is the mean.
+     * ------------------------------------------------------------------------
+     * @return The duration in milliseconds.
+     */
+    public long getLastFlushDurationMs(){
+        synchronized (pendingLock){
+            return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos);
+        }
+    }
+
+    public long getTotalFlushDurationMs(){
+        synchronized (pendingLock){
+            return TimeUnit.NANOSECONDS.toMillis(flushNanos);
+        }
     }
 
 
@@ -579,6 +2483,103 @@ public class SqlPreferences extends SQLiteOpenHelper {
         return this;
     }
 
+    /**
+     * ************************************************************************
+     * putIntArray() / putLongArray() / putDoubleArray()
+     * ************************************************************************
+     * - Store a primitive array. Call apply() to persist.
+     * - Stored as packed little-endian bytes in one BLOB (encrypted if
+     *   enabled): no boxing, no Gson, no JSON text, unlike putListObject()
+     *   with a List<Integer>.
+     * - The array is copied, changing it after the call has no effect.
+     * - A null array is not saved, same as putListObject(key, null): the key
+     *   keeps its value. Logged, unless setAllowSaveNull(false) asked for
+     *   nulls to be dropped.
+     * ------------------------------------------------------------------------
+     * @param key    The identifier key.
+     * @param values The values to save.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences putIntArray(String key, @Nullable int[] values){
+        return putArray(key, values!=null ? values.clone() : null);
+    }
+
+    public SqlPreferences putLongArray(String key, @Nullable long[] values){
+        return putArray(key, values!=null ? values.clone() : null);
+    }
+
+    public SqlPreferences putDoubleArray(String key, @Nullable double[] values){
+        return putArray(key, values!=null ? values.clone() : null);
+    }
+
+    private SqlPreferences putArray(String key, @Nullable Object copy){
+        return putArray(key, copy, 0);
+    }
+
+    private SqlPreferences putArray(String key, @Nullable Object copy, long ttlMillis){
+        if(copy==null){
+            if(allowSaveNull==null || allowSaveNull){
+                Logger.e(TAG+" putArray(): null array, not saved: "+key);
+            }
+            return this;
+        }
+        return putExpiring(key, copy, ttlMillis);
+    }
+
+    /**
+     * ************************************************************************
+     * putString() / putInt() / ... with TTL
+     * ************************************************************************
+     * - Same as the put___() above, but the value expires ttlMillis from now.
+     * - Once expired, the key reads as absent (no I/O), and the sweeper
+     *   deletes the row. A later put without TTL clears the expiry.
+     * - A ttlMillis of 0 or less stores the value without expiry.
+     * ------------------------------------------------------------------------
+     * @param key       The identifier key.
+     * @param value     The value to save.
+     * @param ttlMillis Time to live in milliseconds.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public SqlPreferences putString(String key, String value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putInt(String key, int value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putBoolean(String key, Boolean value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putFloat(String key, float value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putLong(String key, long value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putDouble(String key, double value, long ttlMillis){
+        return putExpiring(key, value, ttlMillis);
+    }
+
+    public SqlPreferences putIntArray(String key, @Nullable int[] values, long ttlMillis){
+        return putArray(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public SqlPreferences putLongArray(String key, @Nullable long[] values, long ttlMillis){
+        return putArray(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public SqlPreferences putDoubleArray(String key, @Nullable double[] values, long ttlMillis){
+        return putArray(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public <T> SqlPreferences putObject(String key, T object, long ttlMillis){
+        return putExpiring(objectKey(key), GSON.toJson(object), ttlMillis);
+    }
+
     /**
      * ************************************************************************
      * putObject()
@@ -595,8 +2596,7 @@ public class SqlPreferences extends SQLiteOpenHelper {
         String OBJ_KEY = objectKey(key);
 
         // Serialize object to String
-        Gson gson = new Gson();
-        String jsonObj = gson.toJson(object);
+        String jsonObj = GSON.toJson(object);
         // Logger.i(TAG + " putObject(): "+object.getClass().getSimpleName()+" | data = "+jsonObj);
 
         // Save serialized object
@@ -631,8 +2631,7 @@ public class SqlPreferences extends SQLiteOpenHelper {
         String LIST_OBJ_KEY = listKey(key);
 
         // Serialize Object to String
-        Gson gson = new Gson();
-        String jsonObj = gson.toJson(listObject);
+        String jsonObj = GSON.toJson(listObject);
 
         // Logger.i(TAG + " putListObject(): size = "+listObject.size()+" | data = "+jsonObj);
 
@@ -646,6 +2645,24 @@ public class SqlPreferences extends SQLiteOpenHelper {
 
 
 
+    /*==========================[ EDITOR ]==========================*/
+
+    /**
+     * ************************************************************************
+     * edit()
+     * ************************************************************************
+     * - A new Editor, see SqlPreferencesEditor: a batch of changes that
+     *   belongs to the caller alone, instead of the tempMap every put___()
+     *   shares.
+     * - Threads editing at the same time each use their own Editor, and
+     *   share nothing until they apply.
+     * ------------------------------------------------------------------------
+     * @return The editor.
+     */
+    public SqlPreferencesEditor edit(){
+        return new SqlPreferencesEditor(this);
+    }
+
     /*==========================[ DB GET ]==========================*/
 
     /**
@@ -659,11 +2676,9 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The stored string value, or defaultValue if not found.
      */
     public String getString(String key, String defaultValue){
-        if(cache.containsKey(key)){
-            Object item = cache.get(key);
-            if(item instanceof String){
-                return (String) item;
-            }
+        Object item = lookup(key);
+        if(item instanceof String){
+            return (String) item;
         }
         return defaultValue;
     }
@@ -680,11 +2695,9 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The stored integer, or defaultValue if not found.
      */
     public Integer getInt(String key, Integer defaultValue) {
-        if(cache.containsKey(key)){
-            Object item = cache.get(key);
-            if(item instanceof Integer){
-                return (Integer) item;
-            }
+        Object item = lookup(key);
+        if(item instanceof Integer){
+            return (Integer) item;
         }
         return defaultValue;
     }
@@ -700,11 +2713,9 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The stored boolean, or defaultValue if not found.
      */
     public Boolean getBoolean(String key, Boolean defaultValue) {
-        if(cache.containsKey(key)){
-            Object item = cache.get(key);
-            if(item instanceof Boolean){
-                return (Boolean) item;
-            }
+        Object item = lookup(key);
+        if(item instanceof Boolean){
+            return (Boolean) item;
         }
         return defaultValue;
     }
@@ -720,11 +2731,9 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The stored float, or defaultValue if not found.
      */
     public Float getFloat(String key, Float defaultValue) {
-        if(cache.containsKey(key)){
-            Object item = cache.get(key);
-            if(item instanceof Float){
-                return (Float) item;
-            }
+        Object item = lookup(key);
+        if(item instanceof Float){
+            return (Float) item;
         }
         return defaultValue;
     }
@@ -740,11 +2749,46 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The stored long, or defaultValue if not found.
      */
     public Long getLong(String key, Long defaultValue) {
-        if(cache.containsKey(key)){
-            Object item = cache.get(key);
-            if(item instanceof Long){
-                return (Long) item;
-            }
+        Object item = lookup(key);
+        if(item instanceof Long){
+            return (Long) item;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * ************************************************************************
+     * getIntArray() / getLongArray() / getDoubleArray()
+     * ************************************************************************
+     * - Retrieve a primitive array saved by putIntArray() / ... .
+     * - Decoded straight from the packed bytes into the primitive array, no
+     *   boxed element is ever made.
+     * - Returns a copy, the cached array cannot be changed by the caller.
+     * ------------------------------------------------------------------------
+     * @param key          The identifier key.
+     * @param defaultValue The default value if not found.
+     * @return The stored array, or defaultValue if not found.
+     */
+    public int[] getIntArray(String key, int[] defaultValue){
+        Object item = lookup(key);
+        if(item instanceof int[]){
+            return ((int[]) item).clone();
+        }
+        return defaultValue;
+    }
+
+    public long[] getLongArray(String key, long[] defaultValue){
+        Object item = lookup(key);
+        if(item instanceof long[]){
+            return ((long[]) item).clone();
+        }
+        return defaultValue;
+    }
+
+    public double[] getDoubleArray(String key, double[] defaultValue){
+        Object item = lookup(key);
+        if(item instanceof double[]){
+            return ((double[]) item).clone();
         }
         return defaultValue;
     }
@@ -760,6 +2804,28 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The deserialized object, or null if not found.
      */
     public <T> @Nullable T getObject(String key, Class<T> classType){
+        return getObject(key, classType, false);
+    }
+
+    /**
+     * ************************************************************************
+     * getObject() (Shared)
+     * ************************************************************************
+     * - Retrieve a deserialized object by key, choosing between a shared
+     *   instance and a defensive copy.
+     * - shared = true: the instance is kept in the Object Cache (if enabled,
+     *   see setObjectCacheSize()) and the same one is returned until the key
+     *   changes. Every caller gets that instance, so it must be treated as
+     *   immutable.
+     * - shared = false: a fresh instance is deserialized on every call, the
+     *   caller may modify it freely.
+     * ------------------------------------------------------------------------
+     * @param key       The identifier key.
+     * @param classType The class to deserialize to.
+     * @param shared    true for the shared cached instance, false for a copy.
+     * @return The deserialized object, or null if not found.
+     */
+    public <T> @Nullable T getObject(String key, Class<T> classType, boolean shared){
         // Create DB Key
         String OBJ_KEY = objectKey(key);
 
@@ -774,10 +2840,7 @@ public class SqlPreferences extends SQLiteOpenHelper {
 
         // Deserialize the object to its original type
         // Logger.i(TAG + " getObject(): "+classType.getSimpleName()+" | data = "+serialized);
-        Gson gson = new Gson();
-
-        // Deserialize String to Object
-        return gson.fromJson(serialized, classType);
+        return deserialize(OBJ_KEY, serialized, classType, shared);
     }
 
     /**
@@ -797,6 +2860,25 @@ public class SqlPreferences extends SQLiteOpenHelper {
      * @return The deserialized list, or null if not found.
      */
     public <T> @Nullable List<T> getListObject(String key, Class<T> classType){
+        return getListObject(key, classType, false);
+    }
+
+    /**
+     * ************************************************************************
+     * getListObject() (Shared)
+     * ************************************************************************
+     * - Retrieve a deserialized list of objects by key, choosing between a
+     *   shared instance and a defensive copy. See getObject(String, Class,
+     *   boolean).
+     * - The shared list is unmodifiable. Its elements are shared too and
+     *   must not be modified.
+     * ------------------------------------------------------------------------
+     * @param key       The identifier key.
+     * @param classType The element class to deserialize to.
+     * @param shared    true for the shared cached list, false for a copy.
+     * @return The deserialized list, or null if not found.
+     */
+    public <T> @Nullable List<T> getListObject(String key, Class<T> classType, boolean shared){
 
         // Create DB Key
         String LIST_OBJ_KEY = listKey(key);
@@ -824,250 +2906,2141 @@ public class SqlPreferences extends SQLiteOpenHelper {
 
         // Deserialize the list to its original type
         // Logger.i(TAG + " getListObject(): "+classType.getSimpleName()+" | data = "+serialized);
-        Gson gson = new Gson();
         Type type = TypeToken.getParameterized(List.class, classType).getType();
+        return deserialize(LIST_OBJ_KEY, serialized, type, shared);
+    }
 
-        // Deserialize String to List
-        return gson.fromJson(serialized, type);
+    /**
+     * ************************************************************************
+     * setObjectCacheSize()
+     * ************************************************************************
+     * - Enable the Object Cache used by getObject(..., true) and
+     *   getListObject(..., true), or resize it.
+     * - The size is the budget for the cached objects, estimated from the
+     *   size of their JSON.
+     * ------------------------------------------------------------------------
+     * @param maxBytes The budget in bytes, 0 to disable and drop the cache.
+     * @return This SqlPreferences instance for chaining.
+     */
+    public synchronized SqlPreferences setObjectCacheSize(int maxBytes){
+        if(maxBytes<=0){
+            objectCache = null;
+            return this;
+        }
+        if(objectCache!=null){
+            objectCache.resize(maxBytes);
+            return this;
+        }
+        objectCache = new LruCache<String, ObjectEntry>(maxBytes){
+            @Override
+            protected int sizeOf(String key, ObjectEntry entry) {
+                return entry.json.length() * 2;
+            }
+        };
+        return this;
     }
 
+    /**
+     * ************************************************************************
+     * getObjectCacheHitCount()
+     * ************************************************************************
+     * - Number of shared reads served from the Object Cache.
+     * ------------------------------------------------------------------------
+     * @return The hit count.
+     */
+    public long getObjectCacheHitCount(){
+        return objectCacheHits.get();
+    }
 
-    /*==========================[ DELETE ]==========================*/
+    /**
+     * ************************************************************************
+     * getObjectCacheMissCount()
+     * ************************************************************************
+     * - Number of shared reads that had to run Gson.
+     * ------------------------------------------------------------------------
+     * @return The miss count.
+     */
+    public long getObjectCacheMissCount(){
+        return objectCacheMisses.get();
+    }
 
     /**
      * ************************************************************************
-     * remove()
+     * trimMemory()
      * ************************************************************************
-     * - Remove a data entry by key from cache and disk.
+     * - Release cached memory, by ComponentCallbacks2 level. Called on every
+     *   instance by the framework through onTrimMemory(), apps do not need to
+     *   forward it.
+     * - RUNNING_LOW, UI_HIDDEN: a bounded cache and the Object Cache drop
+     *   their least recently used half.
+     * - RUNNING_CRITICAL, BACKGROUND and above (and onLowMemory()): both are
+     *   emptied. The next reads load from the disk again.
+     * - An unbounded cache is never trimmed, it holds the only copy the
+     *   reads have. Only its Object Cache is.
      * ------------------------------------------------------------------------
-     * @param key The identifier key of the item to remove.
+     * @param level A ComponentCallbacks2.TRIM_MEMORY_* level.
      */
-    public synchronized void remove(String key) {
-        // Remove the entry from cache
-        cache.remove(key);
-
-        // Remove the entry from disk
-        executors.execute(()->{
-            try (SQLiteDatabase db = getWritableDatabase()) {
-                String query = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_KEY + " = ?";
-                db.execSQL(query, new Object[]{key});
-            }catch (Exception e){
-                // Logger.e(TAG + " remove(): Unable to perform delete operation");
-                e.printStackTrace();
+    public void trimMemory(int level){
+        LruCache<String, ObjectEntry> objects = objectCache;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            cache.trimToBytes(0);
+            if(objects!=null){
+                objects.evictAll();
             }
-        });
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW){
+            cache.trimToBytes(cache.weightBytes() / 2);
+            if(objects!=null){
+                objects.trimToSize(objects.size() / 2);
+            }
+        }
+        // Logger.d(TAG + " trimMemory(): level = "+level+", cache = "+cache.weightBytes()+" bytes");
     }
 
     /**
      * ************************************************************************
-     * removeObject()
+     * registerForTrimMemory() (Private)
      * ************************************************************************
-     * - Remove a saved object by key (adds PREFIX_OBJ internally).
+     * - Add a new instance to TRIM_TARGETS, and register the process wide
+     *   callbacks on first call.
      * ------------------------------------------------------------------------
-     * @param key The object identifier key.
+     * @param application The application context, may be null in tests.
+     * @param store       The instance being made.
      */
-    public void removeObject(String key){
-        // Remove the object by its prefixed key
-        remove(objectKey(key));
+    private static void registerForTrimMemory(@Nullable Application application, SqlPreferences store){
+        synchronized (TRIM_TARGETS){
+            TRIM_TARGETS.add(store);
+            if(trimCallbacksRegistered || application==null){
+                return;
+            }
+            trimCallbacksRegistered = true;
+        }
+        application.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimAll(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimAll(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+        });
     }
 
     /**
      * ************************************************************************
-     * removeListObject()
+     * trimAll() (Private)
      * ************************************************************************
-     * - Remove a saved list of objects by key (adds PREFIX_LIST internally).
-     * - This now builds the same key that putListObject() writes, which it
-     *   did not do before: it used to skip the class name that put and get
-     *   both included, so the delete matched no row and the data stayed.
-     * ------------------------------------------------------------------------
-     * @param key The list identifier key.
-     * @apiNote A list written by an older version of the library sits under a
-     *          key that includes the element class name. Use
-     *          removeListObject(String, Class) to clear that one too, or call
-     *          getListObject() first, which migrates it.
+     * - trimMemory() on every live instance, outside the TRIM_TARGETS lock.
      */
-    public void removeListObject(String key){
-        // Remove the list by its prefixed key
-        remove(listKey(key));
+    private static void trimAll(int level){
+        List<SqlPreferences> stores;
+        synchronized (TRIM_TARGETS){
+            stores = new ArrayList<>(TRIM_TARGETS);
+        }
+        for(SqlPreferences store : stores){
+            store.trimMemory(level);
+        }
     }
 
 
+    /*==========================[ COUNTERS ]==========================*/
 
+    /**
+     * ************************************************************************
+     * increment()
+     * ************************************************************************
+     * - Add delta to a counter, safely from any number of threads.
+     * - No apply() needed: the total is written in the background, see
+     *   Counters. Call flush() to write it right away.
+     * - Starts from the stored value of the key (any number type), or 0.
+     *   The total keeps that type (a new key is a long), and the expiry of
+     *   the key if it has one.
+     * ------------------------------------------------------------------------
+     * @param key   The identifier key.
+     * @param delta The amount to add, may be negative.
+     */
+    public void increment(String key, long delta){
+        counters.add(key, delta);
+    }
 
+    /**
+     * ************************************************************************
+     * increment()
+     * ************************************************************************
+     * @see #increment(String, long)
+     */
+    public void increment(String key){
+        increment(key, 1);
+    }
 
-    /*==========================[ PRIVATE ]==========================*/
+    /**
+     * ************************************************************************
+     * addAndGet()
+     * ************************************************************************
+     * - Same as increment(), and read the counter back.
+     * - The result includes delta. With other threads adding at the same
+     *   time, it may include some of their deltas too, like LongAdder.sum().
+     * ------------------------------------------------------------------------
+     * @param key   The identifier key.
+     * @param delta The amount to add, may be negative.
+     * @return The counter value after the addition.
+     */
+    public long addAndGet(String key, long delta){
+        return counters.add(key, delta);
+    }
 
     /**
      * ************************************************************************
-     * objectKey() (Private)
+     * getCounter()
      * ************************************************************************
-     * - Build the storage key for a single object.
-     * - One place builds it, so put, get and remove cannot drift apart.
+     * - Read a counter without any lock, including increments that are not
+     *   written yet. The getter of the stored type (getLong() for a new
+     *   key, getInt() for a putInt() one) returns the same value.
      * ------------------------------------------------------------------------
-     * @param key The identifier key passed by the caller.
-     * @return The prefixed storage key.
+     * @param key The identifier key.
+     * @return The counter value, or 0 if the key was never counted.
      */
-    private static String objectKey(String key){
-        return PREFIX_OBJ + key;
+    public long getCounter(String key){
+        Object item = lookup(key);
+        return (item instanceof Number) ? ((Number) item).longValue() : 0;
     }
 
     /**
      * ************************************************************************
-     * listKey() (Private)
+     * setCounterFlushInterval()
      * ************************************************************************
-     * - Build the storage key for a list of objects.
-     * - One place builds it, so put, get and remove cannot drift apart.
+     * - How often counter totals are handed to the writer (default 5s).
+     * - Longer means fewer row writes, and more increments lost if the
+     *   process is killed before the next one.
      * ------------------------------------------------------------------------
-     * @param key The identifier key passed by the caller.
-     * @return The prefixed storage key.
+     * @param intervalMs The interval in milliseconds, at least 1.
+     * @return This SqlPreferences instance for chaining.
      */
-    private static String listKey(String key){
-        return PREFIX_LIST + key;
+    public SqlPreferences setCounterFlushInterval(long intervalMs){
+        synchronized (pendingLock){
+            counterFlushMs = Math.max(1, intervalMs);
+            if(counterTask!=null){
+                counterTask.cancel(false);
+                counterTask = null;
+                ensureCounterTask();
+            }
+        }
+        return this;
     }
 
+
+    /*==========================[ ROW LISTS ]==========================*/
+
     /**
      * ************************************************************************
-     * legacyListKey() (Private)
+     * appendToList()
      * ************************************************************************
-     * - Rebuild the list key used before the class name was dropped.
-     * - Only for reading and cleaning up old rows. Nothing writes this key.
-     * - Remove this method, and its two call sites, once enough time has
-     *   passed for installed apps to have read their lists back at least
-     *   once.
+     * - Add one element at the end of a row list, see Row Lists.
+     * - Only the new element is serialized and encrypted, the rest of the
+     *   list is not touched. No apply() needed.
+     * - Row lists are not the lists of putListObject(): use getListPage()
+     *   to read them.
      * ------------------------------------------------------------------------
-     * @param key       The identifier key passed by the caller.
-     * @param classType The element class.
-     * @return The old storage key.
+     * @param key     The list key.
+     * @param element The element to add.
      */
-    private static String legacyListKey(String key, Class<?> classType){
-        return PREFIX_LIST + classType.getName() + key;
+    public <T> void appendToList(String key, T element){
+        appendListJson(key, GSON.toJson(element));
     }
 
     /**
      * ************************************************************************
-     * readSerialized() (Private)
+     * appendListJson() (Package-Private)
      * ************************************************************************
-     * - Read a serialized JSON string out of the cache.
+     * - appendToList() of an element already serialized.
      * ------------------------------------------------------------------------
-     * @param storageKey The full prefixed key.
-     * @return The stored JSON string, or null if absent or not a string.
+     * @return true if the element was queued, false if the list could not
+     *         be read.
      */
-    private @Nullable String readSerialized(String storageKey){
-        Object item = cache.get(storageKey);
-        return (item instanceof String) ? (String) item : null;
+    boolean appendListJson(String key, String json){
+        if(!rowLists.append(key, json)){
+            Logger.e(TAG + " appendListJson(): the list could not be read, element not added: " + key);
+            return false;
+        }
+        return true;
     }
 
     /**
      * ************************************************************************
-     * insertMap() (Private)
+     * getListPage()
      * ************************************************************************
-     * - Insert a map of data into the SQLite database.
+     * - Read limit elements of a row list, from the oldest kept one plus
+     *   offset, in append order.
+     * - One range read of the primary key: only these rows are read,
+     *   decrypted and parsed. Appends not flushed yet are included.
      * ------------------------------------------------------------------------
-     * @param dataSet The data map to insert.
+     * @param key    The list key.
+     * @param offset Position of the first element, 0 for the oldest.
+     * @param limit  Maximum number of elements.
+     * @param cls    The element class.
+     * @return The elements, empty if the page is past the end.
      */
-    private synchronized void insertMap(Map<String, Object> dataSet){
-        if(dataSet==null || dataSet.isEmpty()){
-            // Logger.w(TAG + " insertMap(): dataSet is empty or null");
-            return;
+    public <T> List<T> getListPage(String key, int offset, int limit, Class<T> cls){
+        List<T> page = new ArrayList<>();
+        if(offset < 0 || limit <= 0){
+            return page;
         }
-        //// Logger.d(TAG + " insertMap(): number of data to save in db: "+dataSet.size());
-
-        // Create a copy of data before handle it inside threads
-        AtomicReference<ConcurrentHashMap<String, Object>> dataSetCopy = new AtomicReference<>(new ConcurrentHashMap<>(dataSet));
-        // Make sure that given map is cleaned
-        dataSet.clear();
-
-        // Add the map items to database
-        executors.execute(()->{
-            try (SQLiteDatabase db = getWritableDatabase()) {
-                for (Map.Entry<String, Object> data : dataSetCopy.get().entrySet()) {
-                    try {
-                        ContentValues cv = new ContentValues();
-                        // Put key
-                        cv.put(COLUMN_KEY, data.getKey());
-                        // Put data type (ClassName)
-                        cv.put(COLUMN_DATA_TYPE, data.getValue().getClass().getSimpleName());
-                        // Put value (Check if encryption needed)
-                        String original_val = String.valueOf(data.getValue());
-                        String final_val = (ENABLE_ENCRYPTION) ? CryptoUtil.cipherEncrypt(original_val, SECRET_KEY) : original_val;
-                        cv.put(COLUMN_DATA_VALUE, final_val);
-                        // Add to Database.
-                        // CONFLICT_REPLACE relies on COLUMN_KEY being the primary key,
-                        // see onCreate().
-                        //// Logger.d(TAG + " insertMap(): Insert map: " + cv.toString());
-                        db.insertWithOnConflict(TABLE_NAME, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                        cv.clear();
-                    } catch (Exception e) {
-                        // Logger.e(TAG + " insertMap(): Error inserting data into database", e);
-                    }
-                }
+        TreeMap<Long, String> rows = rowLists.page(key, offset, limit);
+        if(rows==null){
+            return page;
+        }
+        for(String json : rows.values()){
+            try {
+                page.add(GSON.fromJson(json, cls));
             } catch (Exception e) {
-                // Logger.e(TAG + " insertMap(): Error getting writable database", e);
-                e.printStackTrace();
+                Logger.e(TAG + " getListPage(): " + e.getMessage());
             }
+        }
+        return page;
+    }
 
-            // Clean the copied map:
-            dataSetCopy.get().clear();
-            dataSetCopy.set(null);
-        });
+    /**
+     * ************************************************************************
+     * listSize()
+     * ************************************************************************
+     * - Number of elements in a row list, appends not flushed included.
+     * - No row is read, except once per list for its window.
+     * ------------------------------------------------------------------------
+     * @param key The list key.
+     * @return The element count.
+     */
+    public int listSize(String key){
+        return rowLists.size(key);
     }
 
     /**
      * ************************************************************************
-     * getAll()
+     * trimList()
      * ************************************************************************
-     * - Return all data saved in SqlPreferences.
-     * - This method executes synchronously (may block the calling thread).
-     * - All data types are saved as strings and converted back to their
-     *   original types.
+     * - Keep the newest max elements of a row list, drop the older ones.
+     * - One range DELETE on the disk. 0 empties the list.
      * ------------------------------------------------------------------------
-     * @return A map of all stored key-value pairs.
+     * @param key The list key.
+     * @param max The number of elements to keep.
      */
-    public  <T> Map<String, T> getAll() {
-        Map<String, T> dataSet = new HashMap<>();
+    public void trimList(String key, int max){
+        if(!rowLists.trim(key, max)){
+            Logger.e(TAG + " trimList(): the list could not be read, not trimmed: " + key);
+        }
+    }
 
+    /*==========================[ PREFIX ]==========================*/
 
-        try (SQLiteDatabase db = getWritableDatabase()) {
-            Cursor cursor = db.query(TABLE_NAME, new String[]{COLUMN_KEY, COLUMN_DATA_VALUE, COLUMN_DATA_TYPE}, null, null, null, null, null);
+    /**
+     * ************************************************************************
+     * keys()
+     * ************************************************************************
+     * - Every stored key that starts with prefix, e.g. "feed:123:".
+     * - Served from the sorted key index of the cache, without reading any
+     *   value. With a bounded cache (lazy mode, memory budget), one range
+     *   scan of the primary key index on the disk, merged with the changes
+     *   not flushed yet.
+     * - Keys are storage keys, see OnChangeListener.
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     * @return The matching keys, sorted.
+     */
+    public List<String> keys(String prefix){
+        if(!cache.isBounded()){
+            List<String> keys = cache.keysWithPrefix(prefix);
+            if(!expiries.isEmpty()){
+                keys.removeIf(this::isExpired);
+            }
+            return keys;
+        }
+        return new ArrayList<>(readPrefix(prefix, false).keySet());
+    }
 
-            while (cursor.moveToNext()) {
-                String key = cursor.getString(0);
-                String columnResult = (ENABLE_ENCRYPTION) ? CryptoUtil.cipherDecrypt(cursor.getString(1), SECRET_KEY) : cursor.getString(1);
-                String type = cursor.getString(2);
-
-                // Convert object type from string to its original
-                Object value = null;
-                try {
-                    if (type.equals(String.class.getSimpleName())) {
-                        value = columnResult;
-                    } else if (type.equals(Boolean.class.getSimpleName())) {
-                        value = Boolean.parseBoolean(columnResult);
-                    } else if (type.equals(Integer.class.getSimpleName())) {
-                        value = Integer.parseInt(columnResult);
-                    } else if (type.equals(Long.class.getSimpleName())) {
-                        value = Long.parseLong(columnResult);
-                    } else if (type.equals(Float.class.getSimpleName())) {
-                        value = Float.parseFloat(columnResult);
-                    } else if (type.equals(Double.class.getSimpleName())) {
-                        value = Double.parseDouble(columnResult);
-                    } else {
-                        // if the type is not supported, skip this entry
-                        continue;
-                    }
-                } catch (Exception e) {
-                    // if we cant parse value, skip this entry
-                    continue;
+    /**
+     * ************************************************************************
+     * getAllWithPrefix()
+     * ************************************************************************
+     * - Same as getAll(), but only the keys that start with prefix.
+     * - Only the matching rows are read and decrypted, see keys().
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     * @return The matching key-value pairs, sorted by key.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getAllWithPrefix(String prefix){
+        if(!cache.isBounded()){
+            Map<String, Object> dataSet = new LinkedHashMap<>();
+            for(String key : cache.keysWithPrefix(prefix)){
+                Object value = resolved(key, cache.get(key));
+                if(value!=null && !isExpired(key)){
+                    dataSet.put(key, value);
                 }
-                dataSet.put(key, (T) value);
             }
-            cursor.close();
-            // Logger.d(TAG + " getAll(): dataset = "+dataSet);
-            return dataSet;
-        }catch (Exception e){
-            e.printStackTrace();
-            return dataSet;
+            return (Map<String, T>) dataSet;
+        }
+        return (Map<String, T>) readPrefix(prefix, true);
+    }
+
+
+    /*==========================[ DELETE ]==========================*/
+
+    /**
+     * ************************************************************************
+     * remove()
+     * ************************************************************************
+     * - Remove a data entry by key from cache and disk.
+     * ------------------------------------------------------------------------
+     * @param key The identifier key of the item to remove.
+     */
+    public synchronized void remove(String key) {
+        synchronized (pendingLock){
+            // Remove the entry from cache
+            cache.remove(key);
+            expiries.remove(key);
+            counters.remove(key);
+            invalidateObjects(Collections.singleton(key));
+
+            // Remove the entry from disk:
+            // Replaces any pending write of the same key.
+            pendingWrites.put(key, REMOVED);
+            requestedWrites++;
+            scheduleFlush(pendingWrites.size() >= flushThreshold);
         }
 
+        // Notify listeners
+        notifyListeners(Collections.singleton(key));
+    }
+
+    /**
+     * ************************************************************************
+     * removeObject()
+     * ************************************************************************
+     * - Remove a saved object by key (adds PREFIX_OBJ internally).
+     * ------------------------------------------------------------------------
+     * @param key The object identifier key.
+     */
+    public void removeObject(String key){
+        // Remove the object by its prefixed key
+        remove(objectKey(key));
+    }
+
+    /**
+     * ************************************************************************
+     * removeListObject()
+     * ************************************************************************
+     * - Remove a saved list of objects by key (adds PREFIX_LIST internally).
+     * - This now builds the same key that putListObject() writes, which it
+     *   did not do before: it used to skip the class name that put and get
+     *   both included, so the delete matched no row and the data stayed.
+     * ------------------------------------------------------------------------
+     * @param key The list identifier key.
+     * @apiNote A list written by an older version of the library sits under a
+     *          key that includes the element class name. Use
+     *          removeListObject(String, Class) to clear that one too, or call
+     *          getListObject() first, which migrates it.
+     */
+    public void removeListObject(String key){
+        // Remove the list by its prefixed key
+        remove(listKey(key));
+    }
+
+    /**
+     * ************************************************************************
+     * removePrefix()
+     * ************************************************************************
+     * - Remove every key that starts with prefix, from cache and disk.
+     * - On the disk it is one range DELETE, not one delete per key.
+     * - Key-value rows only: the row lists of appendToList() under prefix
+     *   are kept, as they are by remove(). Empty them with trimList(key, 0).
+     * - An empty prefix is the same as clear(), which deletes row lists too.
+     * ------------------------------------------------------------------------
+     * @param prefix The key prefix.
+     */
+    public void removePrefix(String prefix){
+        if(prefix==null){
+            return;
+        }
+        if(prefix.isEmpty()){
+            clear();
+            return;
+        }
+
+        // Keys to notify. With a bounded cache, includes keys only on the disk.
+        Set<String> removed = new HashSet<>(keys(prefix));
+        synchronized (pendingLock){
+            // Remove the entries from cache
+            removed.addAll(cache.removePrefix(prefix));
+
+            // Pending writes under the prefix are older: the range delete
+            // replaces them
+            for(String key : pendingWrites.keySet()){
+                if(key.startsWith(prefix)){
+                    removed.add(key);
+                }
+            }
+            pendingWrites.keySet().removeIf(key -> key.startsWith(prefix));
+            expiries.keySet().removeAll(removed);
+            counters.removePrefix(prefix);
+            invalidateObjects(removed);
+
+            pendingRangeDeletes.add(prefix);
+            requestedWrites++;
+            scheduleFlush(false);
+        }
+
+        // Notify listeners
+        notifyListeners(removed);
+    }
+
+
+    /*==========================[ EXPORT / IMPORT ]==========================*/
+
+    /**
+     * ************************************************************************
+     * exportTo()
+     * ************************************************************************
+     * - Same as exportTo(out, key), with the key of this store if any of its
+     *   values is encrypted (see encryptsAny()), in the clear otherwise.
+     */
+    public long exportTo(@NonNull OutputStream out) throws IOException {
+        return exportTo(out, encryptsAny() ? secretKey() : null);
+    }
+
+    /**
+     * ************************************************************************
+     * exportTo()
+     * ************************************************************************
+     * - Write every key-value row and row list element to out, see Export
+     *   Format in PreferencesExport, for a backup or a move to another
+     *   device or store.
+     * - Streams: the table is read one page of rows at a time through the
+     *   primary key, and each row is written out as it is read. Memory does
+     *   not grow with the store, unlike getAll().
+     * - Flushes the pending writes first. Each page is read at once, so a key
+     *   changed during a long export is exported either before or after its
+     *   change, never half written.
+     * - Values are re-encrypted under exportKey. Rows already encrypted
+     *   under that same key are copied without being decrypted.
+     * - Expired rows are left out. out is flushed, not closed.
+     * - A row that cannot be exported fails the export, it is never left
+     *   out: a backup that misses values must not look complete.
+     * ------------------------------------------------------------------------
+     * @param out       Where to write.
+     * @param exportKey Key to encrypt the values with, or null to write them
+     *                  in the clear.
+     * @return The number of records written.
+     * @throws IOException if out fails, the pending writes could not be
+     *                     flushed, or a row cannot be read (missing spill
+     *                     file, another key) or encrypted. The message
+     *                     names its key.
+     */
+    public long exportTo(@NonNull OutputStream out, @Nullable String exportKey) throws IOException {
+        return PreferencesExport.exportTo(this, out, exportKey);
+    }
+
+    /**
+     * ************************************************************************
+     * importFrom()
+     * ************************************************************************
+     * - Same as importFrom(in, key), with the key of this store.
+     */
+    public long importFrom(@NonNull InputStream in) throws IOException {
+        return importFrom(in, secretKey());
+    }
+
+    /**
+     * ************************************************************************
+     * importFrom()
+     * ************************************************************************
+     * - Read a stream written by exportTo() into this store. Keys already
+     *   stored are replaced, others are kept. Row list elements are appended
+     *   to the list of the same key, in their order.
+     * - Streams: records are read one by one and committed every
+     *   IMPORT_CHUNK_ROWS, each chunk in one transaction. Memory holds one
+     *   chunk, plus what the cache keeps (every value when unbounded).
+     * - Values are stored the way this store stores them: encrypted with its
+     *   own key, or native.
+     * - Goes through the same writer as apply(): listeners are called once
+     *   per chunk, and the write queue limit applies.
+     * - A failure stops the import: the chunks committed before it stay.
+     * ------------------------------------------------------------------------
+     * @param in        Where to read, not closed.
+     * @param importKey Key the values were exported with. Only needed for
+     *                  encrypted records.
+     * @return The number of records imported (expired ones are skipped).
+     * @throws IOException if in fails, is not an export, is damaged, has
+     *                     encrypted records importKey cannot decrypt, a
+     *                     list cannot be read to append to, or a chunk
+     *                     could not be written.
+     */
+    public long importFrom(@NonNull InputStream in, @Nullable String importKey) throws IOException {
+        return PreferencesExport.importFrom(this, in, importKey);
+    }
+
+
+
+    /*==========================[ KEY ROTATION ]==========================*/
+
+    /**
+     * ************************************************************************
+     * rotateKey()
+     * ************************************************************************
+     * - Replace the secret key of this store, and re-encrypt every encrypted
+     *   row under it in the background, see Key Rotation.
+     * - The new key is used by every write from the start of the rotation.
+     *   Rows not yet re-encrypted are still read with the old one, so the
+     *   store can be used normally while it runs.
+     * - The rotation survives a crash or a kill: the next start resumes it,
+     *   provided the store is opened with newKey. From now on, pass newKey to
+     *   getInstance()/init() or in the Options, never the old key.
+     * ------------------------------------------------------------------------
+     * @param newKey The new secret key, 16, 24, or 32 bytes long.
+     * @return Completes with true once every row is under newKey, or with
+     *         false if the rotation could not start (invalid newKey in
+     *         production, nothing encrypted (encryption disabled and no
+     *         ENCRYPT/COMPRESS_ENCRYPT policy), another rotation running, or
+     *         a database error).
+     * @throws IllegalArgumentException if newKey has a wrong length, in
+     *         debug mode only, same as setSecretKey().
+     */
+    public CompletableFuture<Boolean> rotateKey(@NonNull String newKey){
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        if (newKey == null || (newKey.length() != 16 && newKey.length() != 24 && newKey.length() != 32)) {
+            String err = "Secret Key must be 16, 24, or 32 bytes long. The key was not rotated.";
+            Logger.e(TAG + " rotateKey(): " + err);
+            if (Utils.isDebuggingMode(context)) {
+                throw new IllegalArgumentException(err);
+            }
+            done.complete(false);
+            return done;
+        }
+        if(!encryptsAny()){
+            Logger.e(TAG + " rotateKey(): encryption is disabled and no policy encrypts, there is nothing to rotate");
+            done.complete(false);
+            return done;
+        }
+        if(closed){
+            Logger.e(TAG + " rotateKey(): the store is closed");
+            done.complete(false);
+            return done;
+        }
+        writer.execute(() -> rotation.rotate(newKey, done));
+        return done;
+    }
+
+    /**
+     * ************************************************************************
+     * isKeyRotationRunning()
+     * ************************************************************************
+     * @return true while rows are still being re-encrypted by rotateKey(),
+     *         including a rotation resumed after a restart.
+     */
+    public boolean isKeyRotationRunning(){
+        return rotation.isRunning();
+    }
+
+    /*==========================[ PRIVATE ]==========================*/
+
+    /**
+     * ************************************************************************
+     * objectKey() (Package-Private)
+     * ************************************************************************
+     * - Build the storage key for a single object.
+     * - One place builds it, so put, get and remove cannot drift apart.
+     * ------------------------------------------------------------------------
+     * @param key The identifier key passed by the caller.
+     * @return The prefixed storage key.
+     */
+    static String objectKey(String key){
+        return PREFIX_OBJ + key;
+    }
+
+    /**
+     * ************************************************************************
+     * listKey() (Package-Private)
+     * ************************************************************************
+     * - Build the storage key for a list of objects.
+     * - One place builds it, so put, get and remove cannot drift apart.
+     * ------------------------------------------------------------------------
+     * @param key The identifier key passed by the caller.
+     * @return The prefixed storage key.
+     */
+    static String listKey(String key){
+        return PREFIX_LIST + key;
+    }
+
+    /**
+     * ************************************************************************
+     * legacyListKey() (Private)
+     * ************************************************************************
+     * - Rebuild the list key used before the class name was dropped.
+     * - Only for reading and cleaning up old rows. Nothing writes this key.
+     * - Remove this method, and its two call sites, once enough time has
+     *   passed for installed apps to have read their lists back at least
+     *   once.
+     * ------------------------------------------------------------------------
+     * @param key       The identifier key passed by the caller.
+     * @param classType The element class.
+     * @return The old storage key.
+     */
+    private static String legacyListKey(String key, Class<?> classType){
+        return PREFIX_LIST + classType.getName() + key;
+    }
+
+    /**
+     * ************************************************************************
+     * notifyListeners() (Package-Private)
+     * ************************************************************************
+     * - Dispatch one change to the listeners whose prefix matches.
+     * - Each listener gets one call with all of its matching keys, on its
+     *   own executor.
+     * ------------------------------------------------------------------------
+     * @param changedKeys The changed storage keys, or null for clear().
+     */
+    void notifyListeners(@Nullable Set<String> changedKeys){
+        PrefixIndex<ListenerRegistration> index = listeners;
+        if(index.isEmpty() || (changedKeys!=null && changedKeys.isEmpty())){
+            return;
+        }
+
+        // Group the matching keys per listener
+        Map<OnChangeListener, Set<String>> keysByListener = new HashMap<>();
+        Map<OnChangeListener, Executor> executorByListener = new HashMap<>();
+        if(changedKeys==null){
+            for(ListenerRegistration registration : index.values()){
+                keysByListener.put(registration.listener, Collections.emptySet());
+                executorByListener.put(registration.listener, registration.executor);
+            }
+        } else {
+            for(String key : changedKeys){
+                index.forEachMatch(key, registration -> {
+                    Set<String> keys = keysByListener.get(registration.listener);
+                    if(keys==null){
+                        keys = new HashSet<>();
+                        keysByListener.put(registration.listener, keys);
+                        executorByListener.put(registration.listener, registration.executor);
+                    }
+                    keys.add(key);
+                });
+            }
+        }
+
+        // Dispatch
+        for(Map.Entry<OnChangeListener, Set<String>> entry : keysByListener.entrySet()){
+            OnChangeListener listener = entry.getKey();
+            Set<String> keys = Collections.unmodifiableSet(entry.getValue());
+            try {
+                executorByListener.get(listener).execute(() -> listener.onChanged(this, keys));
+            } catch (Exception e) {
+                Logger.e(TAG + " notifyListeners(): unable to dispatch: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * deserialize() (Private)
+     * ************************************************************************
+     * - Turn a JSON string into an object, through the Object Cache when a
+     *   shared instance is asked for.
+     * ------------------------------------------------------------------------
+     * @param storageKey The full prefixed key.
+     * @param serialized The JSON string, as held by the cache.
+     * @param type       The type to deserialize to.
+     * @param shared     true to use the Object Cache.
+     * @return The deserialized object.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T deserialize(String storageKey, String serialized, Type type, boolean shared){
+        LruCache<String, ObjectEntry> objects = objectCache;
+        if(!shared || objects==null){
+            // Deserialize String to Object
+            return GSON.fromJson(serialized, type);
+        }
+
+        // Same string instance and same type: nothing changed since parsed
+        ObjectEntry entry = objects.get(storageKey);
+        if(entry!=null && entry.json==serialized && entry.type.equals(type)){
+            objectCacheHits.incrementAndGet();
+            return (T) entry.instance;
+        }
+        objectCacheMisses.incrementAndGet();
+
+        Object instance = GSON.fromJson(serialized, type);
+        if(instance==null){
+            return null;
+        }
+        if(instance instanceof List){
+            instance = Collections.unmodifiableList((List<?>) instance);
+        }
+        objects.put(storageKey, new ObjectEntry(serialized, type, instance));
+        return (T) instance;
+    }
+
+    /**
+     * ************************************************************************
+     * invalidateObjects() (Private)
+     * ************************************************************************
+     * - Drop the Object Cache entries of the given keys.
+     * ------------------------------------------------------------------------
+     * @param keys Full storage keys that changed.
+     */
+    private void invalidateObjects(Iterable<String> keys){
+        LruCache<String, ObjectEntry> objects = objectCache;
+        if(objects==null){
+            return;
+        }
+        for(String key : keys){
+            if(key.startsWith(PREFIX_OBJ) || key.startsWith(PREFIX_LIST)){
+                objects.remove(key);
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * lookup() (Private)
+     * ************************************************************************
+     * - Read a value out of the cache.
+     * - With a bounded cache, a miss reads that key from the disk and caches
+     *   it (unless too large, see CACHE_MAX_VALUE_BYTES).
+     * - An expired key is absent, without any I/O.
+     * - A counter is read from its cells, see Counters.
+     * - A key of the batch being published is read from it, see
+     *   publishing.
+     * ------------------------------------------------------------------------
+     * @param key The full storage key.
+     * @return The stored value, or null if absent.
+     */
+    private @Nullable Object lookup(String key){
+        Number counted = counters.get(key);
+        if(counted!=null){
+            return counted;
+        }
+        Map<String, Object> batch = publishing;
+        if(batch!=null){
+            Object published = batch.get(key);
+            if(published!=null){
+                published = pendingValue(published);
+                return (published==REMOVED) ? null : published;
+            }
+        }
+        Object item = cache.get(key);
+        if(item==null && cache.isBounded()){
+            item = loadKey(key);
+        }
+        if(item==ABSENT || isExpired(key)){
+            return null;
+        }
+        return resolved(key, item);
+    }
+
+    /**
+     * ************************************************************************
+     * loadKey() (Private)
+     * ************************************************************************
+     * - Fault one key in from the disk (bounded cache).
+     * - Writes that are pending, or being flushed, are newer than the disk,
+     *   so they are checked first, and checked again once the row is read.
+     * - The row is read without pendingLock, see readBetweenFlushes(): a
+     *   miss never holds up apply()/remove()/clear(). A change made during
+     *   the read is either still pending when the result is merged, or its
+     *   flush has committed and the row is read again.
+     * - A failed read is not cached, and reads as absent this time only.
+     * ------------------------------------------------------------------------
+     * @param key The full storage key.
+     * @return The value, or ABSENT if the key is not stored or the read
+     *         failed.
+     */
+    private Object loadKey(String key){
+        synchronized (pendingLock){
+            // Another reader may have loaded it meanwhile
+            Object item = cache.get(key);
+            if(item!=null){
+                return item;
+            }
+            item = pendingItem(key);
+            if(item!=null){
+                return cacheLoaded(key, item, null);
+            }
+        }
+
+        Map<String, Long> expiry = new HashMap<>(2);
+        Object item = readBetweenFlushes(() -> {
+            expiry.clear();
+            return wrapLoaded(queryKey(key, expiry));
+        }, disk -> {
+            Object cached = cache.get(key);
+            if(cached!=null){
+                return cached;
+            }
+            Object pending = pendingItem(key);
+            if(pending!=null){
+                return cacheLoaded(key, pending, null);
+            }
+            if(disk==FAILED){
+                return FAILED;
+            }
+            return cacheLoaded(key, (disk!=ABSENT) ? disk : null, expiry.get(key));
+        });
+        return (item!=null && item!=FAILED) ? item : ABSENT;
+    }
+
+    // readBetweenFlushes() returns null when it fails: a missing row is ABSENT
+    private static Object wrapLoaded(@Nullable Object value){
+        return (value!=null) ? value : ABSENT;
+    }
+
+    /**
+     * ************************************************************************
+     * pendingItem() (Private)
+     * ************************************************************************
+     * - The change pending or being flushed for key, newer than the disk.
+     *   Must hold pendingLock.
+     * ------------------------------------------------------------------------
+     * @param key The full storage key.
+     * @return The value, REMOVED, or null if the disk is up to date.
+     */
+    private @Nullable Object pendingItem(String key){
+        if(pendingWrites.containsKey(key)){
+            return pendingValue(pendingWrites.get(key));
+        }
+        if(pendingClear || matchesAny(pendingRangeDeletes, key)){
+            return REMOVED;
+        }
+        if(flushingWrites!=null && flushingWrites.containsKey(key)){
+            return pendingValue(flushingWrites.get(key));
+        }
+        if(flushingClear || matchesAny(flushingRangeDeletes, key)){
+            return REMOVED;
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * cacheLoaded() (Private)
+     * ************************************************************************
+     * - Cache a loaded item, and its expiry. Must hold pendingLock.
+     * ------------------------------------------------------------------------
+     * @param key       The full storage key.
+     * @param item      The value, REMOVED, or null if not stored.
+     * @param expiresAt The expiry of the row read, if any.
+     * @return The cached item, ABSENT for REMOVED and null.
+     */
+    private Object cacheLoaded(String key, @Nullable Object item, @Nullable Long expiresAt){
+        if(item==null || item==REMOVED){
+            item = ABSENT;
+        } else if(expiresAt!=null){
+            expiries.put(key, expiresAt);
+            ensureSweeper();
+        }
+        cache.putIfAbsent(key, item);
+        return item;
+    }
+
+    /**
+     * ************************************************************************
+     * readPrefix() (Private)
+     * ************************************************************************
+     * - Bounded cache: range scan of the disk for prefix, then the flushing
+     *   and pending changes on top, oldest first, in the order the writer
+     *   runs them (clear, range deletes, key writes).
+     * ------------------------------------------------------------------------
+     * @param prefix     The key prefix.
+     * @param withValues false to read the keys only (values are TRUE).
+     * @return The matching keys and values, sorted by key.
+     */
+    private TreeMap<String, Object> readPrefix(String prefix, boolean withValues){
+        TreeMap<String, Object> rows = readBetweenFlushes(() -> queryPrefix(prefix, withValues), disk -> {
+            overlayChanges(disk, prefix, withValues, flushingClear, flushingRangeDeletes, flushingWrites);
+            overlayChanges(disk, prefix, withValues, pendingClear, pendingRangeDeletes, pendingWrites);
+            return disk;
+        });
+        return rows!=null ? rows : new TreeMap<>();
+    }
+
+    /**
+     * ************************************************************************
+     * overlayChanges() (Private)
+     * ************************************************************************
+     * - Apply one batch of changes (pending or flushing) to rows read from
+     *   the disk. Must hold pendingLock.
+     */
+    private static void overlayChanges(TreeMap<String, Object> rows, String prefix, boolean withValues,
+                                       boolean clearAll, @Nullable List<String> rangeDeletes,
+                                       @Nullable Map<String, Object> writes){
+        if(clearAll){
+            rows.clear();
+        }
+        if(rangeDeletes!=null){
+            for(String removed : rangeDeletes){
+                rows.keySet().removeIf(key -> key.startsWith(removed));
+            }
+        }
+        if(writes!=null){
+            for(Map.Entry<String, Object> write : writes.entrySet()){
+                if(!write.getKey().startsWith(prefix)) continue;
+                Object value = pendingValue(write.getValue());
+                if(value==REMOVED){
+                    rows.remove(write.getKey());
+                } else {
+                    rows.put(write.getKey(), withValues ? value : Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * queryPrefix() (Private)
+     * ************************************************************************
+     * - Read the rows whose key starts with prefix, through the primary key
+     *   index: a [prefix, prefixEnd) range, checked with instr() since the
+     *   range may be a little wider, see PreferencesCache.prefixEnd().
+     * ------------------------------------------------------------------------
+     * @param prefix     The key prefix.
+     * @param withValues false to read the keys only (values are TRUE).
+     * @return The rows, decoded, sorted by key.
+     */
+    private TreeMap<String, Object> queryPrefix(String prefix, boolean withValues){
+        TreeMap<String, Object> dataSet = new TreeMap<>();
+        String prefixEnd = PreferencesCache.prefixEnd(prefix);
+        String[] columns = withValues
+                ? new String[]{COLUMN_KEY, COLUMN_DATA_VALUE, COLUMN_DATA_TYPE}
+                : new String[]{COLUMN_KEY};
+        List<RawRow> rows = new ArrayList<>();
+        try {
+            SQLiteDatabase db = getDatabase();
+            String[] args = prefixArgs(prefix, prefixEnd);
+            String[] selectionArgs = new String[args.length + 1];
+            System.arraycopy(args, 0, selectionArgs, 0, args.length);
+            selectionArgs[args.length] = String.valueOf(System.currentTimeMillis());
+            try (Cursor cursor = db.query(tableName, columns, prefixSelection(prefixEnd) + " AND " + NOT_EXPIRED,
+                    selectionArgs, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    if(withValues){
+                        rows.add(new RawRow(cursor.getString(0), cursor.getInt(2), readColumn(cursor, 1)));
+                    } else {
+                        // Keys only: nothing to decode
+                        dataSet.put(cursor.getString(0), Boolean.TRUE);
+                    }
+                }
+            }
+        }catch (Exception e){
+            Logger.e(TAG + " queryPrefix(): " + e.getMessage());
+        }
+        if(withValues){
+            dataSet.putAll(decodeRows(rows, false));
+        }
+        return dataSet;
+    }
+
+    /**
+     * ************************************************************************
+     * prefixSelection() (Package-Private)
+     * ************************************************************************
+     * @param prefixEnd The range end, or null if unbounded.
+     * @return The WHERE clause of a key prefix, see prefixArgs().
+     */
+    static String prefixSelection(@Nullable String prefixEnd){
+        return COLUMN_KEY + " >= ?"
+                + (prefixEnd!=null ? " AND " + COLUMN_KEY + " < ?" : "")
+                + " AND instr(" + COLUMN_KEY + ", ?) = 1";
+    }
+
+    /**
+     * ************************************************************************
+     * prefixArgs() (Package-Private)
+     * ************************************************************************
+     * @return The arguments of prefixSelection().
+     */
+    static String[] prefixArgs(String prefix, @Nullable String prefixEnd){
+        return prefixEnd!=null
+                ? new String[]{prefix, prefixEnd, prefix}
+                : new String[]{prefix, prefix};
+    }
+
+    /**
+     * ************************************************************************
+     * matchesAny() (Private)
+     * ************************************************************************
+     * @return true if key starts with one of the prefixes.
+     */
+    static boolean matchesAny(@Nullable List<String> prefixes, String key){
+        if(prefixes==null){
+            return false;
+        }
+        for(String prefix : prefixes){
+            if(key.startsWith(prefix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ************************************************************************
+     * queryKey() (Private)
+     * ************************************************************************
+     * - Read one row through the primary key index, unless expired.
+     * - Touches no shared state: called without pendingLock.
+     * ------------------------------------------------------------------------
+     * @param key         The full storage key.
+     * @param expiriesOut Filled with key to expiry, if the row has one.
+     * @return The value converted to its original type, Spilled for a
+     *         spilled row, null if the row is missing or cannot be decoded,
+     *         or FAILED if the query failed.
+     */
+    private @Nullable Object queryKey(String key, Map<String, Long> expiriesOut){
+        try {
+            SQLiteDatabase db = getDatabase();
+            try (Cursor cursor = db.query(tableName, new String[]{COLUMN_DATA_VALUE, COLUMN_DATA_TYPE, COLUMN_EXPIRES_AT},
+                    COLUMN_KEY + " = ? AND " + NOT_EXPIRED,
+                    new String[]{key, String.valueOf(System.currentTimeMillis())}, null, null, null)) {
+                if(!cursor.moveToFirst()){
+                    return null;
+                }
+                if(!cursor.isNull(2)){
+                    expiriesOut.put(key, cursor.getLong(2));
+                }
+                SecretKeySpec keySpec = getKeySpec();
+                RetiredKey retired = rotation.retiredKey;
+                // A spilled value stays a Spilled marker: its file is read
+                // by resolved(), after pendingLock is released
+                return decodeValue(cursor.getInt(1), readColumn(cursor, 0), keySpec, retired);
+            }
+        }catch (Exception e){
+            Logger.e(TAG + " queryKey(): " + e.getMessage());
+            return FAILED;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * parseValue() (Package-Private)
+     * ************************************************************************
+     * - Convert a decrypted string back to its original type.
+     * ------------------------------------------------------------------------
+     * @param type         The Type Code, flags removed.
+     * @param columnResult The stored value, already decrypted.
+     * @return The converted value, or null if the type is not supported or
+     *         the value cannot be parsed.
+     */
+    static @Nullable Object parseValue(int type, String columnResult){
+        if(columnResult==null){
+            return null;
+        }
+        try {
+            switch (type) {
+                case TYPE_STRING:
+                    return columnResult;
+                case TYPE_BOOLEAN:
+                    return Boolean.parseBoolean(columnResult);
+                case TYPE_INTEGER:
+                    return Integer.parseInt(columnResult);
+                case TYPE_LONG:
+                    return Long.parseLong(columnResult);
+                case TYPE_FLOAT:
+                    return Float.parseFloat(columnResult);
+                case TYPE_DOUBLE:
+                    return Double.parseDouble(columnResult);
+            }
+        } catch (Exception e) {
+            // if we cant parse value, skip this entry
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * convertNative() (Private)
+     * ************************************************************************
+     * - Convert an unencrypted value, read with its native SQLite type, to
+     *   its original type. No formatting, no parsing.
+     * ------------------------------------------------------------------------
+     * @param type   The Type Code, flags removed.
+     * @param stored The value read by readColumn().
+     * @return The converted value, or null if it does not match the type.
+     */
+    private static @Nullable Object convertNative(int type, Object stored){
+        switch (type) {
+            case TYPE_STRING:
+                return (stored instanceof String) ? stored : null;
+            case TYPE_BOOLEAN:
+                return (stored instanceof Long) ? (Long) stored != 0 : null;
+            case TYPE_INTEGER:
+                return (stored instanceof Long) ? ((Long) stored).intValue() : null;
+            case TYPE_LONG:
+                return (stored instanceof Long) ? stored : null;
+            case TYPE_FLOAT:
+                return (stored instanceof Double) ? ((Double) stored).floatValue() : null;
+            case TYPE_DOUBLE:
+                return (stored instanceof Double) ? stored : null;
+            case TYPE_INT_ARRAY:
+            case TYPE_LONG_ARRAY:
+            case TYPE_DOUBLE_ARRAY:
+                return (stored instanceof byte[]) ? unpackArray(type, (byte[]) stored) : null;
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * unpackArray() (Package-Private)
+     * ************************************************************************
+     * @param type  TYPE_INT_ARRAY, TYPE_LONG_ARRAY or TYPE_DOUBLE_ARRAY.
+     * @param bytes The packed bytes, decrypted.
+     * @return The primitive array, or null if the bytes do not fit the type.
+     */
+    static @Nullable Object unpackArray(int type, byte[] bytes){
+        switch (type) {
+            case TYPE_INT_ARRAY:
+                return PackedArrays.unpackInts(bytes);
+            case TYPE_LONG_ARRAY:
+                return PackedArrays.unpackLongs(bytes);
+            case TYPE_DOUBLE_ARRAY:
+                return PackedArrays.unpackDoubles(bytes);
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * plainBytes() (Package-Private)
+     * ************************************************************************
+     * - The bytes of a value, as they are encrypted: packed arrays as they
+     *   are, anything else as the UTF-8 bytes of String.valueOf().
+     * ------------------------------------------------------------------------
+     * @param value The value to store.
+     * @return The plain bytes.
+     */
+    static byte[] plainBytes(Object value){
+        if(value instanceof int[]) return PackedArrays.pack((int[]) value);
+        if(value instanceof long[]) return PackedArrays.pack((long[]) value);
+        if(value instanceof double[]) return PackedArrays.pack((double[]) value);
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * ************************************************************************
+     * decodeValue() (Package-Private)
+     * ************************************************************************
+     * - Decrypt (if flagged), decompress (if flagged) and convert one
+     *   stored value.
+     * - Thread-safe, called from the decode workers.
+     * - A row still under the retired key of a rotation is decrypted with
+     *   it, any other with keySpec. Callers read keySpec before retiredKey.
+     * - A spilled row is returned as Spilled, its file is not read here,
+     *   see spills.read().
+     * ------------------------------------------------------------------------
+     * @param typeCode The stored Type Code, with flags.
+     * @param stored   The value read by readColumn().
+     * @param keySpec  The derived key, null if it could not be derived.
+     * @param retired  The key being rotated away from, if any.
+     * @return The converted value, or null if it cannot be read.
+     */
+    static @Nullable Object decodeValue(int typeCode, @Nullable Object stored, @Nullable SecretKeySpec keySpec,
+                                                @Nullable RetiredKey retired){
+        Object value = decodeStored(typeCode, stored, keySpec, retired);
+        return (value instanceof Deflated) ? inflateValue((Deflated) value) : value;
+    }
+
+    /**
+     * ************************************************************************
+     * decodeStored() (Private)
+     * ************************************************************************
+     * - Same as decodeValue(), but a compressed value is only decrypted: it
+     *   is returned as Deflated, see Compression.
+     */
+    private static @Nullable Object decodeStored(int typeCode, @Nullable Object stored, @Nullable SecretKeySpec keySpec,
+                                                 @Nullable RetiredKey retired){
+        if(stored==null){
+            return null;
+        }
+        if((typeCode & FLAG_SPILLED)!=0){
+            return (stored instanceof String) ? new Spilled(typeCode, (String) stored) : null;
+        }
+        int type = typeCode & TYPE_MASK;
+        if((typeCode & FLAG_ENCRYPTED)==0){
+            if((typeCode & FLAG_COMPRESSED)!=0){
+                return (stored instanceof byte[]) ? new Deflated(type, (byte[]) stored) : null;
+            }
+            return convertNative(type, stored);
+        }
+        if(retired!=null && PreferencesKeyRotation.keyVersionOf(typeCode)==retired.version){
+            keySpec = retired.spec;
+        }
+        if(keySpec==null){
+            return null;
+        }
+        if(stored instanceof byte[]){
+            byte[] plain = CryptoUtil.cipherDecrypt((byte[]) stored, keySpec);
+            if(plain==null){
+                return null;
+            }
+            if((typeCode & FLAG_COMPRESSED)!=0){
+                return new Deflated(type, plain);
+            }
+            return decodePlain(type, plain);
+        }
+        if(stored instanceof String){
+            // Base64 text, written before version 4
+            return parseValue(type, decryptString((String) stored, keySpec));
+        }
+        return null;
+    }
+
+    /**
+     * ************************************************************************
+     * inflateValue() (Package-Private)
+     * ************************************************************************
+     * @param deflated A compressed value.
+     * @return The value converted to its type, or null if damaged.
+     */
+    static @Nullable Object inflateValue(Deflated deflated){
+        byte[] plain = PreferencesCompression.inflate(deflated.bytes);
+        return (plain!=null) ? decodePlain(deflated.type, plain) : null;
+    }
+
+    // plainBytes() back to the value: arrays unpacked, anything else parsed
+    static @Nullable Object decodePlain(int type, byte[] plain){
+        if(type==TYPE_INT_ARRAY || type==TYPE_LONG_ARRAY || type==TYPE_DOUBLE_ARRAY){
+            return unpackArray(type, plain);
+        }
+        return parseValue(type, new String(plain, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * ************************************************************************
+     * resolved() (Private)
+     * ************************************************************************
+     * - Resolve a cached item on its first read: a Deflated item is inflated,
+     *   a Spilled one read from its file. The value replaces the item in the
+     *   cache, unless the key has changed since.
+     * - A spill file that cannot be read may have been deleted by a write
+     *   of the key since the item was taken: the cache is read again (the
+     *   disk, if a bounded cache has dropped the key).
+     * - Called without pendingLock: the file, up to several MB, is never
+     *   read while writers wait.
+     * ------------------------------------------------------------------------
+     * @param key  The full storage key.
+     * @param item The cached item.
+     * @return The value, item itself if it was neither.
+     */
+    private @Nullable Object resolved(String key, @Nullable Object item){
+        Object value;
+        if(item instanceof Deflated){
+            value = inflateValue((Deflated) item);
+        } else if(item instanceof Spilled){
+            SecretKeySpec keySpec = getKeySpec();
+            value = spills.read((Spilled) item, keySpec, rotation.retiredKey);
+            if(value==null){
+                Object current = cache.get(key);
+                if(current==null && cache.isBounded()){
+                    current = loadKey(key);
+                }
+                return (current!=item && current!=ABSENT) ? resolved(key, current) : null;
+            }
+        } else {
+            return item;
+        }
+        if(value!=null){
+            cache.replace(key, item, value);
+        }
+        return value;
+    }
+
+    /**
+     * ************************************************************************
+     * readColumn() (Package-Private)
+     * ************************************************************************
+     * - Read a column with the storage class it has on the disk.
+     * ------------------------------------------------------------------------
+     * @param cursor The cursor, on a row.
+     * @param index  The column index.
+     * @return Long, Double, String, byte[], or null.
+     */
+    static @Nullable Object readColumn(Cursor cursor, int index){
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(index);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(index);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(index);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * typeCode() (Package-Private)
+     * ************************************************************************
+     * - Return the Type Code of a value, without flags.
+     * ------------------------------------------------------------------------
+     * @param value The value to store.
+     * @return The Type Code, or TYPE_UNKNOWN if it cannot be stored.
+     */
+    static int typeCode(Object value){
+        if(value instanceof String) return TYPE_STRING;
+        if(value instanceof Boolean) return TYPE_BOOLEAN;
+        if(value instanceof Integer) return TYPE_INTEGER;
+        if(value instanceof Long) return TYPE_LONG;
+        if(value instanceof Float) return TYPE_FLOAT;
+        if(value instanceof Double) return TYPE_DOUBLE;
+        if(value instanceof int[]) return TYPE_INT_ARRAY;
+        if(value instanceof long[]) return TYPE_LONG_ARRAY;
+        if(value instanceof double[]) return TYPE_DOUBLE_ARRAY;
+        return TYPE_UNKNOWN;
+    }
+
+    /**
+     * ************************************************************************
+     * bindNative() (Package-Private)
+     * ************************************************************************
+     * - Bind an unencrypted value with its native SQLite type.
+     * ------------------------------------------------------------------------
+     * @param statement The statement.
+     * @param index     The parameter index.
+     * @param value     The value to bind.
+     */
+    static void bindNative(SQLiteStatement statement, int index, Object value){
+        if(value instanceof String){
+            statement.bindString(index, (String) value);
+        } else if(value instanceof Boolean){
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if(value instanceof Integer || value instanceof Long){
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if(value instanceof Float || value instanceof Double){
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if(value instanceof int[] || value instanceof long[] || value instanceof double[]){
+            statement.bindBlob(index, plainBytes(value));
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * getKeySpec() (Package-Private)
+     * ************************************************************************
+     * - Return secretKey() derived to an AES key, deriving it on first use or
+     *   when it changed.
+     * ------------------------------------------------------------------------
+     * @return The derived key, or null if it cannot be derived.
+     */
+    @Nullable SecretKeySpec getKeySpec(){
+        String secretKey = secretKey();
+        DerivedKey current = derivedKey;
+        if(current==null || !current.source.equals(secretKey)){
+            try {
+                current = new DerivedKey(secretKey, CryptoUtil.deriveKey(secretKey));
+                derivedKey = current;
+            } catch (Exception e) {
+                Logger.e(TAG + " getKeySpec(): unable to derive key: " + e.getMessage());
+                return null;
+            }
+        }
+        return current.spec;
+    }
+
+    /**
+     * ************************************************************************
+     * decryptString() (Private)
+     * ************************************************************************
+     * - Same output as CryptoUtil.cipherDecrypt(String, String), with a key
+     *   that is already derived.
+     * - Only for Base64 values written before version 4.
+     * ------------------------------------------------------------------------
+     * @param encryptedText Base64 string of the IV + Ciphertext.
+     * @param keySpec       The derived key.
+     * @return The decrypted string, or null on failure.
+     */
+    private static @Nullable String decryptString(String encryptedText, SecretKeySpec keySpec){
+        if(encryptedText==null) return null;
+        try {
+            byte[] aesDecrypted = CryptoUtil.cipherDecrypt(Base64.decode(encryptedText, Base64.DEFAULT), keySpec);
+            if(aesDecrypted==null) return null;
+            return new String(aesDecrypted, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * decrypts() (Package-Private)
+     * ************************************************************************
+     * - Whether the key decrypts [IV (12 bytes)] + [Ciphertext], same layout
+     *   as CryptoUtil.cipherDecrypt(byte[], SecretKeySpec).
+     * - Quiet probe for flagCiphertextRows(): most of the values it tries
+     *   are plain text, and cipherDecrypt() would log each failure and its
+     *   stack trace.
+     * ------------------------------------------------------------------------
+     * @param cipherBytes The bytes that may be ciphertext.
+     * @param keySpec     The derived key.
+     * @return true if AES-GCM decrypts them and accepts their tag.
+     */
+    static boolean decrypts(byte[] cipherBytes, SecretKeySpec keySpec){
+        if(cipherBytes==null || cipherBytes.length < GCM_IV_BYTES) return false;
+        try {
+            Cipher cipher = Cipher.getInstance(CryptoUtil.CIPHER_TRANS);
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_BITS, cipherBytes, 0, GCM_IV_BYTES));
+            cipher.doFinal(cipherBytes, GCM_IV_BYTES, cipherBytes.length - GCM_IV_BYTES);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * readSerialized() (Private)
+     * ************************************************************************
+     * - Read a serialized JSON string out of the cache (or the disk, when
+     *   not cached).
+     * ------------------------------------------------------------------------
+     * @param storageKey The full prefixed key.
+     * @return The stored JSON string, or null if absent or not a string.
+     */
+    private @Nullable String readSerialized(String storageKey){
+        Object item = lookup(storageKey);
+        return (item instanceof String) ? (String) item : null;
+    }
+
+    /**
+     * ************************************************************************
+     * getDatabase() (Package-Private)
+     * ************************************************************************
+     * - Return the connection shared by every internal method.
+     * - SQLiteOpenHelper already caches the database it opens. It is never
+     *   closed here, so every call after the first returns the same handle.
+     * ------------------------------------------------------------------------
+     * @return The writable database.
+     */
+    SQLiteDatabase getDatabase(){
+        return getWritableDatabase();
+    }
+
+    /**
+     * ************************************************************************
+     * enqueueWrites() (Package-Private)
+     * ************************************************************************
+     * - Put a map of data into the cache and merge it into the pending
+     *   writes.
+     * - A key that is already pending is overwritten, so it is written once
+     *   per flush whatever the number of apply() calls.
+     * - A waiter, if given, is completed by the flush that writes this data,
+     *   which is scheduled at once.
+     * - Applies the write queue limit, see Write Queue Limit.
+     * ------------------------------------------------------------------------
+     * @param dataSet The data map to write, may be null with a waiter.
+     * @param waiter  Future of commitAsync()/flush(), or null.
+     * @return false if the data was rejected (FAIL_FAST, or the store is
+     *         closed), true otherwise.
+     */
+    boolean enqueueWrites(@Nullable Map<String, Object> dataSet, @Nullable CompletableFuture<Boolean> waiter){
+        boolean hasData = dataSet!=null && !dataSet.isEmpty();
+        if(!hasData && waiter==null){
+            // Logger.w(TAG + " enqueueWrites(): dataSet is empty or null");
+            return true;
+        }
+        boolean rejected = false;
+        synchronized (pendingLock){
+            if(closed){
+                Logger.e(TAG + " enqueueWrites(): the store \"" + storeName + "\" is closed, write dropped");
+                return false;
+            }
+            if(hasData && !makeRoom(dataSet)){
+                rejectedWrites++;
+                rejected = true;
+            }
+            else {
+                if(hasData){
+                    // An explicit value replaces the counter
+                    counters.removeAll(dataSet.keySet());
+                    mergePending(dataSet);
+                }
+                if(waiter!=null){
+                    pendingWaiters.add(waiter);
+                }
+                scheduleFlush(waiter!=null || pendingWrites.size() >= flushThreshold);
+            }
+        }
+        if(!rejected){
+            return true;
+        }
+        OnWriteRejectedListener listener = onWriteRejectedListener;
+        if(listener!=null){
+            listener.onWriteRejected(this, Collections.unmodifiableSet(new HashSet<>(dataSet.keySet())));
+        }
+        return false;
+    }
+
+    /**
+     * ************************************************************************
+     * makeRoom() (Private)
+     * ************************************************************************
+     * - Apply the WritePolicy to a batch about to be queued. Must hold
+     *   pendingLock, which BLOCK releases while it waits.
+     * ------------------------------------------------------------------------
+     * @param dataSet The batch.
+     * @return true to queue it, false to drop it.
+     */
+    private boolean makeRoom(Map<String, Object> dataSet){
+        if(fitsQueue(dataSet)){
+            return true;
+        }
+        WritePolicy policy = writePolicy;
+        if(policy==WritePolicy.FAIL_FAST){
+            return false;
+        }
+        // Get the writer started on what is queued
+        scheduleFlush(true);
+        if(policy==WritePolicy.BLOCK && !isWriterThread()){
+            long start = System.nanoTime();
+            try {
+                while(!fitsQueue(dataSet)){
+                    pendingLock.wait();
+                    scheduleFlush(true);
+                }
+            } catch (InterruptedException e) {
+                // Give up waiting, not the data
+                Thread.currentThread().interrupt();
+            }
+            enqueueWaitNanos += System.nanoTime() - start;
+        }
+        return true;
+    }
+
+    /**
+     * ************************************************************************
+     * fitsQueue() (Private)
+     * ************************************************************************
+     * @return true if the new keys of dataSet fit in pendingWrites, or
+     *         pendingWrites is empty. Must hold pendingLock.
+     */
+    private boolean fitsQueue(Map<String, Object> dataSet){
+        int free = maxPendingWrites - pendingWrites.size();
+        if(pendingWrites.isEmpty() || dataSet.size() <= free){
+            return true;
+        }
+        int newKeys = 0;
+        for(String key : dataSet.keySet()){
+            if(!pendingWrites.containsKey(key) && ++newKeys > free){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ************************************************************************
+     * mergePending() (Private)
+     * ************************************************************************
+     * - Put values in the cache and in the pending writes. Must hold
+     *   pendingLock, the caller schedules the flush.
+     * - A batch of several keys is published while the cache is written,
+     *   see publishing.
+     * ------------------------------------------------------------------------
+     * @param dataSet Key to value, or key to Expiring.
+     */
+    private void mergePending(Map<String, Object> dataSet){
+        if(dataSet.size() > 1){
+            publishing = dataSet;
+            try {
+                cacheWrites(dataSet);
+            } finally {
+                publishing = null;
+            }
+        } else {
+            cacheWrites(dataSet);
+        }
+        invalidateObjects(dataSet.keySet());
+        pendingWrites.putAll(dataSet);
+        requestedWrites += dataSet.size();
+    }
+
+    /**
+     * ************************************************************************
+     * ensureCounterTask() (Private)
+     * ************************************************************************
+     * - Make sure drainCounters() is scheduled on the writer.
+     * - Caller must hold pendingLock.
+     */
+    private void ensureCounterTask(){
+        if(counterTask==null && !closed){
+            counterTask = writer.scheduleWithFixedDelay(this::drainCounters,
+                    counterFlushMs, counterFlushMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * drainCounters() (Private)
+     * ************************************************************************
+     * - Hand the total of each dirty counter to the pending writes.
+     * - Under pendingLock: a counter replaced meanwhile by a put___() or
+     *   remove() is already gone, its stale total cannot overwrite the
+     *   newer value.
+     * - A key with a TTL keeps it: its total is written as Expiring, else
+     *   cacheWrites() would drop the expiry.
+     */
+    private void drainCounters(){
+        if(counters.isEmpty()){
+            return;
+        }
+        Map<String, Object> totals;
+        synchronized (pendingLock){
+            totals = counters.drainDirty();
+            if(totals.isEmpty()){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for(Map.Entry<String, Object> total : totals.entrySet()){
+                Long expiresAt = expiries.get(total.getKey());
+                if(expiresAt!=null && expiresAt > now){
+                    total.setValue(new Expiring(total.getValue(), expiresAt));
+                }
+            }
+            mergePending(totals);
+            scheduleFlush(pendingWrites.size() >= flushThreshold);
+        }
+        notifyListeners(totals.keySet());
+    }
+
+    /**
+     * ************************************************************************
+     * cacheWrites() (Private)
+     * ************************************************************************
+     * - Put applied values in the cache, and their expiry in expiries.
+     *   REMOVED takes the key out of both. Must hold pendingLock.
+     * ------------------------------------------------------------------------
+     * @param dataSet Key to value, Expiring, or REMOVED.
+     */
+    private void cacheWrites(Map<String, Object> dataSet){
+        for(Map.Entry<String, Object> entry : dataSet.entrySet()){
+            Object value = entry.getValue();
+            if(value==REMOVED){
+                cache.remove(entry.getKey());
+                expiries.remove(entry.getKey());
+            } else if(value instanceof Expiring){
+                Expiring expiring = (Expiring) value;
+                cache.put(entry.getKey(), expiring.value);
+                expiries.put(entry.getKey(), expiring.expiresAt);
+                ensureSweeper();
+            } else {
+                cache.put(entry.getKey(), value);
+                expiries.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * putExpiring() (Private)
+     * ************************************************************************
+     * - tempMap side of the put___(key, value, ttlMillis) methods.
+     */
+    private SqlPreferences putExpiring(String key, Object value, long ttlMillis){
+        if(ttlMillis <= 0){
+            tempMap.put(key, value);
+            return this;
+        }
+        tempMap.put(key, new Expiring(value, System.currentTimeMillis() + ttlMillis));
+        return this;
+    }
+
+    /**
+     * ************************************************************************
+     * pendingValue() (Private)
+     * ************************************************************************
+     * @param item A pending or flushing write.
+     * @return Its value, or REMOVED if it is a delete or has expired.
+     */
+    private static Object pendingValue(Object item){
+        if(item instanceof Expiring){
+            Expiring expiring = (Expiring) item;
+            return expiring.expiresAt <= System.currentTimeMillis() ? REMOVED : expiring.value;
+        }
+        return item;
+    }
+
+    /**
+     * ************************************************************************
+     * isExpired() (Private)
+     * ************************************************************************
+     * @param key The full storage key.
+     * @return true if the key had a TTL that has run out.
+     */
+    private boolean isExpired(String key){
+        if(expiries.isEmpty()){
+            return false;
+        }
+        Long expiresAt = expiries.get(key);
+        return expiresAt!=null && expiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * ************************************************************************
+     * takeTempMap() (Private)
+     * ************************************************************************
+     * - Take the put___() data out of tempMap, ready to be written.
+     * - Drops null values if setAllowSaveNull(false).
+     * ------------------------------------------------------------------------
+     * @return A copy of tempMap. tempMap is cleared.
+     */
+    private Map<String, Object> takeTempMap(){
+        // Check if null value allowed (allow save null)
+        if(allowSaveNull!=null && !allowSaveNull){
+            for(Map.Entry<String, Object> item: tempMap.entrySet()){
+                if(item.getValue()==null){
+                    // remove null values
+                    tempMap.remove(item.getKey());
+                }
+            }
+        }
+
+        Map<String, Object> dataToWrite = new HashMap<>(tempMap);
+        tempMap.clear();
+        return dataToWrite;
+    }
+
+    /**
+     * ************************************************************************
+     * await() (Package-Private)
+     * ************************************************************************
+     * - Block until a commitAsync()/flush() future completes.
+     * - On the writer thread itself, run the flush inline instead: the flush
+     *   that would complete the future is queued behind the caller.
+     * ------------------------------------------------------------------------
+     * @param future The future to wait for.
+     * @return Its result, or false if interrupted or failed.
+     */
+    boolean await(CompletableFuture<Boolean> future){
+        if(isWriterThread()){
+            batchWriter.flushPending();
+        }
+        try {
+            return Boolean.TRUE.equals(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Logger.e(TAG + " await(): " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * scheduleFlush() (Package-Private)
+     * ************************************************************************
+     * - Make sure a flush is on the writer queue.
+     * - Does nothing if one is already waiting, unless now is true and the
+     *   waiting one is still delayed, in which case it is moved to run now.
+     * - Caller must hold pendingLock.
+     * ------------------------------------------------------------------------
+     * @param now true to skip the debounce window.
+     */
+    void scheduleFlush(boolean now){
+        if(closed){
+            return;
+        }
+        if(flushTask!=null){
+            // Already running, or due: it will pick up the pending writes
+            if(!now || flushTask.getDelay(TimeUnit.MILLISECONDS) <= 0){
+                return;
+            }
+            flushTask.cancel(false);
+        }
+        flushTask = writer.schedule(batchWriter::flushPending, now ? 0 : flushDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * ************************************************************************
+     * ensureSweeper() (Private)
+     * ************************************************************************
+     * - Make sure the expiry sweeper is scheduled on the writer.
+     * - Caller must hold pendingLock.
+     */
+    private void ensureSweeper(){
+        if(sweepTask==null && !closed){
+            sweepTask = writer.scheduleWithFixedDelay(this::sweepExpired,
+                    sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * sweepExpired() (Private)
+     * ************************************************************************
+     * - Drop expired keys from memory, then delete expired rows from the
+     *   disk, SWEEP_BATCH_SIZE rows per statement, through the expiry index.
+     * - Runs on the writer, so it never races a flush. A key with a newer
+     *   pending write keeps it: the flush rewrites the row afterwards.
+     * - Listeners are not called: an expired key already read as absent.
+     * - The spill files of the expired rows are deleted with them.
+     * - Cancels itself once no key in memory and no row can expire.
+     */
+    private void sweepExpired(){
+        long now = System.currentTimeMillis();
+        Set<String> expired = new HashSet<>();
+        synchronized (pendingLock){
+            for(Map.Entry<String, Long> entry : expiries.entrySet()){
+                if(entry.getValue() <= now){
+                    expired.add(entry.getKey());
+                }
+            }
+            for(String key : expired){
+                expiries.remove(key);
+                cache.remove(key);
+            }
+            invalidateObjects(expired);
+        }
+
+        boolean hasExpiringRows = true;
+        try {
+            SQLiteDatabase db = getDatabase();
+            Map<String, String> spilled = spills.load();
+            List<String> expiredSpills = new ArrayList<>();
+            if(!spilled.isEmpty()){
+                try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_KEY + " FROM " + tableName
+                        + " WHERE " + COLUMN_EXPIRES_AT + " <= ? AND (" + COLUMN_DATA_TYPE + " & " + FLAG_SPILLED + ") != 0",
+                        new String[]{String.valueOf(now)})) {
+                    while(cursor.moveToNext()){
+                        expiredSpills.add(cursor.getString(0));
+                    }
+                }
+            }
+            try (SQLiteStatement sweep = db.compileStatement("DELETE FROM " + tableName
+                    + " WHERE rowid IN (SELECT rowid FROM " + tableName
+                    + " WHERE " + COLUMN_EXPIRES_AT + " <= ? LIMIT " + SWEEP_BATCH_SIZE + ")")) {
+                int deleted;
+                do {
+                    sweep.bindLong(1, now);
+                    deleted = sweep.executeUpdateDelete();
+                } while (deleted == SWEEP_BATCH_SIZE);
+            }
+            for(String key : expiredSpills){
+                String name = spilled.remove(key);
+                if(name!=null){
+                    spills.delete(name);
+                }
+            }
+            try (Cursor cursor = db.rawQuery("SELECT 1 FROM " + tableName
+                    + " WHERE " + COLUMN_EXPIRES_AT + " IS NOT NULL LIMIT 1", null)) {
+                hasExpiringRows = cursor.moveToFirst();
+            }
+        } catch (Exception e) {
+            Logger.e(TAG + " sweepExpired(): " + e.getMessage());
+        }
+
+        synchronized (pendingLock){
+            if(!hasExpiringRows && expiries.isEmpty() && sweepTask!=null){
+                sweepTask.cancel(false);
+                sweepTask = null;
+            }
+        }
+    }
+
+    /**
+     * ************************************************************************
+     * isSettled() (Package-Private)
+     * ************************************************************************
+     * - Loaded, nothing pending, no failed flush: the cache is exactly the
+     *   table. Must hold pendingLock.
+     */
+    boolean isSettled(){
+        return loaded && !flushFailed && flushTask==null && !pendingClear
+                && pendingWrites.isEmpty() && pendingRangeDeletes.isEmpty();
+    }
+
+    /**
+     * ************************************************************************
+     * getAll()
+     * ************************************************************************
+     * - Return all data saved in SqlPreferences.
+     * - This method executes synchronously (may block the calling thread).
+     * - Unencrypted values are read with their native type. Encrypted ones
+     *   are decrypted and parsed back to their original type.
+     * - Expired rows are left out at the SQL level.
+     * - The cursor is walked first with no decoding at all. Decryption and
+     *   type conversion then run in parallel on decodeExecutors, see
+     *   decodeRows().
+     * ------------------------------------------------------------------------
+     * @return A map of all stored key-value pairs.
+     */
+    @SuppressWarnings("unchecked")
+    public  <T> Map<String, T> getAll() {
+        return (Map<String, T>) readAll(null, false);
+    }
+
+    /**
+     * ************************************************************************
+     * readAll() (Private)
+     * ************************************************************************
+     * - getAll(), also reporting the expiry of each row that has one.
+     * - Expired rows are skipped by the query, never read nor decrypted.
+     * ------------------------------------------------------------------------
+     * @param expiriesOut Filled with key to expiry, or null.
+     * @param keepDeflated true to leave compressed values as Deflated, and
+     *                     spilled ones as Spilled, for the cache. See
+     *                     Compression and Spill Files.
+     * @return A map of all stored key-value pairs.
+     */
+    private Map<String, Object> readAll(@Nullable Map<String, Long> expiriesOut, boolean keepDeflated) {
+        // Read raw rows
+        List<RawRow> rows = new ArrayList<>();
+        try {
+            SQLiteDatabase db = getDatabase();
+            try (Cursor cursor = db.query(tableName,
+                    new String[]{COLUMN_KEY, COLUMN_DATA_VALUE, COLUMN_DATA_TYPE, COLUMN_EXPIRES_AT},
+                    NOT_EXPIRED, new String[]{String.valueOf(System.currentTimeMillis())}, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    rows.add(new RawRow(cursor.getString(0), cursor.getInt(2), readColumn(cursor, 1)));
+                    if(expiriesOut!=null && !cursor.isNull(3)){
+                        expiriesOut.put(cursor.getString(0), cursor.getLong(3));
+                    }
+                }
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+
+        // Decrypt and convert
+        Map<String, Object> dataSet = decodeRows(rows, keepDeflated);
+        rows.clear();
+        // Logger.d(TAG + " readAll(): dataset = "+dataSet);
+        return dataSet;
+    }
+
+    /**
+     * ************************************************************************
+     * decodeRows() (Private)
+     * ************************************************************************
+     * - Decrypt and convert raw rows, split into one slice per worker.
+     * - Each worker fills its own map, the maps are merged at the end, so
+     *   the workers share nothing but the (immutable) derived key.
+     * - Small tables are decoded on the calling thread.
+     * - Spill files are read last, on the calling thread, unless kept.
+     * ------------------------------------------------------------------------
+     * @param rows Raw rows.
+     * @param keepDeflated true to leave compressed values as Deflated, and
+     *                     spilled ones as Spilled, for the cache.
+     * @return Key to converted value. Rows that cannot be read are skipped.
+     */
+    private Map<String, Object> decodeRows(List<RawRow> rows, boolean keepDeflated){
+        // Key first: a rotation sets retiredKey before it replaces the key
+        SecretKeySpec keySpec = getKeySpec();
+        RetiredKey retired = rotation.retiredKey;
+
+        int workers = Math.min(DECODE_THREADS, rows.size() / PARALLEL_DECODE_MIN_ROWS);
+        if(workers <= 1){
+            Map<String, Object> dataSet = decodeSlice(rows, 0, rows.size(), keySpec, retired, keepDeflated);
+            return keepDeflated ? dataSet : readSpills(dataSet, keySpec, retired);
+        }
+
+        // Fan out
+        int sliceSize = (rows.size() + workers - 1) / workers;
+        List<Future<Map<String, Object>>> slices = new ArrayList<>(workers);
+        for(int from = 0; from < rows.size(); from += sliceSize){
+            final int start = from;
+            final int end = Math.min(rows.size(), from + sliceSize);
+            slices.add(decodeExecutors.submit(() -> decodeSlice(rows, start, end, keySpec, retired, keepDeflated)));
+        }
+
+        // Merge
+        Map<String, Object> dataSet = new HashMap<>(rows.size() * 4 / 3 + 1);
+        for(Future<Map<String, Object>> slice : slices){
+            try {
+                dataSet.putAll(slice.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.e(TAG + " decodeRows(): interrupted");
+                break;
+            } catch (Exception e) {
+                Logger.e(TAG + " decodeRows(): unable to decode a slice: " + e.getMessage());
+            }
+        }
+        return keepDeflated ? dataSet : readSpills(dataSet, keySpec, retired);
+    }
+
+    // Replace the Spilled values by their file, drop those that cannot be read
+    private Map<String, Object> readSpills(Map<String, Object> dataSet, @Nullable SecretKeySpec keySpec,
+                                           @Nullable RetiredKey retired){
+        Iterator<Map.Entry<String, Object>> it = dataSet.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<String, Object> entry = it.next();
+            if(entry.getValue() instanceof Spilled){
+                Object value = spills.read((Spilled) entry.getValue(), keySpec, retired);
+                if(value!=null){
+                    entry.setValue(value);
+                } else {
+                    it.remove();
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    /**
+     * ************************************************************************
+     * decodeSlice() (Private)
+     * ************************************************************************
+     * - Decrypt and convert rows [from, to).
+     * ------------------------------------------------------------------------
+     * @param rows    Raw rows.
+     * @param from    First row, inclusive.
+     * @param to      Last row, exclusive.
+     * @param keySpec The derived key, null if it could not be derived.
+     * @param retired The key being rotated away from, if any.
+     * @param keepDeflated true to leave compressed values as Deflated.
+     * @return Key to converted value, spilled values as Spilled.
+     */
+    private static Map<String, Object> decodeSlice(List<RawRow> rows, int from, int to, @Nullable SecretKeySpec keySpec,
+                                                   @Nullable RetiredKey retired, boolean keepDeflated){
+        Map<String, Object> dataSet = new HashMap<>((to - from) * 4 / 3 + 1);
+        for(int i = from; i < to; i++){
+            RawRow row = rows.get(i);
+            // Convert object type to its original
+            // (if the type is not supported, or we cant parse value, skip this entry)
+            Object value = keepDeflated
+                    ? decodeStored(row.type, row.value, keySpec, retired)
+                    : decodeValue(row.type, row.value, keySpec, retired);
+            if(value!=null){
+                dataSet.put(row.key, value);
+            }
+        }
+        return dataSet;
+    }
+
+    /**
+     * RawRow
+     * ------------------------------------------------------------------------
+     * - One row as read from the cursor, before decryption and conversion.
+     */
+    private static final class RawRow {
+        final String key;
+        final int type;
+        final Object value;
+
+        RawRow(String key, int type, @Nullable Object value) {
+            this.key = key;
+            this.type = type;
+            this.value = value;
+        }
     }
 
 
@@ -0,0 +1,214 @@
+package com.iorgana.droidhelpers.db;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ************************************************************************
+ * SqlPreferencesEditor
+ * ************************************************************************
+ * - The Editor of SqlPreferences.edit(). Changes made with an Editor stay
+ *   in the Editor until apply() or commit(). abort() drops them.
+ * - On apply, the whole batch is merged under one lock hold: readers see
+ *   either none of it or all of it (see SqlPreferences.publishing), and
+ *   it is flushed in one transaction, since a flush takes every pending
+ *   change at once.
+ * - Same setters as SqlPreferences, TTL overloads included, with one
+ *   difference: a null value removes the key, same as remove(). The
+ *   put___() of SqlPreferences never turn a null into a remove (a null
+ *   array or list is skipped there, see putIntArray()).
+ * - putListObject() and removeListObject() reach the putListObject()
+ *   lists only, never a row list of appendToList(), same as on
+ *   SqlPreferences. trimList(key, 0) empties a row list.
+ * - Not thread-safe: one Editor per thread. After apply(), commit() or
+ *   abort() it is empty and can be used again.
+ * - The Editor records changes only. If the flush fails, the cache keeps
+ *   the values, as it does for SqlPreferences.commit().
+ */
+public final class SqlPreferencesEditor {
+    private final SqlPreferences store;
+    private final HashMap<String, Object> changes = new HashMap<>();
+
+    SqlPreferencesEditor(SqlPreferences store) {
+        this.store = store;
+    }
+
+    public SqlPreferencesEditor putString(String key, @Nullable String value){
+        return put(key, value, 0);
+    }
+
+    public SqlPreferencesEditor putInt(String key, int value){
+        return put(key, value, 0);
+    }
+
+    public SqlPreferencesEditor putBoolean(String key, @Nullable Boolean value){
+        return put(key, value, 0);
+    }
+
+    public SqlPreferencesEditor putFloat(String key, float value){
+        return put(key, value, 0);
+    }
+
+    public SqlPreferencesEditor putLong(String key, long value){
+        return put(key, value, 0);
+    }
+
+    public SqlPreferencesEditor putDouble(String key, double value){
+        return put(key, value, 0);
+    }
+
+    // The array is copied, same as SqlPreferences.putIntArray()
+    public SqlPreferencesEditor putIntArray(String key, @Nullable int[] values){
+        return put(key, values!=null ? values.clone() : null, 0);
+    }
+
+    public SqlPreferencesEditor putLongArray(String key, @Nullable long[] values){
+        return put(key, values!=null ? values.clone() : null, 0);
+    }
+
+    public SqlPreferencesEditor putDoubleArray(String key, @Nullable double[] values){
+        return put(key, values!=null ? values.clone() : null, 0);
+    }
+
+    // Same TTL rules as SqlPreferences.putString(key, value, ttlMillis)
+    public SqlPreferencesEditor putString(String key, @Nullable String value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putInt(String key, int value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putBoolean(String key, @Nullable Boolean value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putFloat(String key, float value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putLong(String key, long value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putDouble(String key, double value, long ttlMillis){
+        return put(key, value, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putIntArray(String key, @Nullable int[] values, long ttlMillis){
+        return put(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putLongArray(String key, @Nullable long[] values, long ttlMillis){
+        return put(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public SqlPreferencesEditor putDoubleArray(String key, @Nullable double[] values, long ttlMillis){
+        return put(key, values!=null ? values.clone() : null, ttlMillis);
+    }
+
+    public <T> SqlPreferencesEditor putObject(String key, @Nullable T object){
+        return putObject(key, object, 0);
+    }
+
+    public <T> SqlPreferencesEditor putObject(String key, @Nullable T object, long ttlMillis){
+        return put(SqlPreferences.objectKey(key), object!=null ? SqlPreferences.GSON.toJson(object) : null, ttlMillis);
+    }
+
+    public <T> SqlPreferencesEditor putListObject(String key, @Nullable List<T> listObject){
+        return put(SqlPreferences.listKey(key), listObject!=null ? SqlPreferences.GSON.toJson(listObject) : null, 0);
+    }
+
+    public SqlPreferencesEditor remove(String key){
+        changes.put(key, SqlPreferences.REMOVED);
+        return this;
+    }
+
+    public SqlPreferencesEditor removeObject(String key){
+        return remove(SqlPreferences.objectKey(key));
+    }
+
+    public SqlPreferencesEditor removeListObject(String key){
+        return remove(SqlPreferences.listKey(key));
+    }
+
+    /**
+     * ********************************************************************
+     * apply()
+     * ********************************************************************
+     * - Make the changes visible at once, and write them in the
+     *   background, in one transaction.
+     */
+    public void apply(){
+        Map<String, Object> batch = take();
+        if(batch.isEmpty() || !store.enqueueWrites(batch, null)){
+            return;
+        }
+        store.notifyListeners(batch.keySet());
+    }
+
+    /**
+     * ********************************************************************
+     * commitAsync()
+     * ********************************************************************
+     * - Same as apply(), and also tell when the transaction has ended.
+     * --------------------------------------------------------------------
+     * @return A future completed with true once the changes are on the
+     *         disk, false if the write failed, was rejected, or a row
+     *         of the flush could not be written.
+     */
+    public CompletableFuture<Boolean> commitAsync(){
+        Map<String, Object> batch = take();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if(!store.enqueueWrites(batch, future)){
+            future.complete(false);
+            return future;
+        }
+        if(!batch.isEmpty()){
+            store.notifyListeners(batch.keySet());
+        }
+        return future;
+    }
+
+    /**
+     * ********************************************************************
+     * commit()
+     * ********************************************************************
+     * - Same as commitAsync(), but blocks until the transaction has
+     *   ended. Avoid it on the main thread.
+     * --------------------------------------------------------------------
+     * @return true if the changes were written.
+     */
+    public boolean commit(){
+        return store.await(commitAsync());
+    }
+
+    /**
+     * ********************************************************************
+     * abort()
+     * ********************************************************************
+     * - Drop every change not applied yet. Nothing was visible, nothing
+     *   is written.
+     */
+    public void abort(){
+        changes.clear();
+    }
+
+    private SqlPreferencesEditor put(String key, @Nullable Object value, long ttlMillis){
+        if(value==null){
+            return remove(key);
+        }
+        changes.put(key, (ttlMillis > 0) ? new SqlPreferences.Expiring(value, System.currentTimeMillis() + ttlMillis) : value);
+        return this;
+    }
+
+    private Map<String, Object> take(){
+        Map<String, Object> batch = new HashMap<>(changes);
+        changes.clear();
+        return batch;
+    }
+}
@@ -0,0 +1,59 @@
+package com.iorgana.droidhelpers.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PackedArrays: the BLOB format of int[]/long[]/double[] values.
+ */
+public class PackedArraysTest {
+
+    @Test
+    public void ints_roundTrip() {
+        int[] values = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 42};
+        assertArrayEquals(values, PackedArrays.unpackInts(PackedArrays.pack(values)));
+    }
+
+    @Test
+    public void longs_roundTrip() {
+        long[] values = {0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40};
+        assertArrayEquals(values, PackedArrays.unpackLongs(PackedArrays.pack(values)));
+    }
+
+    @Test
+    public void doubles_roundTrip() {
+        double[] values = {0.0, -0.0, 1.5, Double.MIN_VALUE, Double.MAX_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] unpacked = PackedArrays.unpackDoubles(PackedArrays.pack(values));
+        assertNotNull(unpacked);
+        assertEquals(values.length, unpacked.length);
+        for (int i = 0; i < values.length; i++) {
+            // Bit for bit: -0.0 and NaN included
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(unpacked[i]));
+        }
+    }
+
+    @Test
+    public void empty_roundTrips() {
+        assertEquals(0, PackedArrays.pack(new int[0]).length);
+        assertArrayEquals(new int[0], PackedArrays.unpackInts(new byte[0]));
+        assertArrayEquals(new long[0], PackedArrays.unpackLongs(new byte[0]));
+        assertArrayEquals(new double[0], PackedArrays.unpackDoubles(new byte[0]), 0.0);
+    }
+
+    @Test
+    public void pack_isLittleEndian() {
+        // On the disk: must never depend on the device
+        assertArrayEquals(new byte[]{0x04, 0x03, 0x02, 0x01}, PackedArrays.pack(new int[]{0x01020304}));
+        assertArrayEquals(new byte[]{0x08, 0x07, 0x06, 0x05, 0x04, 0x03, 0x02, 0x01},
+                PackedArrays.pack(new long[]{0x0102030405060708L}));
+    }
+
+    @Test
+    public void unpack_rejectsPartialElements() {
+        assertNull(PackedArrays.unpackInts(new byte[5]));
+        assertNull(PackedArrays.unpackLongs(new byte[12]));
+        assertNull(PackedArrays.unpackDoubles(new byte[7]));
+    }
+}
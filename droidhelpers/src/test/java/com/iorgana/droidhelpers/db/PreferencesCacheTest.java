@@ -0,0 +1,156 @@
+package com.iorgana.droidhelpers.db;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * PreferencesCache: prefixEnd() ranges, prefix queries and the bounded
+ * (LRU) mode.
+ */
+public class PreferencesCacheTest {
+
+    // SQLite BINARY order of TEXT: the UTF-8 bytes, unsigned
+    private static int compareUtf8(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            int d = (x[i] & 0xFF) - (y[i] & 0xFF);
+            if (d != 0) return d;
+        }
+        return x.length - y.length;
+    }
+
+    @Test
+    public void prefixEnd_incrementsTheLastChar() {
+        assertEquals("feed;", PreferencesCache.prefixEnd("feed:"));
+        assertEquals("abd", PreferencesCache.prefixEnd("abc"));
+    }
+
+    @Test
+    public void prefixEnd_skipsCharsThatCannotBeIncremented() {
+        // U+FFFF has no successor, U+D7FF would become a surrogate
+        assertEquals("b", PreferencesCache.prefixEnd("a\uFFFF"));
+        assertEquals("b", PreferencesCache.prefixEnd("a\uD7FF"));
+        // A surrogate pair (U+1F600) is dropped whole
+        assertEquals("b", PreferencesCache.prefixEnd("a\uD83D\uDE00"));
+    }
+
+    @Test
+    public void prefixEnd_nullWithoutUpperBound() {
+        assertNull(PreferencesCache.prefixEnd(""));
+        assertNull(PreferencesCache.prefixEnd("\uFFFF"));
+        assertNull(PreferencesCache.prefixEnd("\uD83D\uDE00"));
+    }
+
+    @Test
+    public void prefixEnd_boundsEveryMatchInJavaAndSqliteOrder() {
+        String[] prefixes = {"k", "feed:1:", "a\uFFFF", "a\uD83D\uDE00", "\u00E9t\u00E9", "z\uD7FF"};
+        String[] suffixes = {"", "0", "\u007F", "\u00FF", "\uD7FF", "\uE000", "\uFFFF", "\uD83D\uDE00", "\uDBFF\uDFFF"};
+        for (String prefix : prefixes) {
+            String end = PreferencesCache.prefixEnd(prefix);
+            assertNotNull(prefix, end);
+            for (String suffix : suffixes) {
+                String key = prefix + suffix;
+                assertTrue(key, key.compareTo(end) < 0);
+                assertTrue(key, compareUtf8(key, end) < 0);
+            }
+        }
+    }
+
+    @Test
+    public void keysWithPrefix_unboundedIsSortedRange() {
+        PreferencesCache cache = new PreferencesCache(0, 0, 0);
+        assertFalse(cache.isBounded());
+        for (String key : new String[]{"feed:2", "feed:1", "feed;", "fee", "feed:10", "user:1"}) {
+            cache.put(key, 1);
+        }
+        assertEquals(Arrays.asList("feed:1", "feed:10", "feed:2"), cache.keysWithPrefix("feed:"));
+        assertEquals(Collections.emptyList(), cache.keysWithPrefix("none:"));
+        assertEquals(6, cache.keysWithPrefix("").size());
+    }
+
+    @Test
+    public void removePrefix_removesOnlyMatches() {
+        for (PreferencesCache cache : new PreferencesCache[]{
+                new PreferencesCache(0, 0, 0), new PreferencesCache(100, 0, 0)}) {
+            cache.put("feed:1", "a");
+            cache.put("feed:2", "b");
+            cache.put("feed;", "c");
+            List<String> removed = cache.removePrefix("feed:");
+            Collections.sort(removed);
+            assertEquals(Arrays.asList("feed:1", "feed:2"), removed);
+            assertNull(cache.get("feed:1"));
+            assertEquals("c", cache.get("feed;"));
+            assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void putIfAbsent_neverOverwrites() {
+        for (PreferencesCache cache : new PreferencesCache[]{
+                new PreferencesCache(0, 0, 0), new PreferencesCache(100, 0, 0)}) {
+            cache.put("k", "new");
+            cache.putIfAbsent("k", "loaded");
+            assertEquals("new", cache.get("k"));
+        }
+    }
+
+    @Test
+    public void bounded_evictsLeastRecentlyUsed() {
+        PreferencesCache cache = new PreferencesCache(2, 0, 0);
+        assertTrue(cache.isBounded());
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.get("a");
+        cache.put("c", 3);
+        assertEquals(1, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void bounded_tracksWeightAndDropsTooLargeValues() {
+        PreferencesCache cache = new PreferencesCache(0, 1_000_000, 100);
+        cache.put("small", "x");
+        assertEquals(PreferencesCache.weigh("small", "x"), cache.weightBytes());
+
+        cache.put("small", new String(new char[51]));
+        // Over maxValueBytes (102 bytes of chars): the key is dropped
+        assertNull(cache.get("small"));
+        assertEquals(0, cache.weightBytes());
+    }
+
+    @Test
+    public void replace_onlyWhileTheExpectedValueIsThere() {
+        for (PreferencesCache cache : new PreferencesCache[]{
+                new PreferencesCache(0, 0, 0), new PreferencesCache(10, 0, 0)}) {
+            PreferencesCompression.Deflated deflated = new PreferencesCompression.Deflated(1, new byte[8]);
+            cache.put("k", deflated);
+            cache.replace("k", deflated, "inflated");
+            assertEquals("inflated", cache.get("k"));
+
+            // Written meanwhile: never replaced by an older read
+            cache.replace("k", deflated, "stale");
+            assertEquals("inflated", cache.get("k"));
+        }
+    }
+
+    @Test
+    public void replace_keepsSpilledMarkerWhenValueTooLarge() {
+        PreferencesCache cache = new PreferencesCache(10, 0, 100);
+        PreferencesSpill.Spilled spilled = new PreferencesSpill.Spilled(0, "file");
+        cache.put("k", spilled);
+        cache.replace("k", spilled, new String(new char[100]));
+        assertSame(spilled, cache.get("k"));
+
+        cache.replace("k", spilled, "small");
+        assertEquals("small", cache.get("k"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.iorgana.droidhelpers.db;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PreferencesCompression: deflate() / inflate() of large values.
+ */
+public class PreferencesCompressionTest {
+
+    private static byte[] json(int items) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\":").append(i).append(",\"title\":\"Item number ").append(i)
+                    .append("\",\"read\":false}");
+        }
+        return builder.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void deflate_roundTrips() {
+        byte[] plain = json(1000);
+        byte[] compressed = PreferencesCompression.deflate(plain);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < plain.length);
+        assertArrayEquals(plain, PreferencesCompression.inflate(compressed));
+    }
+
+    @Test
+    public void deflate_startsWithTheOriginalLength() {
+        byte[] plain = json(100);
+        byte[] compressed = PreferencesCompression.deflate(plain);
+        assertNotNull(compressed);
+        assertEquals(plain.length, ByteBuffer.wrap(compressed).getInt());
+    }
+
+    @Test
+    public void deflate_returnsNullWhenNotSmaller() {
+        byte[] random = new byte[4096];
+        new Random(7).nextBytes(random);
+        assertNull(PreferencesCompression.deflate(random));
+        assertNull(PreferencesCompression.deflate(new byte[0]));
+    }
+
+    @Test
+    public void deflate_leavesPlainWhatInflateWouldReject() {
+        // Compresses to almost nothing, but could never be read back
+        assertNull(PreferencesCompression.deflate(new byte[PreferencesCompression.MAX_INFLATED_BYTES + 1]));
+    }
+
+    @Test
+    public void inflate_rejectsDamage() {
+        byte[] compressed = PreferencesCompression.deflate(json(500));
+        assertNotNull(compressed);
+
+        // Too short for the length
+        assertNull(PreferencesCompression.inflate(new byte[3]));
+        // Truncated stream
+        assertNull(PreferencesCompression.inflate(Arrays.copyOf(compressed, compressed.length / 2)));
+        // Length that does not match the stream
+        byte[] wrongLength = compressed.clone();
+        ByteBuffer.wrap(wrongLength).putInt(ByteBuffer.wrap(compressed).getInt() + 1);
+        assertNull(PreferencesCompression.inflate(wrongLength));
+        // Negative, and above the inflate limit
+        byte[] negative = compressed.clone();
+        ByteBuffer.wrap(negative).putInt(-1);
+        assertNull(PreferencesCompression.inflate(negative));
+        byte[] huge = compressed.clone();
+        ByteBuffer.wrap(huge).putInt(Integer.MAX_VALUE);
+        assertNull(PreferencesCompression.inflate(huge));
+    }
+}
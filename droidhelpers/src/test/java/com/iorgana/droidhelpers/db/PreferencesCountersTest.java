@@ -0,0 +1,115 @@
+package com.iorgana.droidhelpers.db;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * PreferencesCounters: counters made from the stored value, drained once
+ * per change, and dropped by the writes that replace them.
+ */
+public class PreferencesCountersTest {
+    private final Map<String, Object> stored = new HashMap<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final PreferencesCounters counters = new PreferencesCounters(new Object(), stored::get, created::incrementAndGet);
+
+    @Test
+    public void add_startsFromTheStoredNumber() {
+        stored.put("visits", 40);
+        assertEquals(41, counters.add("visits", 1));
+        assertEquals(43, counters.add("visits", 2));
+        assertEquals(Integer.valueOf(43), counters.get("visits"));
+        assertEquals(1, created.get());
+
+        // Anything else counts from 0
+        stored.put("name", "Ann");
+        assertEquals(1, counters.add("name", 1));
+        assertNull(counters.get("missing"));
+    }
+
+    @Test
+    public void totals_keepTheStoredType() {
+        stored.put("int", 1);
+        stored.put("long", 1L);
+        stored.put("double", 1.0);
+        for (String key : new String[]{"int", "long", "double", "new"}) {
+            counters.add(key, 2);
+        }
+        Map<String, Object> totals = counters.drainDirty();
+        assertEquals(3, totals.get("int"));
+        assertEquals(3L, totals.get("long"));
+        assertEquals(3.0, totals.get("double"));
+        assertEquals(2L, totals.get("new"));
+    }
+
+    @Test
+    public void counter_isNotMadeFromAValueReplacedWhileRead() {
+        Object lock = new Object();
+        PreferencesCounters[] racing = new PreferencesCounters[1];
+        boolean[] first = {true};
+        stored.put("a", 10);
+        racing[0] = new PreferencesCounters(lock, key -> {
+            Object value = stored.get(key);
+            if (first[0]) {
+                // A put of the key lands between the read and the lock
+                first[0] = false;
+                stored.put(key, 100);
+                synchronized (lock) {
+                    racing[0].remove(key);
+                }
+            }
+            return value;
+        }, () -> { });
+        assertEquals(101, racing[0].add("a", 1));
+    }
+
+    @Test
+    public void drainDirty_returnsEachChangeOnce() {
+        counters.add("a", 1);
+        counters.add("b", 5);
+        Map<String, Object> totals = counters.drainDirty();
+        assertEquals(2, totals.size());
+        assertEquals(1L, totals.get("a"));
+        assertEquals(5L, totals.get("b"));
+        assertTrue(counters.drainDirty().isEmpty());
+
+        counters.add("a", 1);
+        assertEquals(Collections.singletonMap("a", (Object) 2L), counters.drainDirty());
+    }
+
+    @Test
+    public void remove_restartsFromTheNewStoredValue() {
+        counters.add("a", 10);
+        counters.add("prefix_b", 10);
+        stored.put("a", 100);
+        counters.removeAll(Collections.singleton("a"));
+        counters.removePrefix("prefix_");
+        assertNull(counters.get("prefix_b"));
+        assertEquals(101, counters.add("a", 1));
+
+        counters.clear();
+        assertTrue(counters.isEmpty());
+    }
+
+    @Test
+    public void concurrentAdds_areAllCounted() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    counters.add("hits", 1);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Long.valueOf(40_000), counters.get("hits"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.iorgana.droidhelpers.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * PrefixIndex: prefix matching of listeners and encryption policies.
+ */
+public class PrefixIndexTest {
+
+    @Test
+    public void empty_matchesNothing() {
+        PrefixIndex<String> index = PrefixIndex.empty();
+        assertTrue(index.isEmpty());
+        assertNull(index.longestMatch("any"));
+        assertTrue(index.values().isEmpty());
+        index.forEachMatch("any", value -> fail("matched " + value));
+    }
+
+    @Test
+    public void forEachMatch_visitsEveryMatchingPrefix() {
+        PrefixIndex<String> index = PrefixIndex.<String>empty()
+                .with("feed:", "a")
+                .with("feed:1:", "b")
+                .with("feed:1:title", "c")
+                .with("user:", "d")
+                .with("feed:1:", "e");
+
+        List<String> matched = new ArrayList<>();
+        index.forEachMatch("feed:1:title", matched::add);
+        Collections.sort(matched);
+        assertEquals(Arrays.asList("a", "b", "c", "e"), matched);
+
+        matched.clear();
+        index.forEachMatch("feed:2:title", matched::add);
+        assertEquals(Collections.singletonList("a"), matched);
+
+        matched.clear();
+        // Shorter than every prefix but "feed:"
+        index.forEachMatch("feed", matched::add);
+        assertTrue(matched.isEmpty());
+    }
+
+    @Test
+    public void emptyPrefix_matchesEveryKey() {
+        PrefixIndex<String> index = PrefixIndex.<String>empty().with("", "all");
+        assertEquals("all", index.longestMatch(""));
+        assertEquals("all", index.longestMatch("anything"));
+    }
+
+    @Test
+    public void longestMatch_mostSpecificWins() {
+        PrefixIndex<String> index = PrefixIndex.<String>empty()
+                .with("ui:", "plain")
+                .with("ui:secret:", "encrypt");
+        assertEquals("plain", index.longestMatch("ui:theme"));
+        assertEquals("encrypt", index.longestMatch("ui:secret:pin"));
+        assertNull(index.longestMatch("auth:token"));
+    }
+
+    @Test
+    public void longestMatch_lastValueUnderAPrefixWins() {
+        PrefixIndex<String> index = PrefixIndex.<String>empty()
+                .with("ui:", "first")
+                .with("ui:", "second");
+        assertEquals("second", index.longestMatch("ui:theme"));
+    }
+
+    @Test
+    public void with_leavesTheOriginalUnchanged() {
+        PrefixIndex<String> original = PrefixIndex.<String>empty().with("a", "1");
+        PrefixIndex<String> copy = original.with("b", "2");
+        assertNull(original.longestMatch("b"));
+        assertEquals("2", copy.longestMatch("b"));
+        assertEquals(1, original.values().size());
+        assertEquals(2, copy.values().size());
+    }
+
+    @Test
+    public void without_removesMatchingValuesUnderAnyPrefix() {
+        PrefixIndex<String> index = PrefixIndex.<String>empty()
+                .with("a", "x")
+                .with("a", "y")
+                .with("b", "x");
+        PrefixIndex<String> removed = index.without("x"::equals);
+        assertEquals(Collections.singletonList("y"), removed.values());
+        assertNull(removed.longestMatch("b"));
+        assertEquals("y", removed.longestMatch("a"));
+
+        assertTrue(index.without(value -> true).isEmpty());
+    }
+}